@@ -1,5 +1,11 @@
 package task4;
 
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.function.LongUnaryOperator;
+import java.util.concurrent.locks.ReentrantLock;
+
 /**
  * Class Account
  * Implements one customized customer account for many of our own threads.
@@ -32,6 +38,138 @@ public class Account {
 	 * Attribute that presents an account balance
 	 */
 	private double balance;
+
+	/**
+	 * How balance updates are applied to this account.
+	 *
+	 * MONITOR serializes every update on this account's monitor.
+	 * STRIPED spreads updates over per-core cells that are only
+	 * summed up when the balance is read, so concurrent depositors
+	 * and withdrawers do not fight over one monitor.
+	 * LOCK serializes updates on a ReentrantLock instead of the monitor;
+	 * a virtual thread blocked on it unmounts from its carrier thread,
+	 * while one blocked on a monitor pins the carrier.
+	 */
+	public enum BalanceMode { MONITOR, STRIPED, LOCK }
+
+	/**
+	 * Balance mode chosen for this account at construction
+	 */
+	private final BalanceMode mode;
+
+	/**
+	 * Striped cells holding updates made since the last setBalance();
+	 * null unless the account is in STRIPED mode
+	 */
+	private final DoubleAdder cells;
+
+	/**
+	 * Lock guarding balance updates; null unless the account is in LOCK mode
+	 */
+	private final ReentrantLock lock;
+
+	/**
+	 * Write-ahead journal deposits and withdrawals are logged to; null if none
+	 */
+	private Journal journal;
+
+	/**
+	 * Event log deposits and withdrawals are recorded to; null if none
+	 */
+	private EventLog events;
+
+	/**
+	 * Index of this account in events
+	 */
+	private int eventIndex;
+
+	/**
+	 * Contention statistics; null unless AccountStats.ENABLED
+	 */
+	private final AccountStats stats = AccountStats.ENABLED ? new AccountStats() : null;
+
+	/**
+	 * Table taking consistent snapshots of this account; null if none
+	 */
+	private AccountTable snapshots;
+
+	/**
+	 * Name index kept up to date by setName() and setAcc(); null if none.
+	 * Changed only by compare-and-set, so two indexes adding the account
+	 * at once cannot both get it.
+	 */
+	private volatile NameIndex names;
+
+	/**
+	 * Thread that alone may change the account, the balance without
+	 * locking; null while any thread may. Set and cleared by a
+	 * PartitionedExecutor before and after its workers run tasks on the
+	 * account. Every mutator checks it first, so no other thread can race
+	 * the owner's unlocked writes.
+	 */
+	private volatile Thread owner;
+
+	/**
+	 * Balance at the start of snapshot epoch snapshotEpoch, saved by the
+	 * first update made in that epoch. Guarded by this account's monitor.
+	 */
+	double snapshotBalance;
+
+	/**
+	 * Epoch snapshotBalance belongs to. Guarded by this account's monitor.
+	 */
+	long snapshotEpoch;
+
+	/**
+	 * Sequence number of the writes to acc, name and balance: odd while a
+	 * write is in progress, and bumped twice by every write. Writers are
+	 * serialized by the account's lock or monitor; readers never lock
+	 * but retry when the number was odd or changed while they read.
+	 */
+	private long seq;
+
+	/**
+	 * Handle for ordered access to seq
+	 */
+	private static final VarHandle SEQ;
+
+	/**
+	 * Handle for compare-and-set of names
+	 */
+	private static final VarHandle NAMES;
+
+	static {
+		try {
+			SEQ = MethodHandles.lookup().findVarHandle(Account.class, "seq", long.class);
+			NAMES = MethodHandles.lookup().findVarHandle(Account.class, "names", NameIndex.class);
+		} catch (ReflectiveOperationException e) {
+			throw new ExceptionInInitializerError(e);
+		}
+	}
+
+	/**
+	 * Optimistic read attempts before a reader takes the writers' lock
+	 */
+	private static final int READ_TRIES = 64;
+
+	/**
+	 * Consistent view of an account's number, name and balance
+	 */
+	public static class View {
+		public final int acc;
+		public final String name;
+		public final double balance;
+
+		View(int acc, String name, double balance) {
+			this.acc = acc;
+			this.name = name;
+			this.balance = balance;
+		}
+
+		public String toString() {
+			return "Account: "+acc+" \tName: "+name+" \tBalance:\t"+balance;
+		}
+	}
 	
 	/*
 	 * ------------
@@ -48,10 +186,25 @@ public class Account {
 	 */
 
 	public Account(int acc, String name, double balance) {
+		this(acc, name, balance, BalanceMode.MONITOR);
+	}
+
+	/**
+	 * Assigns account number, name, balance and balance mode.
+	 *
+	 * @param acc A unique integer that represents account number
+	 * @param name A string indicating human-readable customer's name
+	 * @param balance A double indicating account balance
+	 * @param mode How updates to the balance are synchronized
+	 */
+	public Account(int acc, String name, double balance, BalanceMode mode) {
 		super();
 		this.acc = acc;
 		this.name = name;
 		this.balance = balance;
+		this.mode = mode;
+		this.cells = (mode == BalanceMode.STRIPED) ? new DoubleAdder() : null;
+		this.lock = (mode == BalanceMode.LOCK) ? new ReentrantLock() : null;
 	}
 	
 	
@@ -70,8 +223,8 @@ public class Account {
 		Account other = (Account) obj;
 		if (acc != other.acc)
 			return false;
-		if (Double.doubleToLongBits(balance) != Double
-				.doubleToLongBits(other.balance))
+		if (Double.doubleToLongBits(getBalance()) != Double
+				.doubleToLongBits(other.getBalance()))
 			return false;
 		if (name == null) {
 			if (other.name != null)
@@ -91,11 +244,22 @@ public class Account {
 	}
 	
 	/**
-	 * Mutator for account no 
+	 * Mutator for account no; keeps the account's NameIndex entry up to
+	 * date, but not AccountIndex entries, which stay under the old number
 	 * @param acc A unique int for acoount number
 	 */
 	public void setAcc(int acc) {
-		this.acc = acc;
+		checkOwner();
+		NameIndex.renumber(this, acc);
+	}
+
+	/**
+	 * Changes the account number without touching the name index; called
+	 * by NameIndex while it holds the account's rename locks
+	 * @param acc A unique int for acoount number
+	 */
+	void assignAcc(int acc) {
+		locked(() -> this.acc = acc);
 	}
 	
 	/**
@@ -111,7 +275,36 @@ public class Account {
 	 * @param name A string that represents a customer name
 	 */
 	public void setName(String name) {
-		this.name = name;
+		checkOwner();
+		NameIndex.rename(this, name);
+	}
+
+	/**
+	 * Changes the name without touching the name index; called by
+	 * NameIndex while it holds the account's rename lock
+	 * @param name A string that represents a customer name
+	 */
+	void assignName(String name) {
+		locked(() -> this.name = name);
+	}
+
+	/**
+	 * Accessor for the name index
+	 * @return the index the account is in, or null
+	 */
+	NameIndex getNames() {
+		return names;
+	}
+
+	/**
+	 * Puts the account into a name index, or takes it out; called by the
+	 * index
+	 * @param expected Index the account must be in now, or null
+	 * @param index Index the account belongs to from now on, or null
+	 * @return false, changing nothing, if the account was not in expected
+	 */
+	boolean casNames(NameIndex expected, NameIndex index) {
+		return NAMES.compareAndSet(this, expected, index);
 	}
 
 	/**
@@ -119,7 +312,40 @@ public class Account {
 	 * @return an account balance
 	 */
 	public double getBalance() {
-		return balance;
+		double b;
+		for (int tries = 0; ; tries++) {
+			long s = (long) SEQ.getAcquire(this);
+			b = balance;
+			VarHandle.loadLoadFence();
+			if ((s & 1) == 0 && (long) SEQ.getOpaque(this) == s)
+				break;
+			if (tries == READ_TRIES) {
+				b = lockedBalance();
+				break;
+			}
+			Thread.onSpinWait();
+		}
+		if (cells != null)
+			return b + cells.sum();
+		return b;
+	}
+
+	/**
+	 * Reads the balance field under the writers' lock
+	 * @return the balance field, without striped cells
+	 */
+	private double lockedBalance() {
+		if (lock != null) {
+			lock.lock();
+			try {
+				return balance;
+			} finally {
+				lock.unlock();
+			}
+		}
+		synchronized(this) {
+			return balance;
+		}
 	}
 	
 	/**
@@ -127,14 +353,171 @@ public class Account {
 	 * @param balance A double that represents an account balance
 	 */
 	public void setBalance(double balance) {
-		this.balance = balance;
+		locked(() -> {
+			if (cells != null)
+				cells.reset();
+			this.balance = balance;
+		});
+	}
+
+	/**
+	 * Reads number, name and balance as of one instant without blocking
+	 * writers: the fields are read optimistically and read again if a
+	 * write overlapped, and only a reader that keeps overlapping writes
+	 * takes the writers' lock. In STRIPED mode the cells are summed after
+	 * the fields are read, as getBalance() does.
+	 * @return a consistent view of the account
+	 */
+	public View view() {
+		for (int tries = 0; tries < READ_TRIES; tries++) {
+			long s = (long) SEQ.getAcquire(this);
+			int a = acc;
+			String n = name;
+			double b = getBalance();
+			VarHandle.loadLoadFence();
+			if ((s & 1) == 0 && (long) SEQ.getOpaque(this) == s)
+				return new View(a, n, b);
+			Thread.onSpinWait();
+		}
+		return lockedView();
+	}
+
+	/**
+	 * Reads number, name and balance under the writers' lock, which keeps
+	 * them still without marking a write that would send other readers
+	 * round again. The balance comes from getBalance(), as subclasses keep
+	 * it elsewhere; with the lock held its optimistic read succeeds.
+	 * @return a consistent view of the account
+	 */
+	private View lockedView() {
+		if (lock != null) {
+			lock.lock();
+			try {
+				return new View(acc, name, getBalance());
+			} finally {
+				lock.unlock();
+			}
+		}
+		synchronized(this) {
+			return new View(acc, name, getBalance());
+		}
+	}
+
+	/**
+	 * Runs a write of acc, name or balance as a seqlock write, under the
+	 * lock that serializes the account's balance updates
+	 * @param write Field assignments to run
+	 */
+	private void locked(Runnable write) {
+		checkOwner();
+		if (lock != null) {
+			lock.lock();
+			try {
+				beginWrite();
+				write.run();
+				endWrite();
+			} finally {
+				lock.unlock();
+			}
+			return;
+		}
+		synchronized(this) {
+			beginWrite();
+			write.run();
+			endWrite();
+		}
+	}
+
+	/**
+	 * Marks the start of a write; the writers' lock must be held
+	 */
+	private void beginWrite() {
+		SEQ.setOpaque(this, seq + 1);
+		VarHandle.storeStoreFence();
+	}
+
+	/**
+	 * Marks the end of a write; the writers' lock must be held
+	 */
+	private void endWrite() {
+		SEQ.setRelease(this, seq + 1);
+	}
+
+	/**
+	 * Starts logging every deposit and withdrawal to a journal. Must be
+	 * called before the account is shared with other threads.
+	 * @param journal Write-ahead journal, or null to stop logging
+	 */
+	public void setJournal(Journal journal) {
+		this.journal = journal;
+	}
+
+	/**
+	 * Starts recording every deposit and withdrawal to an event log; set
+	 * by the log itself
+	 * @param log Event log, or null to stop recording
+	 * @param index Index of this account in the log
+	 */
+	void setEventLog(EventLog log, int index) {
+		this.events = log;
+		this.eventIndex = index;
+	}
+
+	/**
+	 * Lets a table take consistent snapshots of this account. Updates then
+	 * always take this account's monitor. Must be called before the
+	 * account is shared with other threads.
+	 * @param table Table the account belongs to, or null
+	 */
+	void setSnapshots(AccountTable table) {
+		this.snapshots = table;
+	}
+
+	/**
+	 * Hands the account to one thread, which then changes the balance
+	 * without locking; other threads may still read it but no longer
+	 * change it. Must be called before the owner starts and while no
+	 * other thread changes the balance.
+	 * @param thread New owner, or null to let any thread change the balance again
+	 * @throws IllegalStateException if the account takes snapshots
+	 */
+	void setOwner(Thread thread) {
+		if (thread != null && snapshots != null)
+			throw new IllegalStateException("Account " + acc + " takes snapshots and cannot be owned by one thread");
+		this.owner = thread;
+	}
+
+	/**
+	 * Rejects a change by any thread but the owner, if the account has one
+	 * @throws IllegalStateException if another thread owns the account
+	 */
+	protected final void checkOwner() {
+		Thread o = owner;
+		if (o != null && o != Thread.currentThread())
+			throw new IllegalStateException("Account " + acc + " is owned by " + o.getName());
+	}
+
+	/**
+	 * Accessor for contention statistics
+	 * @return the statistics, or null unless run with -Daccount.stats=true
+	 */
+	public AccountStats getStats() {
+		return stats;
+	}
+
+	/**
+	 * Accessor for the balance mode
+	 * @return how this account synchronizes balance updates
+	 */
+	public BalanceMode getMode() {
+		return mode;
 	}
 	
 	/**
 	 * A method to print this account 
 	 */
 	public String toString(){
-		return "Account: "+acc+" \tName: "+name+" \tBalance:\t"+balance;
+		return view().toString();
 	}
 
 	/**
@@ -149,9 +532,7 @@ public class Account {
 		for(int i=0;i<100;i++)
 			k = k / 2;
 
-		synchronized(this) {
-			balance = balance + amount;
-		}
+		apply(amount);
 
 		// Waste some time doing fake computations
 		// do not remove or modify any of the following 3 statements
@@ -173,9 +554,7 @@ public class Account {
 		for(int i=0;i<100;i++)
 			k = k / 2;
 
-		synchronized(this) {
-			balance = balance - amount;
-		}
+		apply(-amount);
 
 		// Waste some time doing fake computations
 		// do not remove or modify any of the following 3 statements
@@ -183,6 +562,229 @@ public class Account {
 		for(int i=0;i<100;i++)
 			k = k / 2;
 	}
-	
+
+	/**
+	 * A method that deposits several amounts with a single balance update,
+	 * so the account is locked once for the whole batch
+	 * @param amounts Doubles that represent deposit amounts
+	 */
+	public void depositAll(double[] amounts){
+		double sum = 0;
+		for (double amount : amounts)
+			sum += amount;
+		apply(sum);
+	}
+
+	/**
+	 * A method that withdraws several amounts with a single balance update,
+	 * so the account is locked once for the whole batch
+	 * @param amounts Doubles that represent withdrawal amounts
+	 */
+	public void withdrawAll(double[] amounts){
+		double sum = 0;
+		for (double amount : amounts)
+			sum += amount;
+		apply(-sum);
+	}
+
+	/**
+	 * Logs a signed change to the journal and event log, if any, and
+	 * applies it
+	 * @param delta A double to add to the balance (negative to withdraw)
+	 * @throws IllegalStateException if another thread owns the account
+	 */
+	void apply(double delta){
+		// Checked before logging, so a rejected change leaves no record
+		Thread o = owner;
+		if (o != null && o != Thread.currentThread())
+			throw new IllegalStateException("Account " + acc + " is owned by " + o.getName());
+		if (journal != null)
+			journal.update(acc, delta);
+		if (events != null)
+			events.record(eventIndex, delta);
+		if (o != null)
+			updateOwned(delta);
+		else if (snapshots != null)
+			snapshots.update(this, delta);
+		else
+			update(delta);
+	}
+
+	/**
+	 * Replaces the balance in cents with a function of itself, read and
+	 * written in one atomic step where the representation allows it (see
+	 * update(LongUnaryOperator)), and logs the change to the journal and
+	 * event log, if any, once it is made
+	 * @param charge New balance in cents from the current one; may be
+	 * called more than once
+	 * @return the change made, in cents
+	 * @throws IllegalStateException if another thread owns the account
+	 */
+	long apply(LongUnaryOperator charge) {
+		Thread o = owner;
+		if (o != null && o != Thread.currentThread())
+			throw new IllegalStateException("Account " + acc + " is owned by " + o.getName());
+		long delta;
+		if (o != null)
+			delta = updateFromRead(charge, true);
+		else if (snapshots != null)
+			delta = snapshots.update(this, charge);
+		else
+			delta = update(charge);
+		// Logged after the change, whose amount was not known before
+		double amount = (double) delta / CentsAccount.CENTS_PER_UNIT;
+		if (journal != null)
+			journal.update(acc, amount);
+		if (events != null)
+			events.record(eventIndex, amount);
+		return delta;
+	}
+
+	/**
+	 * Applies a signed change to the balance according to the balance mode
+	 * @param delta A double to add to the balance (negative to withdraw)
+	 */
+	protected void update(double delta){
+		if (AccountStats.ENABLED) {
+			measuredUpdate(delta);
+			return;
+		}
+		if (cells != null) {
+			cells.add(delta);
+			return;
+		}
+		if (lock != null) {
+			lock.lock();
+			try {
+				beginWrite();
+				balance = balance + delta;
+				endWrite();
+			} finally {
+				lock.unlock();
+			}
+			return;
+		}
+		synchronized(this) {
+			beginWrite();
+			balance = balance + delta;
+			endWrite();
+		}
+	}
+
+	/**
+	 * Replaces the balance in cents with a function of itself under the
+	 * writers' lock, so no update falls between the read and the write.
+	 * In STRIPED mode the cells are updated without that lock, and the
+	 * change is computed from the balance just read instead. Subclasses
+	 * keeping the balance elsewhere override this.
+	 * @param charge New balance in cents from the current one
+	 * @return the change made, in cents
+	 */
+	protected long update(LongUnaryOperator charge) {
+		if (cells != null)
+			return updateFromRead(charge, false);
+		if (lock != null) {
+			lock.lock();
+			try {
+				return updateLocked(charge);
+			} finally {
+				lock.unlock();
+			}
+		}
+		synchronized(this) {
+			return updateLocked(charge);
+		}
+	}
+
+	/**
+	 * Replaces the balance field as a seqlock write; the writers' lock
+	 * must be held
+	 * @param charge New balance in cents from the current one
+	 * @return the change made, in cents
+	 */
+	private long updateLocked(LongUnaryOperator charge) {
+		long cents = CentsAccount.toCents(balance);
+		long delta = charge.applyAsLong(cents) - cents;
+		beginWrite();
+		balance = balance + (double) delta / CentsAccount.CENTS_PER_UNIT;
+		endWrite();
+		return delta;
+	}
+
+	/**
+	 * Computes the change from the balance just read and applies it as a
+	 * plain update, for representations that cannot read and write in one
+	 * step. Exact on the owner thread; otherwise an update landing in
+	 * between is kept but not seen by charge.
+	 * @param charge New balance in cents from the current one
+	 * @param owned True on the owner thread
+	 * @return the change made, in cents
+	 */
+	protected final long updateFromRead(LongUnaryOperator charge, boolean owned) {
+		long cents = CentsAccount.toCents(getBalance());
+		long delta = charge.applyAsLong(cents) - cents;
+		double amount = (double) delta / CentsAccount.CENTS_PER_UNIT;
+		if (owned)
+			updateOwned(amount);
+		else
+			update(amount);
+		return delta;
+	}
+
+	/**
+	 * Applies a signed change on the owner thread, which is the only
+	 * writer, so no lock is needed. Readers still see consistent values
+	 * through the sequence number.
+	 * @param delta A double to add to the balance (negative to withdraw)
+	 */
+	protected void updateOwned(double delta){
+		if (AccountStats.ENABLED)
+			stats.count(false);
+		beginWrite();
+		balance = balance + delta;
+		endWrite();
+	}
+
+	/**
+	 * Same as update(), also recording wait and hold times
+	 * @param delta A double to add to the balance (negative to withdraw)
+	 */
+	private void measuredUpdate(double delta){
+		if (cells != null) {
+			stats.count(false);
+			cells.add(delta);
+			return;
+		}
+		long start = System.nanoTime();
+		if (lock != null) {
+			boolean contended = !lock.tryLock();
+			if (contended)
+				lock.lock();
+			try {
+				long entered = System.nanoTime();
+				beginWrite();
+				balance = balance + delta;
+				endWrite();
+				stats.count(contended);
+				stats.record(entered - start, System.nanoTime() - entered);
+			} finally {
+				lock.unlock();
+			}
+			return;
+		}
+		// A monitor cannot be tried, so contention is told by a flag set
+		// while it is held; a racy read is good enough for statistics
+		boolean contended = stats.busy;
+		synchronized(this) {
+			long entered = System.nanoTime();
+			stats.busy = true;
+			beginWrite();
+			balance = balance + delta;
+			endWrite();
+			stats.count(contended);
+			stats.record(entered - start, System.nanoTime() - entered);
+			stats.busy = false;
+		}
+	}
 
 }
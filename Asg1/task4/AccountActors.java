@@ -0,0 +1,141 @@
+package task4;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Class AccountActors
+ * Implements the single-writer execution mode: every account belongs to
+ * exactly one worker thread, which is the only thread that ever changes
+ * its balance.
+ *
+ * Callers publish deposit and withdrawal commands to the owner's
+ * RingMailbox without locking; the owner drains its mailbox and applies
+ * the commands with plain writes. Accounts are assigned to workers
+ * round-robin in creation order. Each worker also samples how long
+ * commands waited in its mailbox.
+ */
+public class AccountActors {
+
+	/*
+	 * ------------
+	 * Data members
+	 * ------------
+	 */
+
+	/**
+	 * Slots per worker mailbox
+	 */
+	private static final int MAILBOX_SIZE = 1 << 16;
+
+	/**
+	 * Actors used by AccountManager's actor mode, created on first use
+	 */
+	private static AccountActors shared;
+
+	/**
+	 * Owner threads
+	 */
+	private final Worker[] workers;
+
+	/**
+	 * Number of accounts assigned so far, for round-robin assignment
+	 */
+	private int assigned;
+
+	/*
+	 * ------------
+	 * Constructors
+	 * ------------
+	 */
+
+	/**
+	 * Starts the workers as daemon threads
+	 * @param count Number of workers
+	 */
+	public AccountActors(int count) {
+		workers = new Worker[count];
+		for (int i = 0; i < count; i++) {
+			workers[i] = new Worker(i);
+			workers[i].start();
+		}
+	}
+
+	/**
+	 * @return the actors shared by all actor-mode accounts, one worker per
+	 * available processor
+	 */
+	public static synchronized AccountActors shared() {
+		if (shared == null)
+			shared = new AccountActors(Runtime.getRuntime().availableProcessors());
+		return shared;
+	}
+
+	/*
+	 * -------
+	 * Methods
+	 * -------
+	 */
+
+	/**
+	 * @return the mailbox of the worker that will own the next account
+	 */
+	synchronized RingMailbox assign() {
+		return workers[assigned++ % workers.length].mailbox;
+	}
+
+	/**
+	 * Merges the queueing latencies sampled by all workers. Only exact
+	 * once no more commands are being published and all have been
+	 * applied, e.g. after reading every balance.
+	 * @return time between publication and application of sampled commands
+	 */
+	public LatencyHistogram queueLatency() {
+		LatencyHistogram total = new LatencyHistogram();
+		for (Worker w : workers) {
+			w.mailbox.awaitApplied(w.mailbox.tail());
+			total.add(w.latency);
+		}
+		return total;
+	}
+
+	/**
+	 * Owner thread of a share of the accounts
+	 */
+	private static class Worker extends Thread implements RingMailbox.Handler {
+		/**
+		 * Commands for the accounts this worker owns
+		 */
+		final RingMailbox mailbox = new RingMailbox(MAILBOX_SIZE);
+
+		/**
+		 * Sampled queueing latencies; written by this worker only
+		 */
+		final LatencyHistogram latency = new LatencyHistogram();
+
+		Worker(int index) {
+			super("account-actor-" + index);
+			setDaemon(true);
+		}
+
+		public void apply(ActorAccount target, long cents, long enqueued) {
+			target.applyOwned(cents);
+			if (enqueued != 0)
+				latency.record(System.nanoTime() - enqueued);
+		}
+
+		public void run() {
+			int idle = 0;
+			while (true) {
+				if (mailbox.drain(this) > 0) {
+					idle = 0;
+				} else if (++idle < 100) {
+					Thread.onSpinWait();
+				} else if (idle < 200) {
+					Thread.yield();
+				} else {
+					LockSupport.parkNanos(50000);
+				}
+			}
+		}
+	}
+}
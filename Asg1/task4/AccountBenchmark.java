@@ -0,0 +1,108 @@
+package task4;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Class AccountBenchmark
+ * Measures deposit/withdraw throughput and latency of every account
+ * implementation under a configurable amount of contention.
+ *
+ * Each benchmark thread picks an account from a Zipfian distribution and
+ * deposits or withdraws 10 with equal probability. All combinations of
+ * the comma-separated lists below are run:
+ *
+ *   variants=task3,monitor,striped,cents  task3 or any AccountManager mode
+ *   threads=1,2,4                        concurrent benchmark threads
+ *   accounts=1,10,1000                   size of the account table
+ *   skew=0,0.99                          0 is uniform, close to 1 is hot
+ *
+ * plus warmups=, iterations= and millis= for the harness (see Bench).
+ */
+public class AccountBenchmark {
+
+	public static void main(String[] args) {
+		Options options = null;
+		try {
+			options = new Options(args);
+		} catch (IllegalArgumentException e) {
+			System.err.println(e.getMessage() + "\nUsage: java task4.AccountBenchmark [variants=...] [threads=...]"
+				+ " [accounts=...] [skew=...] [warmups=N] [iterations=N] [millis=N]");
+			System.exit(1);
+		}
+		String[] variants = options.getString("variants", "task3," + AccountManager.MODES.replace('|', ',')).split(",");
+		int[] threads = ints(options.getString("threads", "1,2,4"));
+		int[] accounts = ints(options.getString("accounts", "1,10,1000"));
+		double[] skews = doubles(options.getString("skew", "0,0.99"));
+		Bench bench = new Bench(options);
+
+		System.out.println("variant\tthreads\taccounts\tskew\tresult");
+		for (int n : accounts)
+			for (double skew : skews) {
+				ZipfianGenerator zipf = new ZipfianGenerator(n, skew);
+				for (int t : threads)
+					for (String variant : variants) {
+						Bench.Result result = bench.run(t, task(variant, n, zipf));
+						System.out.println(variant + "\t" + t + "\t" + n + "\t\t" + skew + "\t" + result);
+					}
+			}
+	}
+
+	/**
+	 * Builds the operation for one variant on a fresh account table
+	 * @param variant task3 or one of AccountManager.MODES
+	 * @param n Number of accounts
+	 * @param zipf Chooses the account of each operation
+	 * @return the operation to benchmark
+	 */
+	static Bench.Task task(String variant, int n, ZipfianGenerator zipf) {
+		if (variant.equals("task3")) {
+			task3.Account[] account = new task3.Account[n];
+			for (int i = 0; i < n; i++)
+				account[i] = new task3.Account(i, "Customer" + i, 1000);
+			return thread -> {
+				ThreadLocalRandom random = ThreadLocalRandom.current();
+				task3.Account a = account[zipf.next(random.nextDouble())];
+				if (random.nextBoolean())
+					a.deposit(10);
+				else
+					a.withdraw(10);
+			};
+		}
+
+		Account[] account = new Account[n];
+		for (int i = 0; i < n; i++)
+			account[i] = AccountManager.newAccount(variant, i, "Customer" + i, 1000);
+		return thread -> {
+			ThreadLocalRandom random = ThreadLocalRandom.current();
+			Account a = account[zipf.next(random.nextDouble())];
+			if (random.nextBoolean())
+				a.deposit(10);
+			else
+				a.withdraw(10);
+		};
+	}
+
+	/**
+	 * @param list Comma-separated integers
+	 * @return the parsed integers
+	 */
+	static int[] ints(String list) {
+		String[] parts = list.split(",");
+		int[] values = new int[parts.length];
+		for (int i = 0; i < parts.length; i++)
+			values[i] = Integer.parseInt(parts[i].trim().replace("_", ""));
+		return values;
+	}
+
+	/**
+	 * @param list Comma-separated numbers
+	 * @return the parsed numbers
+	 */
+	static double[] doubles(String list) {
+		String[] parts = list.split(",");
+		double[] values = new double[parts.length];
+		for (int i = 0; i < parts.length; i++)
+			values[i] = Double.parseDouble(parts[i].trim());
+		return values;
+	}
+}
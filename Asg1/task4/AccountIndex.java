@@ -0,0 +1,416 @@
+package task4;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Class AccountIndex
+ * Implements a concurrent map from account number to Account with
+ * primitive int keys, so no key is ever boxed.
+ *
+ * Entries live in an open-addressing table with linear probing: parallel
+ * arrays of keys and accounts. Readers never lock; a writer stores the
+ * account of a new slot before publishing its key, so a reader that sees
+ * the key also sees the account. Writers are serialized by one lock.
+ * Key slots are never cleared: remove() leaves the key with a null
+ * account, which keeps every probe sequence intact.
+ *
+ * When the table gets half full, counting removed slots, a new table
+ * sized from the number of accounts actually held replaces it and the
+ * old one is kept until its live entries are moved over; removed slots
+ * are left behind. A growing index thus doubles, while one whose slots
+ * are mostly removed ones is rehashed into a table of the same size, or
+ * a smaller one, instead of growing without bound under churn. Each
+ * later write moves the next MIGRATE_SLOTS slots, so no single call
+ * copies the whole table. Meanwhile readers look in the new table first
+ * and fall back to the old one; an old table is never written again
+ * once replaced.
+ *
+ * Entries are keyed by the number given to put(), or by the account's
+ * number when add() was called; Account.setAcc() does not re-key them,
+ * so to renumber an indexed account, remove its old number and add it
+ * again.
+ *
+ * Key 0 marks a free slot and is kept in a field of its own.
+ */
+public class AccountIndex {
+
+	/**
+	 * Open-addressing table: parallel key and account arrays
+	 */
+	private static class Table {
+		final int[] keys;
+		final Account[] accounts;
+		final int mask;
+
+		/**
+		 * Slots whose key is set, removed or not; changed by writers only
+		 */
+		int used;
+
+		Table(int capacity) {
+			keys = new int[capacity];
+			accounts = new Account[capacity];
+			mask = capacity - 1;
+		}
+	}
+
+	/*
+	 * ------------
+	 * Data members
+	 * ------------
+	 */
+
+	/**
+	 * Old slots moved to the new table by each write during a resize
+	 */
+	private static final int MIGRATE_SLOTS = 1024;
+
+	/**
+	 * Handles for acquire/release access to the table arrays
+	 */
+	private static final VarHandle KEYS = MethodHandles.arrayElementVarHandle(int[].class);
+	private static final VarHandle ACCOUNTS = MethodHandles.arrayElementVarHandle(Account[].class);
+
+	/**
+	 * Table all writes go to
+	 */
+	private volatile Table table;
+
+	/**
+	 * Table being migrated into table; null unless a resize is under way
+	 */
+	private volatile Table old;
+
+	/**
+	 * Next slot of old to migrate; changed by writers only
+	 */
+	private int migrated;
+
+	/**
+	 * Account of key 0, if any
+	 */
+	private volatile Account zero;
+
+	/**
+	 * Number of accounts in the index
+	 */
+	private volatile int size;
+
+	/**
+	 * Serializes writers
+	 */
+	private final ReentrantLock lock = new ReentrantLock();
+
+	/*
+	 * ------------
+	 * Constructors
+	 * ------------
+	 */
+
+	/**
+	 * Creates an index sized for 16 accounts
+	 */
+	public AccountIndex() {
+		this(16);
+	}
+
+	/**
+	 * @param expected Number of accounts the index holds without resizing
+	 */
+	public AccountIndex(int expected) {
+		int capacity = 16;
+		while (capacity < 2L * expected)
+			capacity <<= 1;
+		table = new Table(capacity);
+	}
+
+	/*
+	 * -------
+	 * Methods
+	 * -------
+	 */
+
+	/**
+	 * Spreads sequential account numbers over the table
+	 * @param key Account number
+	 * @return the mixed hash
+	 */
+	private static int hash(int key) {
+		int h = key * 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+
+	/**
+	 * Finds the slot of a key, or the free slot ending its probe sequence
+	 * @param t Table to search
+	 * @param key Account number, not 0
+	 * @return the slot index
+	 */
+	private static int slot(Table t, int key) {
+		int i = hash(key) & t.mask;
+		while (true) {
+			int k = (int) KEYS.getAcquire(t.keys, i);
+			if (k == key || k == 0)
+				return i;
+			i = (i + 1) & t.mask;
+		}
+	}
+
+	/**
+	 * Looks up an account without locking
+	 * @param acc Account number
+	 * @return the account, or null if there is none
+	 */
+	public Account get(int acc) {
+		if (acc == 0)
+			return zero;
+		// Read table before old: a resize sets old first, so a new table
+		// is never seen without the old one still holding unmoved entries
+		Table t = table;
+		Table o = old;
+		int i = slot(t, acc);
+		if ((int) KEYS.getAcquire(t.keys, i) == acc)
+			return (Account) ACCOUNTS.getAcquire(t.accounts, i);
+		if (o == null || o == t)
+			return null;
+		i = slot(o, acc);
+		if ((int) KEYS.getAcquire(o.keys, i) == acc)
+			return (Account) ACCOUNTS.getAcquire(o.accounts, i);
+		return null;
+	}
+
+	/**
+	 * @param acc Account number
+	 * @return true if the index holds an account with that number
+	 */
+	public boolean containsKey(int acc) {
+		return get(acc) != null;
+	}
+
+	/**
+	 * Adds an account under its own account number
+	 * @param account Account to add
+	 * @return the account it replaces, or null
+	 */
+	public Account add(Account account) {
+		return put(account.getAcc(), account);
+	}
+
+	/**
+	 * Maps an account number to an account
+	 * @param acc Account number
+	 * @param account Account, not null
+	 * @return the account previously mapped, or null
+	 */
+	public Account put(int acc, Account account) {
+		if (account == null)
+			throw new NullPointerException("account");
+		return write(acc, account);
+	}
+
+	/**
+	 * Removes an account number from the index
+	 * @param acc Account number
+	 * @return the account it was mapped to, or null
+	 */
+	public Account remove(int acc) {
+		return write(acc, null);
+	}
+
+	/**
+	 * Stores or removes one mapping under the writer lock
+	 * @param acc Account number
+	 * @param account New account, or null to remove
+	 * @return the account previously mapped, or null
+	 */
+	private Account write(int acc, Account account) {
+		lock.lock();
+		try {
+			Account previous;
+			if (acc == 0) {
+				previous = zero;
+				zero = account;
+			} else {
+				if (old != null)
+					migrate();
+				else if (account != null && 2 * (table.used + 1) > table.keys.length)
+					resize();
+				previous = store(table, acc, account);
+			}
+			if (previous == null && account != null)
+				size = size + 1;
+			else if (previous != null && account == null)
+				size = size - 1;
+			return previous;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Stores or removes a mapping in the current table. Writer lock held.
+	 * @param t Current table
+	 * @param acc Account number, not 0
+	 * @param account New account, or null to remove
+	 * @return the account previously mapped, or null
+	 */
+	private Account store(Table t, int acc, Account account) {
+		int i = slot(t, acc);
+		if (t.keys[i] == acc) {
+			Account previous = t.accounts[i];
+			ACCOUNTS.setRelease(t.accounts, i, account);
+			return previous;
+		}
+		// Not in the current table; during a resize it may still be in old
+		Account previous = null;
+		if (old != null) {
+			int j = slot(old, acc);
+			if (old.keys[j] == acc)
+				previous = old.accounts[j];
+		}
+		// Removing an absent key needs no slot, but an unmoved old entry
+		// must be masked by a removed one in the current table
+		if (account == null && previous == null)
+			return null;
+		ACCOUNTS.setRelease(t.accounts, i, account);
+		KEYS.setRelease(t.keys, i, acc);
+		t.used++;
+		return previous;
+	}
+
+	/**
+	 * Starts a resize into a table with room for four times the accounts
+	 * held, so removed slots are dropped rather than doubled. Writer lock
+	 * held.
+	 */
+	private void resize() {
+		Table t = table;
+		// Each write moves MIGRATE_SLOTS slots and adds at most one, so the
+		// new table ends the move at most half full with room for the live
+		// entries and one slot per write until then
+		long needed = 4L * (size + 1) + 2L * (t.keys.length / MIGRATE_SLOTS + 1);
+		int capacity = 16;
+		while (capacity < needed)
+			capacity <<= 1;
+		old = t;
+		migrated = 0;
+		table = new Table(capacity);
+	}
+
+	/**
+	 * Moves the next slots of the old table. Writer lock held.
+	 */
+	private void migrate() {
+		Table o = old;
+		Table t = table;
+		int end = Math.min(o.keys.length, migrated + MIGRATE_SLOTS);
+		for (int i = migrated; i < end; i++) {
+			int k = o.keys[i];
+			Account a = o.accounts[i];
+			if (k == 0 || a == null)
+				continue;
+			int j = slot(t, k);
+			// A key already in the new table was written since the resize
+			if (t.keys[j] == k)
+				continue;
+			ACCOUNTS.setRelease(t.accounts, j, a);
+			KEYS.setRelease(t.keys, j, k);
+			t.used++;
+		}
+		migrated = end;
+		if (end == o.keys.length)
+			old = null;
+	}
+
+	/**
+	 * @return number of accounts in the index
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * @return number of slots of the current table
+	 */
+	public int capacity() {
+		return table.keys.length;
+	}
+
+	/**
+	 * Benchmarks lookups and updates against ConcurrentHashMap.
+	 *
+	 * Options: keys=10_000_000, threads=1,2,4, writes=0,10 (percent of
+	 * operations replacing an existing entry), variants=index,hashmap,
+	 * plus warmups=, iterations= and millis= (see Bench). Every variant is
+	 * built from scratch, starting from the default capacity so the build
+	 * time includes all resizes. 10M keys need about -Xmx3g.
+	 */
+	public static void main(String[] args) {
+		Options options = null;
+		try {
+			options = new Options(args);
+		} catch (IllegalArgumentException e) {
+			System.err.println(e.getMessage() + "\nUsage: java task4.AccountIndex [keys=N] [threads=...]"
+				+ " [writes=PERCENT,...] [variants=index,hashmap] [warmups=N] [iterations=N] [millis=N]");
+			System.exit(1);
+		}
+		int keys = options.getInt("keys", 10000000);
+		int[] threads = AccountBenchmark.ints(options.getString("threads", "1,2,4"));
+		int[] writes = AccountBenchmark.ints(options.getString("writes", "0,10"));
+		String[] variants = options.getString("variants", "index,hashmap").split(",");
+		Bench bench = new Bench(options);
+
+		// Account numbers as in AccountManager: sparse, not array positions
+		Account[] account = new Account[keys];
+		for (int i = 0; i < keys; i++)
+			account[i] = new Account(1000 + 7 * i, "", 1000);
+
+		System.out.println("variant\tthreads\twrites%\tresult");
+		for (String variant : variants) {
+			Runtime runtime = Runtime.getRuntime();
+			System.gc();
+			long before = runtime.totalMemory() - runtime.freeMemory();
+			long start = System.nanoTime();
+			Bench.Task lookup;
+			Bench.Task update;
+			if (variant.equals("index")) {
+				AccountIndex index = new AccountIndex();
+				for (Account a : account)
+					index.add(a);
+				lookup = thread -> index.get(1000 + 7 * ThreadLocalRandom.current().nextInt(keys));
+				update = thread -> index.add(account[ThreadLocalRandom.current().nextInt(keys)]);
+			} else if (variant.equals("hashmap")) {
+				ConcurrentHashMap<Integer, Account> map = new ConcurrentHashMap<Integer, Account>();
+				for (Account a : account)
+					map.put(a.getAcc(), a);
+				lookup = thread -> map.get(1000 + 7 * ThreadLocalRandom.current().nextInt(keys));
+				update = thread -> {
+					Account a = account[ThreadLocalRandom.current().nextInt(keys)];
+					map.put(a.getAcc(), a);
+				};
+			} else {
+				System.err.println("Unknown variant \"" + variant + "\"");
+				continue;
+			}
+			long buildMillis = (System.nanoTime() - start) / 1000000;
+			System.gc();
+			long bytes = runtime.totalMemory() - runtime.freeMemory() - before;
+			System.out.println(variant + ": built " + keys + " keys in " + buildMillis + " ms, "
+				+ (bytes / keys) + " bytes/key");
+			for (int w : writes)
+				for (int t : threads) {
+					Bench.Task task = thread -> {
+						if (ThreadLocalRandom.current().nextInt(100) < w)
+							update.run(thread);
+						else
+							lookup.run(thread);
+					};
+					System.out.println(variant + "\t" + t + "\t" + w + "\t" + bench.run(t, task));
+				}
+		}
+	}
+}
@@ -0,0 +1,558 @@
+package task4;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.stream.IntStream;
+
+/**
+ * Class AccountLoader
+ * Loads accounts from files into a ColumnarAccounts table, parsing the
+ * file on all processors.
+ *
+ * Two formats are read. CSV has one account per line as
+ * "acc,name,balance", with an optional header line that does not start
+ * with a digit; names cannot contain commas and balances are decimal
+ * numbers, of which the first two decimals are kept. The binary format
+ * is little-endian and stored column by column:
+ *
+ *   0            long    magic "ACCTBIN1"
+ *   8            int     number of accounts n
+ *   12           int     reserved
+ *   16           int[n]  account numbers
+ *   16+4n        long[n] balances in cents
+ *   16+12n       int[n]  end offset of each name in the name bytes
+ *   16+16n       byte[]  UTF-8 names, back to back
+ *
+ * Files are memory-mapped chunk by chunk. A CSV file is cut into chunks
+ * at line ends; a first parallel pass counts the lines of each chunk, a
+ * prefix sum turns the counts into the index of each chunk's first
+ * account, and a second parallel pass parses every chunk straight into
+ * its place in the table. A binary file already tells where each
+ * account is, so its chunks are copied in one parallel pass.
+ */
+public class AccountLoader {
+
+	/*
+	 * ------------
+	 * Data members
+	 * ------------
+	 */
+
+	/**
+	 * Identifies a binary account file
+	 */
+	private static final long MAGIC = 0x314e494254434341L;
+
+	/**
+	 * Size of the binary file header in bytes
+	 */
+	private static final int HEADER = 16;
+
+	/**
+	 * Largest CSV chunk in bytes; chunks are also limited by the number of processors
+	 */
+	private static final long CSV_CHUNK = 64 << 20;
+
+	/**
+	 * Accounts copied by one parallel task of a binary load
+	 */
+	private static final int BINARY_CHUNK = 1 << 18;
+
+	/*
+	 * -------
+	 * Methods
+	 * -------
+	 */
+
+	/**
+	 * Loads a file, choosing the format by its first bytes
+	 * @param file CSV or binary account file
+	 * @return a table holding exactly the accounts of the file
+	 * @throws IOException if the file cannot be read or is malformed
+	 */
+	public static ColumnarAccounts load(Path file) throws IOException {
+		try (FileChannel in = FileChannel.open(file, StandardOpenOption.READ)) {
+			ByteBuffer magic = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+			while (magic.hasRemaining() && in.read(magic) >= 0)
+				;
+			if (magic.position() == 8 && magic.getLong(0) == MAGIC)
+				return loadBinary(file);
+		}
+		return loadCsv(file);
+	}
+
+	/**
+	 * Loads a CSV file
+	 * @param file CSV account file
+	 * @return a table holding exactly the accounts of the file
+	 * @throws IOException if the file cannot be read or is malformed
+	 */
+	public static ColumnarAccounts loadCsv(Path file) throws IOException {
+		try (FileChannel in = FileChannel.open(file, StandardOpenOption.READ)) {
+			long[] bounds = csvChunks(in);
+			int chunks = bounds.length - 1;
+			try {
+				// Count the lines of every chunk, then parse each into its place
+				long[] first = new long[chunks + 1];
+				long[] counts = IntStream.range(0, chunks).parallel()
+					.mapToLong(c -> parseCsv(in, bounds[c], bounds[c + 1], null, 0))
+					.toArray();
+				for (int c = 0; c < chunks; c++)
+					first[c + 1] = first[c] + counts[c];
+				if (first[chunks] > Integer.MAX_VALUE)
+					throw new IOException(file + " holds more than " + Integer.MAX_VALUE + " accounts");
+				ColumnarAccounts table = new ColumnarAccounts((int) first[chunks]);
+				table.reserve((int) first[chunks]);
+				IntStream.range(0, chunks).parallel()
+					.forEach(c -> parseCsv(in, bounds[c], bounds[c + 1], table, (int) first[c]));
+				return table;
+			} catch (UncheckedIOException e) {
+				throw new IOException(file + ": " + e.getCause().getMessage(), e.getCause());
+			}
+		}
+	}
+
+	/**
+	 * Cuts a CSV file into chunks that start at line beginnings, skipping
+	 * a header line
+	 * @param in CSV file
+	 * @return start offsets of the chunks followed by the file size
+	 * @throws IOException if the file cannot be read
+	 */
+	private static long[] csvChunks(FileChannel in) throws IOException {
+		long size = in.size();
+		int processors = Runtime.getRuntime().availableProcessors();
+		int chunks = (int) Math.max(4L * processors, (size + CSV_CHUNK - 1) / CSV_CHUNK);
+		long[] bounds = new long[chunks + 1];
+		ByteBuffer first = ByteBuffer.allocate(1);
+		if (size > 0 && in.read(first, 0) == 1 && !isRecordStart(first.get(0)))
+			bounds[0] = lineEnd(in, 0, size);
+		for (int c = 1; c < chunks; c++)
+			bounds[c] = lineEnd(in, Math.max(bounds[c - 1], size / chunks * c), size);
+		bounds[chunks] = size;
+		return bounds;
+	}
+
+	/**
+	 * @param b First byte of a line
+	 * @return true if the line can be an account rather than a header
+	 */
+	private static boolean isRecordStart(byte b) {
+		return (b >= '0' && b <= '9') || b == '-';
+	}
+
+	/**
+	 * Finds the beginning of the line after a position
+	 * @param in CSV file
+	 * @param from Position to search from
+	 * @param size Size of the file
+	 * @return offset just past the next '\n', or size if there is none
+	 * @throws IOException if the file cannot be read
+	 */
+	private static long lineEnd(FileChannel in, long from, long size) throws IOException {
+		if (from == 0)
+			from = 1;
+		ByteBuffer buffer = ByteBuffer.allocate(4096);
+		// The line starts right at from if the byte before it ends a line
+		long at = from - 1;
+		while (at < size) {
+			buffer.clear();
+			int n = in.read(buffer, at);
+			if (n <= 0)
+				break;
+			for (int i = 0; i < n; i++)
+				if (buffer.get(i) == '\n')
+					return at + i + 1;
+			at += n;
+		}
+		return size;
+	}
+
+	/**
+	 * Counts or parses the lines of one CSV chunk
+	 * @param in CSV file
+	 * @param start Offset of the first line of the chunk
+	 * @param end Offset just past the last line of the chunk
+	 * @param table Table to store the accounts in, or null to count lines only
+	 * @param index Index of the chunk's first account in table
+	 * @return number of accounts in the chunk
+	 * @throws UncheckedIOException if the chunk cannot be read or is malformed
+	 */
+	private static long parseCsv(FileChannel in, long start, long end, ColumnarAccounts table, int index) {
+		if (start >= end)
+			return 0;
+		MappedByteBuffer chunk;
+		try {
+			chunk = in.map(FileChannel.MapMode.READ_ONLY, start, end - start);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		int limit = chunk.limit();
+		int n = 0;
+		int p = 0;
+		byte[] name = new byte[64];
+		NameDictionary names = (table != null) ? table.names() : null;
+		while (p < limit) {
+			int lineStart = p;
+			// Skip blank lines
+			if (chunk.get(p) == '\n' || chunk.get(p) == '\r') {
+				p++;
+				continue;
+			}
+			if (table == null) {
+				while (p < limit && chunk.get(p) != '\n')
+					p++;
+				p++;
+				n++;
+				continue;
+			}
+
+			// Account number
+			boolean negative = chunk.get(p) == '-';
+			if (negative)
+				p++;
+			long acc = 0;
+			int digits = 0;
+			byte b;
+			while (p < limit && (b = chunk.get(p)) >= '0' && b <= '9') {
+				acc = acc * 10 + (b - '0');
+				p++;
+				digits++;
+			}
+			if (digits == 0 || digits > 10 || p >= limit || chunk.get(p) != ',')
+				throw malformed(start + lineStart);
+			p++;
+
+			// Name
+			int length = 0;
+			while (p < limit && (b = chunk.get(p)) != ',' && b != '\n') {
+				if (length == name.length)
+					name = Arrays.copyOf(name, 2 * length);
+				name[length++] = b;
+				p++;
+			}
+			if (p >= limit || chunk.get(p) != ',')
+				throw malformed(start + lineStart);
+			p++;
+
+			// Balance, rounded to cents
+			boolean debit = p < limit && chunk.get(p) == '-';
+			if (debit)
+				p++;
+			long cents = 0;
+			digits = 0;
+			while (p < limit && (b = chunk.get(p)) >= '0' && b <= '9') {
+				cents = cents * 10 + (b - '0');
+				p++;
+				digits++;
+			}
+			int decimals = 0;
+			boolean roundUp = false;
+			if (p < limit && chunk.get(p) == '.') {
+				p++;
+				while (p < limit && (b = chunk.get(p)) >= '0' && b <= '9') {
+					if (decimals < 2)
+						cents = cents * 10 + (b - '0');
+					else if (decimals == 2)
+						roundUp = b >= '5';
+					decimals++;
+					digits++;
+					p++;
+				}
+			}
+			if (digits == 0 || digits > 17)
+				throw malformed(start + lineStart);
+			for (; decimals < 2; decimals++)
+				cents *= 10;
+			if (roundUp)
+				cents++;
+			if (p < limit && chunk.get(p) == '\r')
+				p++;
+			if (p < limit && chunk.get(p) != '\n')
+				throw malformed(start + lineStart);
+			p++;
+
+			acc = negative ? -acc : acc;
+			if (acc < Integer.MIN_VALUE || acc > Integer.MAX_VALUE)
+				throw malformed(start + lineStart);
+			String s = new String(name, 0, length, StandardCharsets.UTF_8);
+			table.set(index + n, (int) acc, names.encode(s), debit ? -cents : cents);
+			n++;
+		}
+		return n;
+	}
+
+	/**
+	 * @param offset File offset of the bad line
+	 * @return the exception to throw for it
+	 */
+	private static UncheckedIOException malformed(long offset) {
+		return new UncheckedIOException(new IOException("Malformed account record at byte " + offset));
+	}
+
+	/**
+	 * Loads a binary file
+	 * @param file Binary account file
+	 * @return a table holding exactly the accounts of the file
+	 * @throws IOException if the file cannot be read or is malformed
+	 */
+	public static ColumnarAccounts loadBinary(Path file) throws IOException {
+		try (FileChannel in = FileChannel.open(file, StandardOpenOption.READ)) {
+			ByteBuffer header = ByteBuffer.allocate(HEADER).order(ByteOrder.LITTLE_ENDIAN);
+			while (header.hasRemaining() && in.read(header) >= 0)
+				;
+			if (header.position() < HEADER || header.getLong(0) != MAGIC)
+				throw new IOException(file + " is not a binary account file");
+			int n = header.getInt(8);
+			long namesAt = HEADER + 16L * n;
+			if (n < 0 || namesAt > in.size())
+				throw new IOException(file + " is truncated");
+			ColumnarAccounts table = new ColumnarAccounts(n);
+			table.reserve(n);
+			try {
+				IntStream.range(0, (n + BINARY_CHUNK - 1) / BINARY_CHUNK).parallel()
+					.forEach(c -> copyBinary(in, n, namesAt, c * BINARY_CHUNK, (int) Math.min(n, (c + 1L) * BINARY_CHUNK), table));
+			} catch (UncheckedIOException e) {
+				throw new IOException(file + ": " + e.getCause().getMessage(), e.getCause());
+			}
+			return table;
+		}
+	}
+
+	/**
+	 * Copies one range of accounts from a binary file
+	 * @param in Binary file
+	 * @param n Number of accounts in the file
+	 * @param namesAt Offset of the name bytes
+	 * @param from Index of the first account to copy
+	 * @param to Index past the last account to copy
+	 * @param table Table to store the accounts in
+	 * @throws UncheckedIOException if the range cannot be read or is malformed
+	 */
+	private static void copyBinary(FileChannel in, int n, long namesAt, int from, int to, ColumnarAccounts table) {
+		try {
+			int count = to - from;
+			ByteBuffer accs = map(in, HEADER + 4L * from, 4L * count);
+			ByteBuffer cents = map(in, HEADER + 4L * n + 8L * from, 8L * count);
+			ByteBuffer ends = map(in, HEADER + 12L * n + 4L * from, 4L * count);
+			long nameStart = (from == 0) ? 0 : Integer.toUnsignedLong(map(in, HEADER + 12L * n + 4L * (from - 1), 4).getInt(0));
+			long nameEnd = Integer.toUnsignedLong(ends.getInt(4 * (count - 1)));
+			if (nameEnd < nameStart || namesAt + nameEnd > in.size())
+				throw new IOException("Name offsets of accounts " + from + " to " + to + " are out of range");
+			ByteBuffer names = map(in, namesAt + nameStart, nameEnd - nameStart);
+			NameDictionary dictionary = table.names();
+			byte[] name = new byte[64];
+			long previous = nameStart;
+			for (int i = 0; i < count; i++) {
+				long end = Integer.toUnsignedLong(ends.getInt(4 * i));
+				int length = (int) (end - previous);
+				if (end < previous || end > nameEnd)
+					throw new IOException("Name offset of account " + (from + i) + " is out of range");
+				if (length > name.length)
+					name = new byte[length];
+				names.get((int) (previous - nameStart), name, 0, length);
+				table.set(from + i, accs.getInt(4 * i), dictionary.encode(new String(name, 0, length, StandardCharsets.UTF_8)),
+					cents.getLong(8 * i));
+				previous = end;
+			}
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/**
+	 * @param in File to map
+	 * @param at Offset of the region
+	 * @param length Length of the region
+	 * @return the region, little-endian
+	 * @throws IOException if the region cannot be mapped
+	 */
+	private static ByteBuffer map(FileChannel in, long at, long length) throws IOException {
+		return in.map(FileChannel.MapMode.READ_ONLY, at, length).order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+	/**
+	 * Writes a table as CSV, with a header line
+	 * @param table Accounts to write
+	 * @param file File to create or replace
+	 * @throws IOException if the file cannot be written
+	 */
+	public static void writeCsv(ColumnarAccounts table, Path file) throws IOException {
+		try (Writer out = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+			out.write("acc,name,balance\n");
+			StringBuilder line = new StringBuilder();
+			for (int i = 0; i < table.size(); i++) {
+				long cents = table.getCents(i);
+				long abs = Math.abs(cents);
+				line.setLength(0);
+				line.append(table.getAcc(i)).append(',').append(table.getName(i)).append(',');
+				if (cents < 0)
+					line.append('-');
+				line.append(abs / CentsAccount.CENTS_PER_UNIT).append('.');
+				if (abs % CentsAccount.CENTS_PER_UNIT < 10)
+					line.append('0');
+				line.append(abs % CentsAccount.CENTS_PER_UNIT).append('\n');
+				out.append(line);
+			}
+		}
+	}
+
+	/**
+	 * Writes a table in the binary format
+	 * @param table Accounts to write
+	 * @param file File to create or replace
+	 * @throws IOException if the file cannot be written or the names exceed 4 GB
+	 */
+	public static void writeBinary(ColumnarAccounts table, Path file) throws IOException {
+		int n = table.size();
+		try (OutputStream stream = new BufferedOutputStream(Files.newOutputStream(file), 1 << 16)) {
+			ByteBuffer buffer = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+			writeLong(stream, buffer, MAGIC);
+			writeInt(stream, buffer, n);
+			writeInt(stream, buffer, 0);
+			for (int i = 0; i < n; i++)
+				writeInt(stream, buffer, table.getAcc(i));
+			for (int i = 0; i < n; i++)
+				writeLong(stream, buffer, table.getCents(i));
+			long end = 0;
+			for (int i = 0; i < n; i++) {
+				end += table.getName(i).getBytes(StandardCharsets.UTF_8).length;
+				if (end > 0xffffffffL)
+					throw new IOException("Names of " + file + " exceed 4 GB");
+				writeInt(stream, buffer, (int) end);
+			}
+			for (int i = 0; i < n; i++)
+				stream.write(table.getName(i).getBytes(StandardCharsets.UTF_8));
+		}
+	}
+
+	private static void writeInt(OutputStream out, ByteBuffer buffer, int value) throws IOException {
+		buffer.putInt(0, value);
+		out.write(buffer.array(), 0, 4);
+	}
+
+	private static void writeLong(OutputStream out, ByteBuffer buffer, long value) throws IOException {
+		buffer.putLong(0, value);
+		out.write(buffer.array(), 0, 8);
+	}
+
+	/**
+	 * Creates Account objects of the given mode for every account in a table
+	 * @param table Loaded accounts
+	 * @param mode One of AccountManager.MODES
+	 * @return the accounts, in table order
+	 */
+	public static Account[] toAccounts(ColumnarAccounts table, String mode) {
+		Account[] account = new Account[table.size()];
+		Arrays.parallelSetAll(account, i -> AccountManager.newAccount(mode, table.getAcc(i), table.getName(i), table.getBalance(i)));
+		return account;
+	}
+
+	/**
+	 * Loads the same accounts line by line on one thread, the way a
+	 * straightforward reader would, for comparison
+	 * @param file CSV account file
+	 * @return a table holding the accounts of the file
+	 * @throws IOException if the file cannot be read
+	 */
+	static ColumnarAccounts loadCsvSequentially(Path file) throws IOException {
+		int lines = 0;
+		try (BufferedReader in = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+			while (in.readLine() != null)
+				lines++;
+		}
+		ColumnarAccounts table = new ColumnarAccounts(lines);
+		try (BufferedReader in = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+			String line;
+			while ((line = in.readLine()) != null) {
+				if (line.isEmpty() || !isRecordStart((byte) line.charAt(0)))
+					continue;
+				String[] fields = line.split(",");
+				table.add(Integer.parseInt(fields[0]), fields[1], Double.parseDouble(fields[2]));
+			}
+		}
+		return table;
+	}
+
+	/**
+	 * Writes a file of random accounts in both formats and times loading it.
+	 *
+	 * Options: accounts=10_000_000, names=100_000 (distinct customer
+	 * names), dir=. (where accounts.csv and accounts.bin are written),
+	 * sequential=true (also time a line-by-line CSV reader).
+	 */
+	public static void main(String[] args) {
+		Options options = null;
+		try {
+			options = new Options(args);
+		} catch (IllegalArgumentException e) {
+			System.err.println(e.getMessage() + "\nUsage: java task4.AccountLoader [accounts=N] [names=N] [dir=DIR] [sequential=true|false]");
+			System.exit(1);
+		}
+		int n = options.getInt("accounts", 10000000);
+		int distinct = options.getInt("names", 100000);
+		Path dir = Paths.get(options.getString("dir", "."));
+		boolean sequential = Boolean.parseBoolean(options.getString("sequential", "true"));
+		Path csv = dir.resolve("accounts.csv");
+		Path binary = dir.resolve("accounts.bin");
+
+		try {
+			ColumnarAccounts generated = new ColumnarAccounts(n);
+			ThreadLocalRandom random = ThreadLocalRandom.current();
+			for (int i = 0; i < n; i++)
+				generated.add(1000 + i, "Customer" + random.nextInt(distinct), random.nextInt(1000000) / 100.0);
+			writeCsv(generated, csv);
+			writeBinary(generated, binary);
+			double total = generated.sum();
+			generated = null;
+			System.out.println("Wrote " + n + " accounts: " + csv + " (" + Files.size(csv) / (1 << 20) + " MB), "
+				+ binary + " (" + Files.size(binary) / (1 << 20) + " MB), total balance " + total);
+
+			for (int round = 0; round < 2; round++) {
+				long start = System.nanoTime();
+				ColumnarAccounts table = loadCsv(csv);
+				report("csv, parallel", start, table, total);
+				start = System.nanoTime();
+				table = loadBinary(binary);
+				report("binary, parallel", start, table, total);
+				if (sequential) {
+					table = null;
+					start = System.nanoTime();
+					table = loadCsvSequentially(csv);
+					report("csv, line by line", start, table, total);
+				}
+			}
+		} catch (IOException e) {
+			System.err.println("Load failed: " + e);
+			System.exit(1);
+		}
+	}
+
+	/**
+	 * Prints the time a load took and checks its result
+	 * @param what Format and method of the load
+	 * @param start System.nanoTime() at the start of the load
+	 * @param table Loaded accounts
+	 * @param total Expected total balance
+	 */
+	private static void report(String what, long start, ColumnarAccounts table, double total) {
+		long millis = (System.nanoTime() - start) / 1000000;
+		System.out.println(what + ": " + table.size() + " accounts in " + millis + " ms"
+			+ (table.sum() == total ? "" : ", WRONG total balance " + table.sum()));
+	}
+}
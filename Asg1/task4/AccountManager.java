@@ -1,4 +1,13 @@
 package task4;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.lang.reflect.Method;
+import java.nio.file.Paths;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
 /**
  * Class AccountManager
  * Implements account manager that twists depositor and withdrawal threads.
@@ -11,88 +20,364 @@ package task4;
  */
 
 public class AccountManager {
+
+	/**
+	 * Account implementations selectable with the mode option
+	 */
+	static final String MODES = "monitor|striped|lock|cents|adaptive|padded|actor";
+
+	/**
+	 * Checks an account mode without creating an account, which for some
+	 * modes would start shared threads or take a slot
+	 * @param mode Account implementation, one of MODES
+	 * @return the mode
+	 * @throws IllegalArgumentException if the mode is unknown
+	 */
+	static String checkMode(String mode) {
+		for (String m : MODES.split("\\|"))
+			if (m.equals(mode))
+				return mode;
+		throw new IllegalArgumentException("Unknown account mode \"" + mode + "\"");
+	}
+
+	/**
+	 * Creates an account of the requested implementation.
+	 *
+	 * @param mode One of MODES
+	 * @param acc A unique integer that represents account number
+	 * @param name A string indicating human-readable customer's name
+	 * @param balance A double indicating account balance
+	 * @return the new account
+	 * @throws IllegalArgumentException if the mode is unknown
+	 */
+	static Account newAccount(String mode, int acc, String name, double balance) {
+		switch (mode) {
+			case "monitor":
+				return new Account(acc, name, balance, Account.BalanceMode.MONITOR);
+			case "striped":
+				return new Account(acc, name, balance, Account.BalanceMode.STRIPED);
+			case "lock":
+				return new Account(acc, name, balance, Account.BalanceMode.LOCK);
+			case "cents":
+				return new CentsAccount(acc, name, balance);
+			case "adaptive":
+				return new AdaptiveAccount(acc, name, balance);
+			case "padded":
+				return AccountSlots.padded().newAccount(acc, name, balance);
+			case "actor":
+				return new ActorAccount(acc, name, balance, AccountActors.shared());
+			default:
+				throw new IllegalArgumentException("Unknown account mode \"" + mode + "\"");
+		}
+	}
+
+	/**
+	 * Creates the executor that runs depositor and withdrawer loops.
+	 *
+	 * Virtual threads are looked up reflectively so this class still
+	 * compiles and runs on JDKs that predate them.
+	 *
+	 * @param exec platform (a thread per task), virtual, or pool:N for N platform threads
+	 * @return the executor
+	 * @throws IllegalArgumentException if the executor is unknown or unavailable
+	 */
+	static ExecutorService newExecutor(String exec) {
+		if (exec.equals("platform"))
+			return Executors.newCachedThreadPool();
+		if (exec.equals("virtual")) {
+			try {
+				Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+				return (ExecutorService) factory.invoke(null);
+			} catch (ReflectiveOperationException e) {
+				throw new IllegalArgumentException("Virtual threads need JDK 21 or later, this is " + System.getProperty("java.version"));
+			}
+		}
+		if (exec.startsWith("pool:"))
+			return Executors.newFixedThreadPool(Integer.parseInt(exec.substring(5)));
+		throw new IllegalArgumentException("Unknown executor \"" + exec + "\"");
+	}
+
 	public static void main(String[] args) {
-		// TODO Auto-generated method stub
-		
-		Account [] account = new Account[10];
-		Depositor [] deposit = new Depositor[10];
-		Withdrawer [] withdraw = new Withdrawer[10];
+		String mode = "monitor";
+		String exec = "platform";
+		int clients = 1;
+		int iterations = 10000000;
+		String journalFile = null;
+		String accountsFile = null;
+		Journal.Durability durability = Journal.Durability.BATCHED;
+		long interval = 10;
+		long snapshotEvery = 0;
+		String statsFile = null;
+		int coalesce = 0;
+		long coalesceMillis = 0;
+		String eventsFile = null;
+		try {
+			Options options = new Options(args);
+			mode = options.getString("mode", mode);
+			exec = options.getString("exec", exec);
+			clients = options.getInt("clients", clients);
+			if (clients < 1)
+				throw new IllegalArgumentException("Need at least one client per account");
+			iterations = options.getInt("iterations", iterations / clients);
+			journalFile = options.getString("journal", journalFile);
+			accountsFile = options.getString("accounts", accountsFile);
+			durability = options.getEnum("durability", Journal.Durability.class, durability);
+			interval = options.getLong("interval", interval);
+			snapshotEvery = options.getLong("snapshot", snapshotEvery);
+			statsFile = options.getString("stats", statsFile);
+			coalesce = options.getInt("coalesce", coalesce);
+			coalesceMillis = options.getLong("coalesceMillis", coalesceMillis);
+			eventsFile = options.getString("events", eventsFile);
+			// Fail on an unknown mode or executor before any thread is created
+			checkMode(mode);
+			if (exec.startsWith("partitioned:")) {
+				if (Integer.parseInt(exec.substring(12)) < 1)
+					throw new IllegalArgumentException("Need at least one partition");
+				if (snapshotEvery > 0 || coalesce > 0)
+					throw new IllegalArgumentException("Partitioned accounts are changed by their owner only and cannot be snapshot or coalesced");
+			} else {
+				newExecutor(exec).shutdown();
+			}
+		} catch (IllegalArgumentException e) {
+			System.err.println(e.getMessage() + "\nUsage: java task4.AccountManager [mode=" + MODES + "]"
+				+ " [exec=platform|virtual|pool:N|partitioned:N] [clients=N] [iterations=N]"
+				+ " [accounts=CSV_OR_BINARY_FILE] [journal=FILE] [durability=none|batched|per_op] [interval=MILLIS] [snapshot=MILLIS]"
+				+ " [stats=CSV_FILE, with -Daccount.stats=true] [coalesce=BATCH] [coalesceMillis=MILLIS] [events=FILE]");
+			System.exit(1);
+		}
 		
-		// The birth of  10 accounts
-		account[0] = new Account(1234,"Mike",1000);
-		account[1] = new Account(2345,"Adam",2000);
-		account[2] = new Account(3456,"Linda",3000);
-		account[3] = new Account(4567,"John",4000);
-		account[4] = new Account(5678,"Rami",5000);
-		account[5] = new Account(6789,"Lee",6000);
-		account[6] = new Account(7890,"Tom",7000);
-		account[7] = new Account(8901,"Lisa",8000);
-		account[8] = new Account(9012,"Sam",9000);
-		account[9] = new Account(4321,"Ted",10000);
+		// Rebuild the accounts from the journal of an earlier run, if any
+		Account [] account = new Account[0];
+		Journal journal = null;
+		long validLength = -1;
+		if (journalFile != null) {
+			try {
+				Journal.Recovery recovery = Journal.recover(Paths.get(journalFile), mode);
+				account = recovery.accounts;
+				validLength = recovery.validLength;
+			} catch (IOException e) {
+				System.err.println("Cannot recover from journal " + journalFile + ": " + e);
+				System.exit(1);
+			}
+			if (account.length > 0) {
+				System.out.println("Recovered "+account.length+" accounts from "+journalFile);
+				// Start the new run from the recovered balances, not the
+				// whole history
+				try {
+					Journal.checkpoint(Paths.get(journalFile), account);
+					validLength = -1;
+				} catch (IOException e) {
+					System.err.println("Cannot checkpoint journal " + journalFile + ": " + e);
+					System.exit(1);
+				}
+			}
+		}
+		boolean fresh = account.length == 0;
+
+		if (fresh && accountsFile != null) {
+			try {
+				long loadStart = System.currentTimeMillis();
+				account = AccountLoader.toAccounts(AccountLoader.load(Paths.get(accountsFile)), mode);
+				System.out.println("Loaded "+account.length+" accounts from "+accountsFile+" in "+(System.currentTimeMillis()-loadStart)+" ms");
+			} catch (IOException e) {
+				System.err.println("Cannot load accounts from " + accountsFile + ": " + e);
+				System.exit(1);
+			}
+		} else if (fresh) {
+			account = new Account[10];
+			// The birth of  10 accounts
+			account[0] = newAccount(mode,1234,"Mike",1000);
+			account[1] = newAccount(mode,2345,"Adam",2000);
+			account[2] = newAccount(mode,3456,"Linda",3000);
+			account[3] = newAccount(mode,4567,"John",4000);
+			account[4] = newAccount(mode,5678,"Rami",5000);
+			account[5] = newAccount(mode,6789,"Lee",6000);
+			account[6] = newAccount(mode,7890,"Tom",7000);
+			account[7] = newAccount(mode,8901,"Lisa",8000);
+			account[8] = newAccount(mode,9012,"Sam",9000);
+			account[9] = newAccount(mode,4321,"Ted",10000);
+		}
+
+		if (journalFile != null) {
+			try {
+				// Appends after the last valid frame, dropping a torn tail
+				journal = new Journal(Paths.get(journalFile), durability, interval, validLength);
+			} catch (IOException e) {
+				System.err.println("Cannot open journal " + journalFile + ": " + e);
+				System.exit(1);
+			}
+			for(int i=0; i<account.length; i++){
+				if (fresh)
+					journal.create(account[i]);
+				account[i].setJournal(journal);
+			}
+		}
 		
-		// The birth of 10 depositors 
-		deposit[0] = new Depositor(account[0]);
-		deposit[1] = new Depositor(account[1]);
-		deposit[2] = new Depositor(account[2]);
-		deposit[3] = new Depositor(account[3]);
-		deposit[4] = new Depositor(account[4]);
-		deposit[5] = new Depositor(account[5]);
-		deposit[6] = new Depositor(account[6]);
-		deposit[7] = new Depositor(account[7]);
-		deposit[8] = new Depositor(account[8]);
-		deposit[9] = new Depositor(account[9]);
-
-		// The birth of  10 withdraws 
-		withdraw[0] = new Withdrawer(account[0]);
-		withdraw[1] = new Withdrawer(account[1]);
-		withdraw[2] = new Withdrawer(account[2]);
-		withdraw[3] = new Withdrawer(account[3]);
-		withdraw[4] = new Withdrawer(account[4]);
-		withdraw[5] = new Withdrawer(account[5]);
-		withdraw[6] = new Withdrawer(account[6]);
-		withdraw[7] = new Withdrawer(account[7]);
-		withdraw[8] = new Withdrawer(account[8]);
-		withdraw[9] = new Withdrawer(account[9]);
+		// Record every deposit and withdrawal for Replay
+		EventLog events = null;
+		if (eventsFile != null) {
+			try {
+				events = new EventLog(Paths.get(eventsFile), account);
+			} catch (IOException e) {
+				System.err.println("Cannot create event log " + eventsFile + ": " + e);
+				System.exit(1);
+			}
+		}
+
+		// Let the clients coalesce their updates before they reach the accounts
+		Account [] target = account;
+		CoalescingAccount [] coalescing = null;
+		if (coalesce > 0) {
+			coalescing = new CoalescingAccount[account.length];
+			for(int i=0; i<account.length; i++)
+				coalescing[i] = new CoalescingAccount(account[i], coalesce, coalesceMillis);
+			target = coalescing;
+		}
 
+		Depositor [] deposit = new Depositor[account.length * clients];
+		Withdrawer [] withdraw = new Withdrawer[account.length * clients];
+
+		// The birth of depositors and withdraws, clients of each per account
+		for(int i=0; i<deposit.length; i++){
+			deposit[i] = new Depositor(target[i % account.length], iterations);
+			withdraw[i] = new Withdrawer(target[i % account.length], iterations);
+		}
+
+		System.out.println("Account mode: "+mode+", executor: "+exec+", "+deposit.length+" depositors and "+withdraw.length+" withdrawers"
+			+ (coalesce > 0 ? ", coalescing "+coalesce+" ops" : ""));
 		System.out.println("Print initial account balances");
 		// Print initial account balances
-		for(int i=0;i<10;i++)
+		for(int i=0;i<account.length;i++)
 			System.out.println(account[i]);
 
 		// Get start time in milliseconds 
 		long start = System.currentTimeMillis(); 
 
 		System.out.println("Depositor and Withdrawal threads have been created");
-		/*
-		 * Interleave all threads
-		 */
-		for(int i=0; i<10; i++){
-			deposit[i].start();
-			withdraw[i].start();
+		Thread snapshotter = null;
+		if (snapshotEvery > 0) {
+			// Print consistent totals while the threads are running
+			AccountTable table = new AccountTable(account);
+			table.enableSnapshots();
+			long every = snapshotEvery;
+			snapshotter = new Thread(() -> {
+				try {
+					while (true) {
+						Thread.sleep(every);
+						AccountTable.Snapshot snapshot = table.snapshot();
+						System.out.println("Snapshot "+snapshot.epoch+": total balance "+snapshot.total);
+					}
+				} catch (InterruptedException e) {
+					// Run is over
+				}
+			});
+			snapshotter.setDaemon(true);
+			snapshotter.start();
 		}
+		if (exec.equals("platform")) {
+			/*
+			 * Interleave all threads
+			 */
+			for(int i=0; i<deposit.length; i++){
+				deposit[i].start();
+				withdraw[i].start();
+			}
 
-		
-		for(int i=0; i<10; i++){
+			
+			for(int i=0; i<deposit.length; i++){
+				try {
+					deposit[i].join();
+					withdraw[i].join();
+				} catch (InterruptedException e) {
+					// TODO Auto-generated catch block
+					e.printStackTrace();
+				}
+			}
+		} else if (exec.startsWith("partitioned:")) {
+			/*
+			 * Run the depositor and withdrawer loops of each account on its
+			 * owner thread, which changes the balance without locking
+			 */
+			PartitionedExecutor executor = new PartitionedExecutor(Integer.parseInt(exec.substring(12)));
+			for(int i=0; i<account.length; i++)
+				executor.claim(account[i]);
+			for(int i=0; i<deposit.length; i++){
+				executor.execute(account[i % account.length], deposit[i]);
+				executor.execute(account[i % account.length], withdraw[i]);
+			}
 			try {
-				deposit[i].join();
-				withdraw[i].join();
+				executor.close();
 			} catch (InterruptedException e) {
-				// TODO Auto-generated catch block
 				e.printStackTrace();
 			}
+		} else {
+			/*
+			 * Interleave the depositor and withdrawer loops as tasks on the executor
+			 */
+			ExecutorService executor = newExecutor(exec);
+			for(int i=0; i<deposit.length; i++){
+				executor.execute(deposit[i]);
+				executor.execute(withdraw[i]);
+			}
+			executor.shutdown();
+			try {
+				executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+			} catch (InterruptedException e) {
+				e.printStackTrace();
+			}
+		}
+		if (coalescing != null)
+			for(int i=0; i<coalescing.length; i++)
+				coalescing[i].close();
+		if (snapshotter != null)
+			snapshotter.interrupt();
+		if (events != null) {
+			try {
+				long recorded = events.recorded();
+				events.close();
+				System.out.println("Recorded "+recorded+" events to "+eventsFile);
+			} catch (IOException e) {
+				System.err.println("Cannot write event log " + eventsFile + ": " + e);
+			}
+		}
+		if (journal != null) {
+			try {
+				journal.close();
+				Journal.checkpoint(Paths.get(journalFile), account);
+			} catch (IOException e) {
+				System.err.println("Cannot close journal " + journalFile + ": " + e);
+			}
 		}
 		// Get elapsed time in milliseconds 
 		long elapsedTimeMillis = System.currentTimeMillis()-start; 
 
 		System.out.println("Print final account balances after all the child thread terminated...");
 		// Print final account balances after all the child thread terminated...	
-		for(int i=0;i<10;i++)
+		for(int i=0;i<account.length;i++)
 			System.out.println(account[i]);
 		// Get elapsed time in seconds 
 		float elapsedTimeSec = elapsedTimeMillis/1000F;
 		
 		System.out.println("Elapsed time in milliseconds "+elapsedTimeMillis);
 		System.out.println("Elapsed time in seconds is "+elapsedTimeSec);
+		if (mode.equals("actor"))
+			System.out.println("Mailbox queueing latency: "+AccountActors.shared().queueLatency().summary());
+		if (AccountStats.ENABLED) {
+			System.out.println("Contention statistics");
+			AccountStats.print(System.out, account);
+			if (statsFile != null) {
+				try (PrintStream out = new PrintStream(statsFile)) {
+					AccountStats.exportCsv(out, account);
+				} catch (IOException e) {
+					System.err.println("Cannot write statistics to " + statsFile + ": " + e);
+				}
+			}
+		}
+		if (journal != null) {
+			long ops = 2L * deposit.length * iterations;
+			System.out.println("Journal ("+durability+"): "+journal.appended()+" records, "+journal.syncs()+" syncs, "
+				+ (ops * 1000 / Math.max(1, elapsedTimeMillis))+" ops/s sustained");
+		}
 		
 		//  Get elapsed time in minutes 
 		float elapsedTimeMin = elapsedTimeMillis/(60*1000F); 
@@ -0,0 +1,115 @@
+package task4;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+
+/**
+ * Class AccountSlots
+ * Implements backing storage for the balances of SlotAccounts: long
+ * slots of cents in arrays shared by many accounts.
+ *
+ * Dense storage puts the slots next to each other, eight to a 64-byte
+ * cache line, so threads updating neighbouring accounts keep stealing
+ * the line from each other although they never touch the same balance
+ * (false sharing). Padded storage spaces the slots SPACING longs apart
+ * and leaves the same gap before the first one, so every balance has
+ * 128 bytes to itself: a whole cache line, and the pair of lines some
+ * processors prefetch together. Slots are handed out in creation order
+ * from fixed-size chunks that never move.
+ */
+public class AccountSlots {
+
+	/*
+	 * ------------
+	 * Data members
+	 * ------------
+	 */
+
+	/**
+	 * Longs between two padded slots, 128 bytes
+	 */
+	static final int SPACING = 16;
+
+	/**
+	 * Slots per chunk
+	 */
+	private static final int CHUNK = 1024;
+
+	/**
+	 * Handle for atomic access to slots
+	 */
+	static final VarHandle SLOT = MethodHandles.arrayElementVarHandle(long[].class);
+
+	/**
+	 * Padded slots used by AccountManager's padded mode, created on first use
+	 */
+	private static AccountSlots padded;
+
+	/**
+	 * Longs from one slot to the next, and before the first slot
+	 */
+	private final int stride;
+	private final int offset;
+
+	/**
+	 * Chunk slots are handed out from
+	 */
+	private long[] chunk;
+
+	/**
+	 * Slots of the chunk handed out so far
+	 */
+	private int used = CHUNK;
+
+	/*
+	 * ------------
+	 * Constructors
+	 * ------------
+	 */
+
+	/**
+	 * @param padded True to give every slot a cache line pair of its own,
+	 * false to pack slots densely
+	 */
+	public AccountSlots(boolean padded) {
+		this.stride = padded ? SPACING : 1;
+		this.offset = padded ? SPACING : 0;
+	}
+
+	/**
+	 * @return the padded slots shared by all padded-mode accounts
+	 */
+	public static synchronized AccountSlots padded() {
+		if (padded == null)
+			padded = new AccountSlots(true);
+		return padded;
+	}
+
+	/*
+	 * -------
+	 * Methods
+	 * -------
+	 */
+
+	/**
+	 * @return true if slots are spaced a cache line pair apart
+	 */
+	public boolean isPadded() {
+		return stride > 1;
+	}
+
+	/**
+	 * Creates an account whose balance lives in the next free slot
+	 * @param acc A unique integer that represents account number
+	 * @param name A string indicating human-readable customer's name
+	 * @param balance A double indicating account balance, rounded to cents
+	 * @return the new account
+	 */
+	public synchronized SlotAccount newAccount(int acc, String name, double balance) {
+		if (used == CHUNK) {
+			chunk = new long[offset + CHUNK * stride];
+			used = 0;
+		}
+		return new SlotAccount(acc, name, balance, chunk, offset + used++ * stride);
+	}
+}
@@ -0,0 +1,142 @@
+package task4;
+
+import java.io.PrintStream;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Class AccountStats
+ * Collects contention statistics of one account's critical section.
+ *
+ * Collection is switched on for the whole JVM with -Daccount.stats=true.
+ * The switch is a static final constant, so with collection off the JIT
+ * removes the instrumentation from Account entirely.
+ *
+ * Wait time runs from the attempt to enter the critical section to
+ * entering it, hold time from entering it to leaving it. Both histograms
+ * are only recorded while the critical section is held, so they need no
+ * synchronization of their own. Lock-free balance modes have no critical
+ * section and only count operations.
+ */
+public class AccountStats {
+
+	/**
+	 * True if statistics are collected
+	 */
+	public static final boolean ENABLED = Boolean.getBoolean("account.stats");
+
+	/*
+	 * ------------
+	 * Data members
+	 * ------------
+	 */
+
+	/**
+	 * Deposits and withdrawals made
+	 */
+	private final LongAdder ops = new LongAdder();
+
+	/**
+	 * Operations that found the critical section taken by another thread
+	 */
+	private final LongAdder contended = new LongAdder();
+
+	/**
+	 * Set while a monitor-mode critical section is held
+	 */
+	volatile boolean busy;
+
+	/**
+	 * Time spent waiting to enter the critical section
+	 */
+	private final LatencyHistogram wait = new LatencyHistogram();
+
+	/**
+	 * Time spent inside the critical section
+	 */
+	private final LatencyHistogram hold = new LatencyHistogram();
+
+	/*
+	 * -------
+	 * Methods
+	 * -------
+	 */
+
+	/**
+	 * Counts one operation
+	 * @param wasContended true if the critical section was taken on arrival
+	 */
+	void count(boolean wasContended) {
+		ops.increment();
+		if (wasContended)
+			contended.increment();
+	}
+
+	/**
+	 * Records the timings of one critical section; call with it still held
+	 * @param waitNanos Time spent waiting to enter
+	 * @param holdNanos Time spent inside
+	 */
+	void record(long waitNanos, long holdNanos) {
+		wait.record(waitNanos);
+		hold.record(holdNanos);
+	}
+
+	/**
+	 * @return operations counted so far
+	 */
+	public long ops() {
+		return ops.sum();
+	}
+
+	/**
+	 * @return fraction of operations that found the critical section taken
+	 */
+	public double contentionRatio() {
+		long n = ops.sum();
+		return (n == 0) ? 0 : (double) contended.sum() / n;
+	}
+
+	/**
+	 * @return wait-time histogram; read only once updates have stopped
+	 */
+	public LatencyHistogram waitTimes() {
+		return wait;
+	}
+
+	/**
+	 * @return hold-time histogram; read only once updates have stopped
+	 */
+	public LatencyHistogram holdTimes() {
+		return hold;
+	}
+
+	/**
+	 * Prints one line per account, for use once updates have stopped
+	 * @param out Stream to print to
+	 * @param account Accounts to report on
+	 */
+	public static void print(PrintStream out, Account[] account) {
+		out.println("Account\tOps\t\tContended\tWait p50/p99/max (ns)\t\tHold p50/p99/max (ns)");
+		for (Account a : account) {
+			AccountStats s = a.getStats();
+			out.printf("%d\t%,d\t%6.2f%%\t\t%d/%d/%d\t\t%d/%d/%d%n", a.getAcc(), s.ops(), 100 * s.contentionRatio(),
+				s.wait.percentile(50), s.wait.percentile(99), s.wait.max(),
+				s.hold.percentile(50), s.hold.percentile(99), s.hold.max());
+		}
+	}
+
+	/**
+	 * Writes the same figures as print() as CSV
+	 * @param out Stream to write to
+	 * @param account Accounts to report on
+	 */
+	public static void exportCsv(PrintStream out, Account[] account) {
+		out.println("acc,ops,contention_ratio,wait_p50,wait_p99,wait_max,wait_mean,hold_p50,hold_p99,hold_max,hold_mean");
+		for (Account a : account) {
+			AccountStats s = a.getStats();
+			out.println(a.getAcc() + "," + s.ops() + "," + s.contentionRatio()
+				+ "," + s.wait.percentile(50) + "," + s.wait.percentile(99) + "," + s.wait.max() + "," + s.wait.mean()
+				+ "," + s.hold.percentile(50) + "," + s.hold.percentile(99) + "," + s.hold.max() + "," + s.hold.mean());
+		}
+	}
+}
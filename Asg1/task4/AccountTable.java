@@ -0,0 +1,445 @@
+package task4;
+
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.LongUnaryOperator;
+
+/**
+ * Class AccountTable
+ * Implements a table of accounts supporting atomic transfers between them.
+ *
+ * Accounts are addressed by their index in the table. A transfer locks
+ * the lock stripes of all the accounts it touches, always in increasing
+ * stripe order, so two transfers can never wait on each other in a
+ * cycle and the table cannot deadlock. The number of stripes is fixed
+ * and independent of the number of accounts: transfers on accounts in
+ * different stripes run in parallel, and a million-account table does
+ * not need a million locks.
+ *
+ * Plain deposit() and withdraw() calls on the accounts do not take the
+ * stripe locks; they commute with transfers, so no money is lost, but
+ * only transfers are atomic with respect to each other.
+ *
+ * With snapshots enabled, snapshot() returns a point-in-time consistent
+ * view of all balances while updates keep running. Each snapshot starts
+ * a new epoch; the first update of an account in an epoch saves the
+ * balance it had when the epoch began, and the snapshot reads that saved
+ * balance for accounts updated since, and the live one for the rest. An
+ * update of the old epoch that reaches an account after that save is
+ * added to the saved balance, as the snapshot must include it.
+ * Updaters only bump a striped in-flight counter, so they never wait for
+ * a snapshot; a snapshot waits for the updates of the previous epoch to
+ * drain, and briefly takes every stripe lock to start its epoch so that
+ * no transfer straddles it.
+ */
+public class AccountTable {
+
+	/**
+	 * One leg of a multi-account transfer
+	 */
+	public static class Leg {
+		final int from, to;
+		final double amount;
+
+		/**
+		 * @param from Index of the account to withdraw from
+		 * @param to Index of the account to deposit into
+		 * @param amount Amount to move
+		 */
+		public Leg(int from, int to, double amount) {
+			this.from = from;
+			this.to = to;
+			this.amount = amount;
+		}
+	}
+
+	/**
+	 * Point-in-time view of all balances
+	 */
+	public static class Snapshot {
+		/**
+		 * Epoch the snapshot was taken at
+		 */
+		public final long epoch;
+
+		/**
+		 * Balance of every account, by index
+		 */
+		public final double[] balances;
+
+		/**
+		 * Sum of all balances
+		 */
+		public final double total;
+
+		Snapshot(long epoch, double[] balances) {
+			this.epoch = epoch;
+			this.balances = balances;
+			double sum = 0;
+			for (double b : balances)
+				sum += b;
+			this.total = sum;
+		}
+	}
+
+	/*
+	 * ------------
+	 * Data members
+	 * ------------
+	 */
+
+	/**
+	 * Number of in-flight counter slots per epoch parity
+	 */
+	private static final int SLOTS = 64;
+
+	/**
+	 * Longs between two in-flight counters, so each has its own cache line
+	 */
+	private static final int PAD = 16;
+
+	/**
+	 * Accounts in the table
+	 */
+	private final Account[] account;
+
+	/**
+	 * Lock stripes; account i belongs to stripe i & (stripes.length - 1)
+	 */
+	private final ReentrantLock[] stripes;
+
+	/**
+	 * Set once enableSnapshots() has been called
+	 */
+	private boolean snapshots;
+
+	/**
+	 * Current snapshot epoch
+	 */
+	private volatile long epoch;
+
+	/**
+	 * Updates in flight, per epoch parity and thread slot
+	 */
+	private final AtomicLongArray inflight = new AtomicLongArray(2 * SLOTS * PAD);
+
+	/*
+	 * ------------
+	 * Constructors
+	 * ------------
+	 */
+
+	/**
+	 * Uses four lock stripes per available processor
+	 * @param account Accounts in the table
+	 */
+	public AccountTable(Account[] account) {
+		this(account, 4 * Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * @param account Accounts in the table
+	 * @param stripes Number of lock stripes, rounded up to a power of two
+	 * and capped by the number of accounts
+	 */
+	public AccountTable(Account[] account, int stripes) {
+		this.account = account;
+		int n = 1;
+		while (n < stripes && n < account.length)
+			n <<= 1;
+		this.stripes = new ReentrantLock[n];
+		for (int i = 0; i < this.stripes.length; i++)
+			this.stripes[i] = new ReentrantLock();
+	}
+
+	/*
+	 * -------
+	 * Methods
+	 * -------
+	 */
+
+	/**
+	 * @return number of accounts
+	 */
+	public int size() {
+		return account.length;
+	}
+
+	/**
+	 * @param index Account index
+	 * @return the account
+	 */
+	public Account get(int index) {
+		return account[index];
+	}
+
+	/**
+	 * @param index Account index
+	 * @return the stripe index of the account
+	 */
+	private int stripe(int index) {
+		return index & (stripes.length - 1);
+	}
+
+	/**
+	 * Atomically moves money from one account to another
+	 * @param from Index of the account to withdraw from
+	 * @param to Index of the account to deposit into
+	 * @param amount Amount to move
+	 */
+	public void transfer(int from, int to, double amount) {
+		int a = stripe(from), b = stripe(to);
+		ReentrantLock first = stripes[Math.min(a, b)], second = stripes[Math.max(a, b)];
+		first.lock();
+		try {
+			second.lock();
+			try {
+				account[from].withdraw(amount);
+				account[to].deposit(amount);
+			} finally {
+				second.unlock();
+			}
+		} finally {
+			first.unlock();
+		}
+	}
+
+	/**
+	 * Atomically applies several transfers: no other transfer observes or
+	 * interleaves with some legs applied and others not
+	 * @param legs Transfers to apply
+	 */
+	public void transfer(Leg... legs) {
+		int[] order = new int[2 * legs.length];
+		for (int i = 0; i < legs.length; i++) {
+			order[2 * i] = stripe(legs[i].from);
+			order[2 * i + 1] = stripe(legs[i].to);
+		}
+		Arrays.sort(order);
+
+		// Lock every distinct stripe once, in increasing order
+		int locked = 0;
+		try {
+			for (int i = 0; i < order.length; i++) {
+				if (i > 0 && order[i] == order[i - 1])
+					continue;
+				stripes[order[i]].lock();
+				order[locked++] = order[i];
+			}
+			for (Leg leg : legs) {
+				account[leg.from].withdraw(leg.amount);
+				account[leg.to].deposit(leg.amount);
+			}
+		} finally {
+			while (locked > 0)
+				stripes[order[--locked]].unlock();
+		}
+	}
+
+	/**
+	 * Makes every account take part in snapshots. Must be called before
+	 * the accounts are shared with other threads.
+	 */
+	public void enableSnapshots() {
+		snapshots = true;
+		for (Account a : account)
+			a.setSnapshots(this);
+	}
+
+	/**
+	 * @param epoch Snapshot epoch
+	 * @param thread Thread slot
+	 * @return index of the in-flight counter of that slot for that epoch
+	 */
+	private static int counter(long epoch, int thread) {
+		return ((int) (epoch & 1) * SLOTS + thread) * PAD;
+	}
+
+	/**
+	 * @param epoch Snapshot epoch
+	 * @return index of the calling thread's in-flight counter for that epoch
+	 */
+	private static int slot(long epoch) {
+		return counter(epoch, (int) Thread.currentThread().getId() & (SLOTS - 1));
+	}
+
+	/**
+	 * Applies an update to an account, saving its balance first if this is
+	 * the first update of the account in the current epoch. Called by
+	 * Account once snapshots are enabled.
+	 * @param a Account to update
+	 * @param delta Signed amount
+	 */
+	void update(Account a, double delta) {
+		long e = enter();
+		try {
+			synchronized (a) {
+				if (a.snapshotEpoch < e) {
+					a.snapshotBalance = a.getBalance();
+					a.snapshotEpoch = e;
+				} else if (a.snapshotEpoch > e) {
+					// An update of the next epoch saved the balance first; this
+					// one still belongs before that snapshot
+					a.snapshotBalance += delta;
+				}
+				a.update(delta);
+			}
+		} finally {
+			inflight.getAndDecrement(slot(e));
+		}
+	}
+
+	/**
+	 * Replaces an account's balance with a function of itself in the same
+	 * way. Called by Account once snapshots are enabled.
+	 * @param a Account to update
+	 * @param charge New balance in cents from the current one
+	 * @return the change made, in cents
+	 */
+	long update(Account a, LongUnaryOperator charge) {
+		long e = enter();
+		try {
+			synchronized (a) {
+				if (a.snapshotEpoch < e) {
+					a.snapshotBalance = a.getBalance();
+					a.snapshotEpoch = e;
+				}
+				long delta = a.update(charge);
+				if (a.snapshotEpoch > e)
+					a.snapshotBalance += (double) delta / CentsAccount.CENTS_PER_UNIT;
+				return delta;
+			}
+		} finally {
+			inflight.getAndDecrement(slot(e));
+		}
+	}
+
+	/**
+	 * Counts the calling thread's update as in flight in the current epoch
+	 * @return the epoch, whose counter the caller must decrement once done
+	 */
+	private long enter() {
+		while (true) {
+			long e = epoch;
+			inflight.getAndIncrement(slot(e));
+			if (epoch == e)
+				return e;
+			// A snapshot started meanwhile; count in the new epoch instead
+			inflight.getAndDecrement(slot(e));
+		}
+	}
+
+	/**
+	 * Takes a consistent snapshot of all balances while updates continue
+	 * @return the balances as of the start of a new epoch
+	 * @throws IllegalStateException if snapshots are not enabled
+	 */
+	public synchronized Snapshot snapshot() {
+		if (!snapshots)
+			throw new IllegalStateException("Snapshots are not enabled");
+		// Start a new epoch while no transfer is half done
+		long e;
+		for (ReentrantLock stripe : stripes)
+			stripe.lock();
+		try {
+			e = ++epoch;
+		} finally {
+			for (int i = stripes.length - 1; i >= 0; i--)
+				stripes[i].unlock();
+		}
+
+		// Wait for updates still counted in the previous epoch
+		for (int t = 0; t < SLOTS; t++)
+			while (inflight.get(counter(e - 1, t)) != 0)
+				Thread.onSpinWait();
+
+		double[] balances = new double[account.length];
+		for (int i = 0; i < account.length; i++) {
+			Account a = account[i];
+			synchronized (a) {
+				balances[i] = (a.snapshotEpoch == e) ? a.snapshotBalance : a.getBalance();
+			}
+		}
+		return new Snapshot(e, balances);
+	}
+
+	/**
+	 * @return sum of all balances; exact only when no transfer is running
+	 */
+	public double total() {
+		double total = 0;
+		for (Account a : account)
+			total += a.getBalance();
+		return total;
+	}
+
+	/**
+	 * Measures transfer throughput under contention. Options: mode=,
+	 * accounts=, threads=, skew=, legs= (1 for single transfers),
+	 * stripes= and snapshots=true, plus the Bench options.
+	 */
+	public static void main(String[] args) {
+		Options options = null;
+		try {
+			options = new Options(args);
+		} catch (IllegalArgumentException e) {
+			System.err.println(e.getMessage() + "\nUsage: java task4.AccountTable [mode=" + AccountManager.MODES + "]"
+				+ " [accounts=N] [threads=N] [skew=0..1) [legs=N] [stripes=N] [snapshots=true] [warmups=N] [iterations=N] [millis=N]");
+			System.exit(1);
+		}
+		String mode = options.getString("mode", "monitor");
+		int n = options.getInt("accounts", 1000);
+		int threads = options.getInt("threads", 4);
+		int legs = options.getInt("legs", 1);
+		ZipfianGenerator zipf = new ZipfianGenerator(n, options.getDouble("skew", 0.99));
+
+		Account[] account = new Account[n];
+		for (int i = 0; i < n; i++)
+			account[i] = AccountManager.newAccount(mode, i, "Customer" + i, 1000);
+		AccountTable table = new AccountTable(account, options.getInt("stripes", 4 * Runtime.getRuntime().availableProcessors()));
+		double before = table.total();
+
+		// Optionally take snapshots during the run; transfers conserve the
+		// total, so every consistent snapshot must show the initial total
+		boolean snapshots = options.getString("snapshots", "false").equals("true");
+		long[] taken = new long[2];
+		Thread snapshotter = new Thread(() -> {
+			while (!Thread.currentThread().isInterrupted()) {
+				if (table.snapshot().total != before)
+					taken[1]++;
+				taken[0]++;
+			}
+		});
+		if (snapshots) {
+			table.enableSnapshots();
+			snapshotter.setDaemon(true);
+			snapshotter.start();
+		}
+
+		Bench.Result result = new Bench(options).run(threads, thread -> {
+			ThreadLocalRandom random = ThreadLocalRandom.current();
+			if (legs == 1) {
+				table.transfer(zipf.next(random.nextDouble()), zipf.next(random.nextDouble()), 10);
+			} else {
+				Leg[] batch = new Leg[legs];
+				for (int i = 0; i < legs; i++)
+					batch[i] = new Leg(zipf.next(random.nextDouble()), zipf.next(random.nextDouble()), 10);
+				table.transfer(batch);
+			}
+		});
+		System.out.println(mode + " accounts=" + n + " threads=" + threads + " legs=" + legs + " stripes=" + table.stripes.length);
+		System.out.println("Transfers: " + result);
+		if (snapshots) {
+			snapshotter.interrupt();
+			try {
+				snapshotter.join();
+			} catch (InterruptedException e) {
+				e.printStackTrace();
+			}
+			System.out.println("Snapshots: " + taken[0] + " taken, " + taken[1] + " inconsistent");
+		}
+		System.out.println("Total balance " + (table.total() == before ? "conserved" : "CHANGED") + ": " + table.total());
+	}
+}
@@ -0,0 +1,123 @@
+package task4;
+
+import java.util.function.LongUnaryOperator;
+
+/**
+ * Class ActorAccount
+ * Implements an account whose balance is changed only by its owner
+ * worker in AccountActors.
+ *
+ * deposit() and withdraw() still run on the caller's thread, but instead
+ * of taking a lock they publish a command to the owner's mailbox and
+ * return. getBalance() first waits until every command published before
+ * the call has been applied, so a thread always reads its own updates.
+ */
+public class ActorAccount extends Account {
+
+	/*
+	 * ------------
+	 * Data members
+	 * ------------
+	 */
+
+	/**
+	 * Mailbox of the owner worker
+	 */
+	private final RingMailbox mailbox;
+
+	/**
+	 * Balance in cents; written by the owner worker only, and read by
+	 * others after awaitApplied() has made the writes visible
+	 */
+	private long cents;
+
+	/*
+	 * ------------
+	 * Constructors
+	 * ------------
+	 */
+
+	/**
+	 * Assigns account number, name, balance and an owner worker.
+	 *
+	 * @param acc A unique integer that represents account number
+	 * @param name A string indicating human-readable customer's name
+	 * @param balance A double indicating account balance, rounded to cents
+	 * @param actors Workers to take an owner from
+	 */
+	public ActorAccount(int acc, String name, double balance, AccountActors actors) {
+		super(acc, name, 0);
+		this.mailbox = actors.assign();
+		this.cents = CentsAccount.toCents(balance);
+	}
+
+	/*
+	 * -------
+	 * Methods
+	 * -------
+	 */
+
+	/**
+	 * Accessor for account balance, once pending commands are applied
+	 * @return an account balance
+	 */
+	@Override
+	public double getBalance() {
+		mailbox.awaitApplied(mailbox.tail());
+		return (double) cents / CentsAccount.CENTS_PER_UNIT;
+	}
+
+	/**
+	 * Mutator for account balance, sent to the owner as the difference to
+	 * the current balance. Only exact while no other thread deposits or
+	 * withdraws.
+	 * @param balance A double that represents an account balance
+	 */
+	@Override
+	public void setBalance(double balance) {
+		checkOwner();
+		mailbox.awaitApplied(mailbox.tail());
+		mailbox.publish(this, CentsAccount.toCents(balance) - cents);
+	}
+
+	/**
+	 * Publishes the change to the owner instead of applying it
+	 * @param delta A double to add to the balance (negative to withdraw)
+	 */
+	@Override
+	protected void update(double delta) {
+		if (AccountStats.ENABLED)
+			getStats().count(false);
+		mailbox.publish(this, CentsAccount.toCents(delta));
+	}
+
+	/**
+	 * Publishes the change computed from the balance just read; only the
+	 * owner worker applies changes, so it cannot be read and written in
+	 * one step
+	 * @param charge New balance in cents from the current one
+	 * @return the change made, in cents
+	 */
+	@Override
+	protected long update(LongUnaryOperator charge) {
+		return updateFromRead(charge, false);
+	}
+
+	/**
+	 * Publishes the change to the owner worker as well; the caller owns
+	 * the account only in the sense that no other caller publishes
+	 * @param delta A double to add to the balance (negative to withdraw)
+	 */
+	@Override
+	protected void updateOwned(double delta) {
+		update(delta);
+	}
+
+	/**
+	 * Applies a change; called by the owner worker only
+	 * @param delta Signed amount in cents
+	 */
+	void applyOwned(long delta) {
+		cents += delta;
+	}
+}
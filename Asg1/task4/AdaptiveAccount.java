@@ -0,0 +1,302 @@
+package task4;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.LongUnaryOperator;
+
+/**
+ * Class AdaptiveAccount
+ * Implements an account that picks its balance representation at run
+ * time from the contention it sees.
+ *
+ * A cold account keeps its balance in one field of cents updated with
+ * compare-and-set, which is as cheap as it gets for one thread at a
+ * time. Failed compare-and-sets heat the account up and successful ones
+ * cool it down; once it is hot enough, it is promoted to striped cells,
+ * one cache-line-sized stripe per thread slot, so concurrent updates no
+ * longer fight over one field. Every stripe counts its own updates, and
+ * when a thread finds that no other stripe was touched during its last
+ * CHECK_EVERY updates, the account is demoted: the cells are folded back
+ * into the single field and dropped.
+ *
+ * The switch is invisible to callers, which keep calling deposit() and
+ * withdraw(). Like a striped account, a balance read while updates or a
+ * switch are under way may miss some of them, but one read after the
+ * updates finished is exact.
+ */
+public class AdaptiveAccount extends Account {
+
+	/*
+	 * ------------
+	 * Data members
+	 * ------------
+	 */
+
+	/**
+	 * Heat added by a failed compare-and-set on the single field; a
+	 * successful one takes away 1
+	 */
+	private static final int HEAT_STEP = 64;
+
+	/**
+	 * Heat at which the account is promoted to striped cells
+	 */
+	private static final int PROMOTE_HEAT = 1024;
+
+	/**
+	 * Updates of one stripe between checks for other active stripes; a
+	 * power of two
+	 */
+	private static final int CHECK_EVERY = 4096;
+
+	/**
+	 * Number of stripes, the number of processors rounded up to a power
+	 * of two
+	 */
+	private static final int STRIPES = Math.max(2, Integer.highestOneBit(Runtime.getRuntime().availableProcessors() * 2 - 1));
+
+	/**
+	 * Longs per stripe: 128 bytes, so two stripes never share a cache
+	 * line or an adjacent-line prefetch pair. A stripe holds its cents at
+	 * offset VALUE, its update count at COUNT and the other stripes'
+	 * counts it saw at its last check at SEEN.
+	 */
+	private static final int STRIDE = 16;
+	private static final int VALUE = 0;
+	private static final int COUNT = 1;
+	private static final int SEEN = 2;
+
+	/**
+	 * Handles used to update base and cells atomically
+	 */
+	private static final VarHandle BASE;
+	private static final VarHandle CELLS;
+
+	static {
+		try {
+			BASE = MethodHandles.lookup().findVarHandle(AdaptiveAccount.class, "base", long.class);
+			CELLS = MethodHandles.lookup().findVarHandle(AdaptiveAccount.class, "cells", AtomicLongArray.class);
+		} catch (ReflectiveOperationException e) {
+			throw new ExceptionInInitializerError(e);
+		}
+	}
+
+	/**
+	 * Balance in cents, apart from what the cells hold
+	 */
+	private volatile long base;
+
+	/**
+	 * Striped cells while the account is hot; null while it is cold
+	 */
+	private volatile AtomicLongArray cells;
+
+	/**
+	 * Contention seen on base; racy updates are good enough for a
+	 * heuristic, and it is only written while non-zero or contended so a
+	 * cold account stays read-mostly
+	 */
+	private int heat;
+
+	/**
+	 * Number of promotions and demotions so far
+	 */
+	private volatile int promotions;
+	private volatile int demotions;
+
+	/*
+	 * ------------
+	 * Constructors
+	 * ------------
+	 */
+
+	/**
+	 * Assigns account number, name and balance; the account starts cold.
+	 *
+	 * @param acc A unique integer that represents account number
+	 * @param name A string indicating human-readable customer's name
+	 * @param balance A double indicating account balance, rounded to cents
+	 */
+	public AdaptiveAccount(int acc, String name, double balance) {
+		super(acc, name, 0);
+		this.base = CentsAccount.toCents(balance);
+	}
+
+	/*
+	 * -------
+	 * Methods
+	 * -------
+	 */
+
+	/**
+	 * Accessor for account balance
+	 * @return an account balance
+	 */
+	@Override
+	public double getBalance() {
+		long sum = base;
+		AtomicLongArray cs = cells;
+		if (cs != null)
+			for (int i = 0; i < cs.length(); i += STRIDE)
+				sum += cs.get(i + VALUE);
+		return (double) sum / CentsAccount.CENTS_PER_UNIT;
+	}
+
+	/**
+	 * Mutator for account balance. Not atomic with respect to concurrent
+	 * updates, like setBalance() of a striped account.
+	 * @param balance A double that represents an account balance
+	 */
+	@Override
+	public void setBalance(double balance) {
+		checkOwner();
+		long cents = CentsAccount.toCents(balance);
+		AtomicLongArray cs = cells;
+		if (cs != null)
+			for (int i = 0; i < cs.length(); i += STRIDE)
+				cents -= cs.get(i + VALUE);
+		base = cents;
+	}
+
+	/**
+	 * @return true while the account is promoted to striped cells
+	 */
+	public boolean isStriped() {
+		return cells != null;
+	}
+
+	/**
+	 * @return number of times the account was promoted to striped cells
+	 */
+	public int getPromotions() {
+		return promotions;
+	}
+
+	/**
+	 * @return number of times the account was demoted to a single field
+	 */
+	public int getDemotions() {
+		return demotions;
+	}
+
+	/**
+	 * Applies a signed change to the balance in the current representation
+	 * @param delta A double to add to the balance (negative to withdraw)
+	 */
+	@Override
+	protected void update(double delta) {
+		long amount = CentsAccount.toCents(delta);
+		AtomicLongArray cs = cells;
+		if (cs != null) {
+			addToCell(cs, amount);
+			return;
+		}
+		long b = base;
+		if (BASE.compareAndSet(this, b, b + amount)) {
+			if (AccountStats.ENABLED)
+				getStats().count(false);
+			if (heat > 0)
+				heat--;
+			return;
+		}
+		if (AccountStats.ENABLED)
+			getStats().count(true);
+		int h = heat + HEAT_STEP;
+		heat = h;
+		if (h >= PROMOTE_HEAT && CELLS.compareAndSet(this, null, new AtomicLongArray(STRIPES * STRIDE))) {
+			heat = 0;
+			promotions++;
+		}
+		cs = cells;
+		if (cs != null)
+			addToCell(cs, amount);
+		else
+			BASE.getAndAdd(this, amount);
+	}
+
+	/**
+	 * Replaces the balance with a function of itself: by compare-and-set
+	 * of base while the account is cold, and from the balance just read
+	 * once it is promoted, as the cells cannot be updated together. An
+	 * update reaching cells promoted during the compare-and-set is kept
+	 * but not seen by charge.
+	 * @param charge New balance in cents from the current one
+	 * @return the change made, in cents
+	 */
+	@Override
+	protected long update(LongUnaryOperator charge) {
+		while (cells == null) {
+			long b = base;
+			long n = charge.applyAsLong(b);
+			if (BASE.compareAndSet(this, b, n))
+				return n - b;
+		}
+		return updateFromRead(charge, false);
+	}
+
+	/**
+	 * Applies a signed change on the owner thread: with a single writer
+	 * a cold account needs no compare-and-set, and a striped one drains
+	 * through the usual path until the owner's stripe demotes it
+	 * @param delta A double to add to the balance (negative to withdraw)
+	 */
+	@Override
+	protected void updateOwned(double delta) {
+		if (cells != null) {
+			update(delta);
+			return;
+		}
+		if (AccountStats.ENABLED)
+			getStats().count(false);
+		BASE.setRelease(this, base + CentsAccount.toCents(delta));
+	}
+
+	/**
+	 * Adds to the calling thread's stripe and demotes the account once
+	 * the other stripes have gone quiet
+	 * @param cs Cells read from the cells field
+	 * @param amount Cents to add
+	 */
+	private void addToCell(AtomicLongArray cs, long amount) {
+		if (AccountStats.ENABLED)
+			getStats().count(false);
+		int h = System.identityHashCode(Thread.currentThread());
+		int stripe = ((h ^ (h >>> 16)) & (STRIPES - 1)) * STRIDE;
+		cs.getAndAdd(stripe + VALUE, amount);
+		if (cells != cs) {
+			// Demoted meanwhile: the cells may have been folded into base
+			// before the add, so move whatever is left in the stripe
+			reclaim(cs, stripe);
+			return;
+		}
+		long n = cs.get(stripe + COUNT) + 1;
+		cs.lazySet(stripe + COUNT, n);
+		if ((n & (CHECK_EVERY - 1)) != 0)
+			return;
+		long others = 0;
+		for (int i = 0; i < cs.length(); i += STRIDE)
+			if (i != stripe)
+				others += cs.get(i + COUNT);
+		long seen = cs.get(stripe + SEEN);
+		cs.lazySet(stripe + SEEN, others);
+		if (others == seen && n > CHECK_EVERY && CELLS.compareAndSet(this, cs, null)) {
+			for (int i = 0; i < cs.length(); i += STRIDE)
+				reclaim(cs, i);
+			demotions++;
+		}
+	}
+
+	/**
+	 * Moves the cents of one stripe of retired cells into base. Every
+	 * stripe is emptied with getAndSet(), so a concurrent reclaim by the
+	 * demoting thread and by a late writer move each cent exactly once.
+	 * @param cs Cells no longer installed
+	 * @param stripe Offset of the stripe
+	 */
+	private void reclaim(AtomicLongArray cs, int stripe) {
+		long v = cs.getAndSet(stripe + VALUE, 0);
+		if (v != 0)
+			BASE.getAndAdd(this, v);
+	}
+}
@@ -0,0 +1,375 @@
+package task4;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Class AsyncAccounts
+ * Implements a non-blocking facade over an AccountTable: deposits,
+ * withdrawals and transfers are queued and their results delivered
+ * through CompletableFutures.
+ *
+ * Accounts are split into shards by index, and each shard has one
+ * worker thread that performs all queued operations on its accounts.
+ * The calling thread only appends to the shard's queue, so it never
+ * waits for a contended account. The worker takes everything queued so
+ * far as one batch and adds up the deposits and withdrawals of each
+ * account, so an account is updated, and its lock taken, once per batch
+ * instead of once per operation, and always by the same thread.
+ * Transfers run on the worker of the source account through
+ * AccountTable.transfer() and stay atomic.
+ *
+ * Futures complete on the worker thread, so dependent actions attached
+ * with thenApply() and the like run there too unless their *Async
+ * variants are used; they should not block.
+ */
+public class AsyncAccounts {
+
+	/**
+	 * One queued operation
+	 */
+	private static final class Op {
+		final int index;
+		final int to;
+		final double amount;
+		final CompletableFuture<Void> done = new CompletableFuture<Void>();
+
+		/**
+		 * @param index Account to change, or source of a transfer
+		 * @param to Destination of a transfer, or -1
+		 * @param amount Signed change, or amount to transfer
+		 */
+		Op(int index, int to, double amount) {
+			this.index = index;
+			this.to = to;
+			this.amount = amount;
+		}
+	}
+
+	/*
+	 * ------------
+	 * Data members
+	 * ------------
+	 */
+
+	/**
+	 * Largest number of operations a worker takes as one batch
+	 */
+	private static final int MAX_BATCH = 1024;
+
+	/**
+	 * Queued operation telling a worker to stop
+	 */
+	private static final Op STOP = new Op(-1, -1, 0);
+
+	/**
+	 * Accounts operated on
+	 */
+	private final AccountTable table;
+
+	/**
+	 * Worker of each shard; account i belongs to shard i % shards.length
+	 */
+	private final Shard[] shards;
+
+	/**
+	 * Operations performed and account updates they took
+	 */
+	private final LongAdder operations = new LongAdder();
+	private final LongAdder updates = new LongAdder();
+
+	/**
+	 * Set by close()
+	 */
+	private volatile boolean closed;
+
+	/*
+	 * ------------
+	 * Constructors
+	 * ------------
+	 */
+
+	/**
+	 * Uses one shard per available processor
+	 * @param table Accounts to operate on
+	 */
+	public AsyncAccounts(AccountTable table) {
+		this(table, Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * Starts the workers as daemon threads
+	 * @param table Accounts to operate on
+	 * @param shards Number of shards
+	 */
+	public AsyncAccounts(AccountTable table, int shards) {
+		this.table = table;
+		this.shards = new Shard[Math.max(1, Math.min(shards, table.size()))];
+		for (int s = 0; s < this.shards.length; s++) {
+			this.shards[s] = new Shard(s);
+			this.shards[s].start();
+		}
+	}
+
+	/*
+	 * -------
+	 * Methods
+	 * -------
+	 */
+
+	/**
+	 * @param index Account index
+	 * @param amount A double that represents a deposit amount
+	 * @return a future completed once the deposit is applied
+	 */
+	public CompletableFuture<Void> depositAsync(int index, double amount) {
+		return submit(new Op(index, -1, amount));
+	}
+
+	/**
+	 * @param index Account index
+	 * @param amount A double that represents a withdrawal amount
+	 * @return a future completed once the withdrawal is applied
+	 */
+	public CompletableFuture<Void> withdrawAsync(int index, double amount) {
+		return submit(new Op(index, -1, -amount));
+	}
+
+	/**
+	 * @param from Index of the account to withdraw from
+	 * @param to Index of the account to deposit into
+	 * @param amount Amount to move
+	 * @return a future completed once both accounts are changed
+	 */
+	public CompletableFuture<Void> transferAsync(int from, int to, double amount) {
+		if (to < 0 || to >= table.size())
+			throw new IndexOutOfBoundsException("No account at index " + to);
+		return submit(new Op(from, to, amount));
+	}
+
+	/**
+	 * Queues an operation with the worker of its account
+	 * @param op Operation to queue
+	 * @return the operation's future
+	 */
+	private CompletableFuture<Void> submit(Op op) {
+		if (op.index < 0 || op.index >= table.size())
+			throw new IndexOutOfBoundsException("No account at index " + op.index);
+		if (closed) {
+			op.done.completeExceptionally(new IllegalStateException("Async accounts are closed"));
+			return op.done;
+		}
+		shards[op.index % shards.length].queue.add(op);
+		return op.done;
+	}
+
+	/**
+	 * @return average number of operations per account update so far
+	 */
+	public double batching() {
+		long n = updates.sum();
+		return (n == 0) ? 0 : (double) operations.sum() / n;
+	}
+
+	/**
+	 * Stops the workers once they have performed every operation queued
+	 * before the call; operations submitted afterwards fail. Call it once
+	 * no thread submits operations any more.
+	 * @throws InterruptedException if interrupted while waiting for the workers
+	 */
+	public void close() throws InterruptedException {
+		closed = true;
+		for (Shard s : shards)
+			s.queue.add(STOP);
+		for (Shard s : shards) {
+			s.join();
+			// Fail what raced with close() and arrived after STOP
+			for (Op op; (op = s.queue.poll()) != null; )
+				op.done.completeExceptionally(new IllegalStateException("Async accounts are closed"));
+		}
+	}
+
+	/**
+	 * Worker performing the operations on one shard's accounts
+	 */
+	private class Shard extends Thread {
+		/**
+		 * Operations waiting for this worker
+		 */
+		final LinkedBlockingQueue<Op> queue = new LinkedBlockingQueue<Op>();
+
+		/**
+		 * Net change of each account of the shard in the current batch, by
+		 * index / shards.length
+		 */
+		private final double[] pending;
+
+		/**
+		 * Batch in which each account of the shard last had a pending
+		 * change, by index / shards.length
+		 */
+		private final int[] seen;
+
+		/**
+		 * Number of the current batch, starting at 1
+		 */
+		private int batches;
+
+		/**
+		 * Accounts with a pending change, by table index
+		 */
+		private final int[] touched = new int[MAX_BATCH];
+
+		Shard(int index) {
+			super("async-accounts-" + index);
+			setDaemon(true);
+			pending = new double[(table.size() - index + shards.length - 1) / shards.length];
+			seen = new int[pending.length];
+		}
+
+		public void run() {
+			List<Op> batch = new ArrayList<Op>(MAX_BATCH);
+			while (true) {
+				try {
+					batch.add(queue.take());
+				} catch (InterruptedException e) {
+					return;
+				}
+				queue.drainTo(batch, MAX_BATCH - 1);
+				boolean stop = apply(batch);
+				batch.clear();
+				if (stop)
+					return;
+			}
+		}
+
+		/**
+		 * Performs one batch and completes its futures
+		 * @param batch Operations in queue order
+		 * @return true if the batch ends with STOP
+		 */
+		private boolean apply(List<Op> batch) {
+			int n = 0;
+			boolean stop = false;
+			batches++;
+			for (Op op : batch) {
+				if (op == STOP) {
+					stop = true;
+				} else if (op.to < 0) {
+					int local = op.index / shards.length;
+					if (seen[local] != batches) {
+						seen[local] = batches;
+						pending[local] = 0;
+						touched[n++] = op.index;
+					}
+					pending[local] += op.amount;
+				}
+			}
+
+			// One update per account, then the transfers in queue order
+			for (int i = 0; i < n; i++) {
+				int local = touched[i] / shards.length;
+				try {
+					table.get(touched[i]).apply(pending[local]);
+				} catch (RuntimeException e) {
+					fail(batch, touched[i], e);
+				}
+			}
+			updates.add(n);
+			for (Op op : batch) {
+				if (op == STOP || op.done.isDone())
+					continue;
+				if (op.to >= 0) {
+					try {
+						table.transfer(op.index, op.to, op.amount);
+						updates.increment();
+					} catch (RuntimeException e) {
+						op.done.completeExceptionally(e);
+						continue;
+					}
+				}
+				op.done.complete(null);
+				operations.increment();
+			}
+			return stop;
+		}
+
+		/**
+		 * Fails the deposits and withdrawals of one account in a batch
+		 * @param batch Current batch
+		 * @param index Account whose update failed
+		 * @param e Failure
+		 */
+		private void fail(List<Op> batch, int index, RuntimeException e) {
+			for (Op op : batch)
+				if (op != STOP && op.index == index && op.to < 0)
+					op.done.completeExceptionally(e);
+		}
+	}
+
+	/**
+	 * Compares blocking deposits and withdrawals with asynchronous ones.
+	 *
+	 * Options: mode=monitor, accounts=1000, threads=4 (calling threads),
+	 * shards=#processors, skew=0.99, window=256 (each thread waits for
+	 * its oldest future once this many are outstanding), plus warmups=,
+	 * iterations= and millis= (see Bench). Latency is what the caller sees.
+	 */
+	public static void main(String[] args) {
+		Options options = null;
+		try {
+			options = new Options(args);
+		} catch (IllegalArgumentException e) {
+			System.err.println(e.getMessage() + "\nUsage: java task4.AsyncAccounts [mode=" + AccountManager.MODES + "]"
+				+ " [accounts=N] [threads=N] [shards=N] [skew=0..1) [window=N] [warmups=N] [iterations=N] [millis=N]");
+			System.exit(1);
+		}
+		String mode = options.getString("mode", "monitor");
+		int n = options.getInt("accounts", 1000);
+		int threads = options.getInt("threads", 4);
+		int window = options.getInt("window", 256);
+		ZipfianGenerator zipf = new ZipfianGenerator(n, options.getDouble("skew", 0.99));
+		Bench bench = new Bench(options);
+
+		Account[] account = new Account[n];
+		for (int i = 0; i < n; i++)
+			account[i] = AccountManager.newAccount(mode, i, "Customer" + i, 1000);
+		AccountTable table = new AccountTable(account);
+
+		Bench.Result blocking = bench.run(threads, thread -> {
+			ThreadLocalRandom random = ThreadLocalRandom.current();
+			// apply() as the shards do, not deposit()/withdraw() and their
+			// slowed-down loops, so both runs do the same work per update
+			account[zipf.next(random.nextDouble())].apply(random.nextBoolean() ? 10 : -10);
+		});
+
+		AsyncAccounts async = new AsyncAccounts(table, options.getInt("shards", Runtime.getRuntime().availableProcessors()));
+		List<List<CompletableFuture<Void>>> outstanding = new ArrayList<List<CompletableFuture<Void>>>(threads);
+		for (int t = 0; t < threads; t++)
+			outstanding.add(new ArrayList<CompletableFuture<Void>>());
+		Bench.Result result = bench.run(threads, thread -> {
+			ThreadLocalRandom random = ThreadLocalRandom.current();
+			int index = zipf.next(random.nextDouble());
+			List<CompletableFuture<Void>> mine = outstanding.get(thread);
+			mine.add(random.nextBoolean() ? async.depositAsync(index, 10) : async.withdrawAsync(index, 10));
+			if (mine.size() >= window) {
+				CompletableFuture.allOf(mine.toArray(new CompletableFuture<?>[0])).join();
+				mine.clear();
+			}
+		});
+		try {
+			async.close();
+		} catch (InterruptedException e) {
+			e.printStackTrace();
+		}
+
+		System.out.println(mode + " accounts=" + n + " threads=" + threads + " shards=" + async.shards.length);
+		System.out.println("Blocking:     " + blocking);
+		System.out.println("Asynchronous: " + result);
+		System.out.printf("Operations per account update: %.1f%n", async.batching());
+	}
+}
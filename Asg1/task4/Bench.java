@@ -0,0 +1,270 @@
+package task4;
+
+import java.util.concurrent.BrokenBarrierException;
+import java.util.concurrent.CyclicBarrier;
+
+/**
+ * Class Bench
+ * Implements a small multi-threaded microbenchmark harness.
+ *
+ * A benchmark runs a number of warm-up iterations, whose results are
+ * thrown away so the JIT can settle, followed by measured iterations of
+ * fixed duration. Every thread calls the operation in a tight loop until
+ * the iteration ends; throughput counts every call, while latency is
+ * sampled on one call out of SAMPLE_EVERY to keep timer overhead off the
+ * measured path. Thread start-up is kept out of the measurement by
+ * starting all threads once and lining them up on a barrier. If the
+ * operation throws, the failing thread interrupts the calling one, all
+ * threads are stopped and run() throws instead of waiting for ever at
+ * the barrier. One Bench runs one benchmark at a time.
+ */
+public class Bench {
+
+	/**
+	 * Operation under test
+	 */
+	public interface Task {
+		/**
+		 * Performs one operation
+		 * @param thread Index of the calling benchmark thread
+		 */
+		void run(int thread);
+	}
+
+	/**
+	 * Outcome of the measured iterations of one benchmark
+	 */
+	public static class Result {
+		/**
+		 * Operations per second over all threads
+		 */
+		public final double opsPerSec;
+
+		/**
+		 * Sampled latencies of single operations
+		 */
+		public final LatencyHistogram latency;
+
+		Result(double opsPerSec, LatencyHistogram latency) {
+			this.opsPerSec = opsPerSec;
+			this.latency = latency;
+		}
+
+		public String toString() {
+			return String.format("%,14.0f ops/s  %s", opsPerSec, latency.summary());
+		}
+	}
+
+	/*
+	 * ------------
+	 * Data members
+	 * ------------
+	 */
+
+	/**
+	 * One call out of this many is timed individually
+	 */
+	private static final int SAMPLE_EVERY = 16;
+
+	/**
+	 * Number of discarded iterations
+	 */
+	private final int warmups;
+
+	/**
+	 * Number of measured iterations
+	 */
+	private final int iterations;
+
+	/**
+	 * Duration of each iteration in milliseconds
+	 */
+	private final long millis;
+
+	/**
+	 * Cleared by the harness to end the current iteration
+	 */
+	private volatile boolean running;
+
+	/**
+	 * Set by the harness once no more iterations follow
+	 */
+	private volatile boolean finished;
+
+	/**
+	 * Thread in run(), interrupted by a worker whose task failed
+	 */
+	private Thread caller;
+
+	/*
+	 * ------------
+	 * Constructors
+	 * ------------
+	 */
+
+	/**
+	 * @param warmups Number of discarded iterations
+	 * @param iterations Number of measured iterations
+	 * @param millis Duration of each iteration in milliseconds
+	 */
+	public Bench(int warmups, int iterations, long millis) {
+		this.warmups = warmups;
+		this.iterations = iterations;
+		this.millis = millis;
+	}
+
+	/**
+	 * Reads warmups=, iterations= and millis= from the options
+	 * @param options Command line options
+	 */
+	public Bench(Options options) {
+		this(options.getInt("warmups", 3), options.getInt("iterations", 5), options.getLong("millis", 1000));
+	}
+
+	/*
+	 * -------
+	 * Methods
+	 * -------
+	 */
+
+	/**
+	 * Runs one benchmark
+	 * @param threads Number of threads calling the task concurrently
+	 * @param task Operation to measure
+	 * @return throughput and latency over the measured iterations
+	 * @throws IllegalStateException if the task throws, with its exception
+	 * as the cause, or if the calling thread is interrupted
+	 */
+	public Result run(int threads, Task task) {
+		caller = Thread.currentThread();
+		Worker[] workers = new Worker[threads];
+		CyclicBarrier barrier = new CyclicBarrier(threads + 1);
+		for (int t = 0; t < threads; t++) {
+			workers[t] = new Worker(t, task, barrier);
+			workers[t].start();
+		}
+
+		long ops = 0;
+		long nanos = 0;
+		LatencyHistogram latency = new LatencyHistogram();
+		try {
+			for (int i = 0; i < warmups + iterations; i++) {
+				boolean measured = i >= warmups;
+				for (Worker w : workers)
+					w.reset();
+				running = true;
+				barrier.await();
+				long start = System.nanoTime();
+				Thread.sleep(millis);
+				running = false;
+				barrier.await();
+				long elapsed = System.nanoTime() - start;
+				if (measured) {
+					nanos += elapsed;
+					for (Worker w : workers) {
+						ops += w.ops;
+						latency.add(w.latency);
+					}
+				}
+			}
+			finished = true;
+			barrier.await();
+			for (Worker w : workers)
+				w.join();
+		} catch (InterruptedException | BrokenBarrierException e) {
+			stop(workers);
+			for (Worker w : workers)
+				if (w.failure != null)
+					throw new IllegalStateException("Benchmark task failed in thread " + w.index, w.failure);
+			throw new IllegalStateException("Benchmark interrupted", e);
+		} finally {
+			running = false;
+			finished = false;
+		}
+		return new Result(ops * 1e9 / nanos, latency);
+	}
+
+	/**
+	 * Ends the benchmark early: interrupts the workers, which leave the
+	 * barrier or the loop they are in, and waits for them to end
+	 * @param workers Workers of the benchmark
+	 */
+	private void stop(Worker[] workers) {
+		running = false;
+		finished = true;
+		for (Worker w : workers)
+			w.interrupt();
+		for (Worker w : workers)
+			while (w.isAlive())
+				try {
+					w.join();
+				} catch (InterruptedException e) {
+					// Another failing worker; keep waiting
+				}
+		// Clear interrupts of workers that failed after the first one
+		Thread.interrupted();
+	}
+
+	/**
+	 * Thread repeatedly calling the task during each iteration
+	 */
+	private class Worker extends Thread {
+		private final int index;
+		private final Task task;
+		private final CyclicBarrier barrier;
+
+		/**
+		 * Calls made in the current iteration; read after the barrier
+		 */
+		long ops;
+
+		/**
+		 * Sampled latencies of the current iteration
+		 */
+		final LatencyHistogram latency = new LatencyHistogram();
+
+		/**
+		 * Exception thrown by the task, if any; read after join()
+		 */
+		Throwable failure;
+
+		Worker(int index, Task task, CyclicBarrier barrier) {
+			this.index = index;
+			this.task = task;
+			this.barrier = barrier;
+		}
+
+		void reset() {
+			ops = 0;
+			latency.reset();
+		}
+
+		public void run() {
+			try {
+				while (true) {
+					barrier.await();
+					if (finished)
+						return;
+					long n = 0;
+					while (running) {
+						if (n % SAMPLE_EVERY == 0) {
+							long t0 = System.nanoTime();
+							task.run(index);
+							latency.record(System.nanoTime() - t0);
+						} else {
+							task.run(index);
+						}
+						n++;
+					}
+					ops = n;
+					barrier.await();
+				}
+			} catch (InterruptedException | BrokenBarrierException e) {
+				// Stopped by the harness
+			} catch (RuntimeException | Error e) {
+				failure = e;
+				caller.interrupt();
+			}
+		}
+	}
+}
@@ -0,0 +1,407 @@
+package task4;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.LongUnaryOperator;
+
+/**
+ * Class CentsAccount
+ * Implements an account whose balance is a fixed-point number of cents
+ * updated with compare-and-set instead of a monitor.
+ *
+ * deposit()/withdraw() keep their double API (amounts are rounded to the
+ * nearest cent); depositCents()/withdrawCents() take minor units directly
+ * and skip the fake computations. All of them go through apply(), so
+ * journals, event logs, snapshots and owners see every change.
+ *
+ * Funds can also be held: reserve() sets aside an amount if the balance
+ * not yet held covers it, and the hold is later either committed, which
+ * withdraws it, or released. Holds, tryWithdraw() and
+ * withdrawWhenAvailable() never take the balance below what is held, so
+ * used alone they never overdraw the account; withdraw() and
+ * setBalance() stay unchecked.
+ */
+public class CentsAccount extends Account {
+
+	/**
+	 * Funds set aside by reserve() until they are committed or released
+	 */
+	public static final class Hold {
+		/**
+		 * Account the funds are held on
+		 */
+		public final CentsAccount account;
+
+		/**
+		 * Amount held in cents
+		 */
+		public final long cents;
+
+		/**
+		 * Set once the hold is committed or released
+		 */
+		private final AtomicBoolean settled = new AtomicBoolean();
+
+		/**
+		 * @param account Account the funds are held on
+		 * @param cents Amount held in cents
+		 */
+		private Hold(CentsAccount account, long cents) {
+			this.account = account;
+			this.cents = cents;
+		}
+	}
+
+	/*
+	 * ------------
+	 * Data members
+	 * ------------
+	 */
+
+	/**
+	 * Number of cents in one unit of currency
+	 */
+	public static final long CENTS_PER_UNIT = 100;
+
+	/**
+	 * Handle used to update cents atomically
+	 */
+	private static final VarHandle CENTS;
+
+	/**
+	 * Handle used to update held atomically
+	 */
+	private static final VarHandle HELD;
+
+	static {
+		try {
+			CENTS = MethodHandles.lookup().findVarHandle(CentsAccount.class, "cents", long.class);
+			HELD = MethodHandles.lookup().findVarHandle(CentsAccount.class, "held", long.class);
+		} catch (ReflectiveOperationException e) {
+			throw new ExceptionInInitializerError(e);
+		}
+	}
+
+	/**
+	 * Attribute that presents an account balance in cents
+	 */
+	private volatile long cents;
+
+	/**
+	 * Cents set aside by holds that are neither committed nor released
+	 */
+	private volatile long held;
+
+	/**
+	 * Threads blocked in withdrawWhenAvailable(); updated under fundsLock
+	 */
+	private volatile int waiters;
+
+	/**
+	 * Lock and condition withdrawWhenAvailable() waits on for funds
+	 */
+	private final ReentrantLock fundsLock = new ReentrantLock();
+	private final Condition funds = fundsLock.newCondition();
+
+	/*
+	 * ------------
+	 * Constructors
+	 * ------------
+	 */
+
+	/**
+	 * Assigns account number, name and balance.
+	 *
+	 * @param acc A unique integer that represents account number
+	 * @param name A string indicating human-readable customer's name
+	 * @param balance A double indicating account balance, rounded to cents
+	 */
+	public CentsAccount(int acc, String name, double balance) {
+		super(acc, name, 0);
+		this.cents = toCents(balance);
+	}
+
+	/*
+	 * -------
+	 * Methods
+	 * -------
+	 */
+
+	/**
+	 * Converts an amount of currency to cents
+	 * @param amount A double amount of currency
+	 * @return the amount rounded to the nearest cent
+	 */
+	public static long toCents(double amount) {
+		return Math.round(amount * CENTS_PER_UNIT);
+	}
+
+	/**
+	 * Accessor for account balance
+	 * @return an account balance
+	 */
+	@Override
+	public double getBalance() {
+		return (double) cents / CENTS_PER_UNIT;
+	}
+
+	/**
+	 * Mutator for account balance
+	 * @param balance A double that represents an account balance
+	 */
+	@Override
+	public void setBalance(double balance) {
+		checkOwner();
+		cents = toCents(balance);
+		signalFunds();
+	}
+
+	/**
+	 * Accessor for account balance in cents
+	 * @return an account balance in cents
+	 */
+	public long getCents() {
+		return cents;
+	}
+
+	/**
+	 * Deposits a number of cents into this account
+	 * @param amount A long that represents a deposit amount in cents
+	 */
+	public void depositCents(long amount) {
+		apply((double) amount / CENTS_PER_UNIT);
+	}
+
+	/**
+	 * Withdraws a number of cents from this account
+	 * @param amount A long that represents a withdrawal amount in cents
+	 */
+	public void withdrawCents(long amount) {
+		apply(-(double) amount / CENTS_PER_UNIT);
+	}
+
+	/**
+	 * Applies a signed change to the balance without locking
+	 * @param delta A double to add to the balance (negative to withdraw)
+	 */
+	@Override
+	protected void update(double delta) {
+		if (AccountStats.ENABLED)
+			getStats().count(false);
+		long amount = toCents(delta);
+		CENTS.getAndAdd(this, amount);
+		if (amount > 0)
+			signalFunds();
+	}
+
+	/**
+	 * Replaces the balance with a function of itself by compare-and-set,
+	 * retried if a concurrent change got in between
+	 * @param charge New balance in cents from the current one
+	 * @return the change made, in cents
+	 */
+	@Override
+	protected long update(LongUnaryOperator charge) {
+		while (true) {
+			long c = cents;
+			long n = charge.applyAsLong(c);
+			if (CENTS.compareAndSet(this, c, n)) {
+				if (n > c)
+					signalFunds();
+				return n - c;
+			}
+		}
+	}
+
+	/**
+	 * Applies a signed change on the owner thread with a plain read and a
+	 * release write of cents, which needs no full fence. Safe as every
+	 * other change of cents is rejected while the account is owned.
+	 * @param delta A double to add to the balance (negative to withdraw)
+	 */
+	@Override
+	protected void updateOwned(double delta) {
+		if (AccountStats.ENABLED)
+			getStats().count(false);
+		long amount = toCents(delta);
+		CENTS.setRelease(this, cents + amount);
+		if (amount > 0)
+			signalFunds();
+	}
+
+	/**
+	 * Accessor for funds set aside by holds
+	 * @return cents held
+	 */
+	public long getHeldCents() {
+		return held;
+	}
+
+	/**
+	 * Accessor for funds neither withdrawn nor held. The two values are
+	 * read one after the other, so under concurrent holds the result can
+	 * be momentarily off by a hold being placed or committed.
+	 * @return balance minus held funds, in cents
+	 */
+	public long getAvailableCents() {
+		long h = held;
+		return cents - h;
+	}
+
+	/**
+	 * Holds an amount if enough of the balance is not held yet
+	 * @param amount A double that represents the amount to hold
+	 * @return the hold, or null if the available funds do not cover it
+	 * @throws IllegalArgumentException if the amount is negative
+	 */
+	public Hold reserve(double amount) {
+		return reserveCents(toCents(amount));
+	}
+
+	/**
+	 * Holds a number of cents if enough of the balance is not held yet.
+	 *
+	 * held is read before cents: commit() lowers cents before held, so a
+	 * commit racing with the check can only make the funds look smaller
+	 * than they are, and a concurrent hold or commit changes held and
+	 * fails the compare-and-set.
+	 * @param amount A long that represents the amount to hold in cents
+	 * @return the hold, or null if the available funds do not cover it
+	 * @throws IllegalArgumentException if the amount is negative
+	 * @throws IllegalStateException if another thread owns the account
+	 */
+	public Hold reserveCents(long amount) {
+		if (amount < 0)
+			throw new IllegalArgumentException("Cannot hold a negative amount: " + amount);
+		// Rejected up front, so a non-owner never places a hold it cannot commit
+		checkOwner();
+		while (true) {
+			long h = held;
+			if (cents - h < amount)
+				return null;
+			if (HELD.compareAndSet(this, h, h + amount))
+				return new Hold(this, amount);
+		}
+	}
+
+	/**
+	 * Withdraws held funds
+	 * @param hold Hold placed on this account by reserve()
+	 * @throws IllegalArgumentException if the hold is on another account
+	 * @throws IllegalStateException if the hold is already committed or
+	 * released, or another thread owns the account
+	 */
+	public void commit(Hold hold) {
+		// Before settling, so a rejected commit leaves the hold in place
+		checkOwner();
+		settle(hold);
+		// Balance first, so held never exceeds what is left to cover it
+		apply(-(double) hold.cents / CENTS_PER_UNIT);
+		HELD.getAndAdd(this, -hold.cents);
+	}
+
+	/**
+	 * Makes held funds available again
+	 * @param hold Hold placed on this account by reserve()
+	 * @throws IllegalArgumentException if the hold is on another account
+	 * @throws IllegalStateException if the hold is already committed or
+	 * released, or another thread owns the account
+	 */
+	public void release(Hold hold) {
+		checkOwner();
+		settle(hold);
+		HELD.getAndAdd(this, -hold.cents);
+		signalFunds();
+	}
+
+	/**
+	 * Marks a hold as committed or released
+	 * @param hold Hold placed on this account by reserve()
+	 */
+	private void settle(Hold hold) {
+		if (hold.account != this)
+			throw new IllegalArgumentException("Hold is on account " + hold.account.getAcc() + ", not " + getAcc());
+		if (!hold.settled.compareAndSet(false, true))
+			throw new IllegalStateException("Hold of " + hold.cents + " cents is already settled");
+	}
+
+	/**
+	 * Withdraws an amount if the available funds cover it
+	 * @param amount A double that represents a withdrawal amount
+	 * @return false if the funds were not available
+	 */
+	public boolean tryWithdraw(double amount) {
+		Hold hold = reserve(amount);
+		if (hold == null)
+			return false;
+		commit(hold);
+		return true;
+	}
+
+	/**
+	 * Withdraws an amount, waiting until the available funds cover it
+	 * @param amount A double that represents a withdrawal amount
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	public void withdrawWhenAvailable(double amount) throws InterruptedException {
+		withdrawWhenAvailable(amount, Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * Withdraws an amount, waiting at most the given time until the
+	 * available funds cover it.
+	 *
+	 * Waiting threads sleep on a condition of this account that is only
+	 * signalled when its funds grow, and only while a thread waits, so
+	 * neither waiters nor depositors poll. A waiter registers before it
+	 * checks the funds once more and a depositor adds funds before it
+	 * looks for waiters, so one of them always sees the other.
+	 * @param amount A double that represents a withdrawal amount
+	 * @param timeout Longest time to wait
+	 * @param unit Unit of timeout
+	 * @return false if the funds did not become available in time
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	public boolean withdrawWhenAvailable(double amount, long timeout, TimeUnit unit) throws InterruptedException {
+		long cents = toCents(amount);
+		Hold hold = reserveCents(cents);
+		if (hold == null) {
+			long nanos = unit.toNanos(timeout);
+			fundsLock.lockInterruptibly();
+			try {
+				waiters++;
+				try {
+					while ((hold = reserveCents(cents)) == null) {
+						if (nanos <= 0)
+							return false;
+						nanos = funds.awaitNanos(nanos);
+					}
+				} finally {
+					waiters--;
+				}
+			} finally {
+				fundsLock.unlock();
+			}
+		}
+		commit(hold);
+		return true;
+	}
+
+	/**
+	 * Wakes the threads waiting for funds, if any
+	 */
+	private void signalFunds() {
+		if (waiters == 0)
+			return;
+		fundsLock.lock();
+		try {
+			funds.signalAll();
+		} finally {
+			fundsLock.unlock();
+		}
+	}
+}
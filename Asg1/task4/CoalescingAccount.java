@@ -0,0 +1,342 @@
+package task4;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongUnaryOperator;
+
+/**
+ * Class CoalescingAccount
+ * Implements an account in front of another one that lets every thread
+ * accumulate its deposits and withdrawals locally and pass them on as
+ * one net change.
+ *
+ * A thread's pending change is flushed to the target account when it
+ * holds batchSize operations, and a background thread flushes changes
+ * that have been pending longer than the flush interval. getBalance()
+ * returns the target's balance and so may miss pending changes; read()
+ * tells how stale it may be, and getBalance(maxStaleness) flushes first
+ * if it is too stale.
+ *
+ * Once a thread has died its buffer is flushed and dropped, the next
+ * time a thread registers or the flusher scans the account, so accounts
+ * used by a stream of short-lived threads keep only a buffer per live
+ * thread.
+ *
+ * An account with a flush interval is held by the flusher until close()
+ * is called, so that its pending changes still reach the target; such
+ * accounts must be closed once no longer used, or they are never
+ * garbage collected.
+ */
+public class CoalescingAccount extends Account {
+
+	/**
+	 * Balance together with how stale it may be
+	 */
+	public static class Reading {
+		/**
+		 * Balance of the target account
+		 */
+		public final double balance;
+
+		/**
+		 * Age of the oldest change not included in balance, in
+		 * nanoseconds; 0 if balance is exact
+		 */
+		public final long stalenessNanos;
+
+		/**
+		 * Number of operations not included in balance
+		 */
+		public final long pendingOps;
+
+		Reading(double balance, long stalenessNanos, long pendingOps) {
+			this.balance = balance;
+			this.stalenessNanos = stalenessNanos;
+			this.pendingOps = pendingOps;
+		}
+	}
+
+	/**
+	 * Pending change of one thread. Only its thread adds to it, but any
+	 * thread may flush it, so both happen under the buffer's monitor,
+	 * which is uncontended in the common case.
+	 */
+	private static class Buffer {
+		/**
+		 * Thread adding to this buffer
+		 */
+		final Thread thread = Thread.currentThread();
+
+		double pending;
+		int count;
+
+		/**
+		 * System.nanoTime() of the oldest pending change
+		 */
+		long since;
+	}
+
+	/*
+	 * ------------
+	 * Data members
+	 * ------------
+	 */
+
+	/**
+	 * Coalescing accounts with a flush interval, scanned by the flusher;
+	 * strong references, removed by close() only
+	 */
+	private static final List<CoalescingAccount> timed = new CopyOnWriteArrayList<CoalescingAccount>();
+
+	/**
+	 * Account changes are passed on to
+	 */
+	private final Account target;
+
+	/**
+	 * Operations a thread accumulates before flushing
+	 */
+	private final int batchSize;
+
+	/**
+	 * Longest time a change may stay pending, in nanoseconds; 0 for no limit
+	 */
+	private final long intervalNanos;
+
+	/**
+	 * Buffer of each thread using this account
+	 */
+	private final ThreadLocal<Buffer> local = ThreadLocal.withInitial(this::register);
+
+	/**
+	 * Buffers of all threads, for flushing and staleness
+	 */
+	private final List<Buffer> buffers = new CopyOnWriteArrayList<Buffer>();
+
+	/*
+	 * ------------
+	 * Constructors
+	 * ------------
+	 */
+
+	/**
+	 * @param target Account to pass changes on to
+	 * @param batchSize Operations a thread accumulates before flushing
+	 * @param intervalMillis Longest time a change may stay pending, 0 for
+	 * no limit; if positive, the account must be closed once no longer used
+	 */
+	public CoalescingAccount(Account target, int batchSize, long intervalMillis) {
+		super(target.getAcc(), target.getName(), 0);
+		this.target = target;
+		this.batchSize = Math.max(1, batchSize);
+		this.intervalNanos = TimeUnit.MILLISECONDS.toNanos(intervalMillis);
+		if (intervalMillis > 0) {
+			timed.add(this);
+			Flusher.start(intervalMillis);
+		}
+	}
+
+	/*
+	 * -------
+	 * Methods
+	 * -------
+	 */
+
+	/**
+	 * @return a new buffer for the calling thread, registered for flushing
+	 */
+	private Buffer register() {
+		prune();
+		Buffer b = new Buffer();
+		buffers.add(b);
+		return b;
+	}
+
+	/**
+	 * Flushes and drops the buffers of threads that have died
+	 */
+	private void prune() {
+		for (Buffer b : buffers)
+			if (!b.thread.isAlive()) {
+				synchronized (b) {
+					flush(b);
+				}
+				buffers.remove(b);
+			}
+	}
+
+	/**
+	 * Accumulates the change in the calling thread's buffer
+	 * @param delta A double to add to the balance (negative to withdraw)
+	 */
+	@Override
+	void apply(double delta) {
+		Buffer b = local.get();
+		synchronized (b) {
+			if (b.count == 0)
+				b.since = System.nanoTime();
+			b.pending += delta;
+			if (++b.count >= batchSize)
+				flush(b);
+		}
+	}
+
+	/**
+	 * Flushes the pending changes of all threads and replaces the
+	 * target's balance with a function of itself
+	 * @param charge New balance in cents from the current one
+	 * @return the change made, in cents
+	 */
+	@Override
+	long apply(LongUnaryOperator charge) {
+		flush();
+		return target.apply(charge);
+	}
+
+	/**
+	 * Passes a buffer's change on to the target. Buffer's monitor held.
+	 * @param b Buffer to flush
+	 */
+	private void flush(Buffer b) {
+		if (b.count == 0)
+			return;
+		target.apply(b.pending);
+		b.pending = 0;
+		b.count = 0;
+	}
+
+	/**
+	 * Flushes the pending changes of all threads
+	 */
+	public void flush() {
+		for (Buffer b : buffers)
+			synchronized (b) {
+				flush(b);
+			}
+	}
+
+	/**
+	 * Flushes the changes pending for longer than the flush interval
+	 */
+	private void flushStale() {
+		prune();
+		long now = System.nanoTime();
+		for (Buffer b : buffers)
+			synchronized (b) {
+				if (b.count > 0 && now - b.since >= intervalNanos)
+					flush(b);
+			}
+	}
+
+	/**
+	 * Accessor for account balance; may miss pending changes, see read()
+	 * @return the target account's balance
+	 */
+	@Override
+	public double getBalance() {
+		return target.getBalance();
+	}
+
+	/**
+	 * Accessor for account balance with bounded staleness
+	 * @param maxStalenessNanos Oldest pending change the caller accepts
+	 * missing, in nanoseconds; 0 for an exact balance
+	 * @return the balance, flushed first if it was too stale
+	 */
+	public double getBalance(long maxStalenessNanos) {
+		// A change made within the clock's resolution has staleness 0, so
+		// staleness alone cannot tell it from no change at all
+		Reading r = read();
+		if (r.pendingOps > 0 && r.stalenessNanos >= maxStalenessNanos)
+			flush();
+		return target.getBalance();
+	}
+
+	/**
+	 * @return the balance together with how stale it may be
+	 */
+	public Reading read() {
+		long now = System.nanoTime();
+		long oldest = 0;
+		long pending = 0;
+		for (Buffer b : buffers)
+			synchronized (b) {
+				if (b.count > 0) {
+					oldest = Math.max(oldest, now - b.since);
+					pending += b.count;
+				}
+			}
+		return new Reading(target.getBalance(), oldest, pending);
+	}
+
+	/**
+	 * Mutator for account balance; drops the pending changes
+	 * @param balance A double that represents an account balance
+	 */
+	@Override
+	public void setBalance(double balance) {
+		for (Buffer b : buffers)
+			synchronized (b) {
+				b.pending = 0;
+				b.count = 0;
+			}
+		target.setBalance(balance);
+	}
+
+	/**
+	 * Stops the interval flushing of this account; pending changes of
+	 * all threads are flushed
+	 */
+	public void close() {
+		timed.remove(this);
+		flush();
+	}
+
+	/**
+	 * Daemon thread flushing stale changes of all timed accounts
+	 */
+	private static class Flusher extends Thread {
+		/**
+		 * Running flusher, if any
+		 */
+		private static Flusher running;
+
+		/**
+		 * Time between two scans in milliseconds
+		 */
+		private volatile long period;
+
+		/**
+		 * Starts the flusher or makes it scan often enough for the interval
+		 * @param intervalMillis Flush interval of a new account
+		 */
+		static synchronized void start(long intervalMillis) {
+			long period = Math.max(1, intervalMillis / 2);
+			if (running == null) {
+				running = new Flusher();
+				running.period = period;
+				running.setDaemon(true);
+				running.start();
+			} else if (period < running.period) {
+				running.period = period;
+			}
+		}
+
+		Flusher() {
+			super("coalescing-flusher");
+		}
+
+		public void run() {
+			while (true) {
+				try {
+					Thread.sleep(period);
+				} catch (InterruptedException e) {
+					return;
+				}
+				for (CoalescingAccount a : timed)
+					a.flushStale();
+			}
+		}
+	}
+}
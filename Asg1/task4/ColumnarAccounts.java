@@ -0,0 +1,420 @@
+package task4;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.ToDoubleFunction;
+import java.util.stream.IntStream;
+
+/**
+ * Class ColumnarAccounts
+ * Implements an in-memory account table stored column by column: one
+ * int[] of account numbers, one int[] of name codes into a
+ * NameDictionary and one long[] of balances in cents.
+ *
+ * An account is addressed by its index in the table. Deposits and
+ * withdrawals follow CentsAccount: amounts are rounded to the nearest
+ * cent and added to the balance atomically without locking. Because the
+ * balances are one contiguous long[], aggregates scan them sequentially
+ * without touching any other data; they split the table into chunks that
+ * are summed up on all processors. Aggregates taken while balances
+ * change see every single balance whole, but not all of them at the
+ * same instant.
+ */
+public class ColumnarAccounts {
+
+	/*
+	 * ------------
+	 * Data members
+	 * ------------
+	 */
+
+	/**
+	 * Accounts scanned by one parallel task
+	 */
+	private static final int CHUNK = 1 << 16;
+
+	/**
+	 * Atomic access to the balance column
+	 */
+	private static final VarHandle CENTS = MethodHandles.arrayElementVarHandle(long[].class);
+
+	/**
+	 * Account number column
+	 */
+	private final int[] accs;
+
+	/**
+	 * Name code column
+	 */
+	private final int[] names;
+
+	/**
+	 * Balance column, in cents
+	 */
+	private final long[] cents;
+
+	/**
+	 * Codes of the names
+	 */
+	private final NameDictionary dictionary = new NameDictionary();
+
+	/**
+	 * Number of accounts in use
+	 */
+	private volatile int size;
+
+	/*
+	 * ------------
+	 * Constructors
+	 * ------------
+	 */
+
+	/**
+	 * @param capacity Maximum number of accounts
+	 */
+	public ColumnarAccounts(int capacity) {
+		accs = new int[capacity];
+		names = new int[capacity];
+		cents = new long[capacity];
+	}
+
+	/*
+	 * -------
+	 * Methods
+	 * -------
+	 */
+
+	/**
+	 * Appends an account
+	 * @param acc A unique integer that represents account number
+	 * @param name A string indicating human-readable customer's name
+	 * @param balance A double indicating account balance, rounded to cents
+	 * @return index of the new account
+	 * @throws IllegalStateException if the table is full
+	 */
+	public synchronized int add(int acc, String name, double balance) {
+		int index = size;
+		if (index == accs.length)
+			throw new IllegalStateException("Table is full (" + accs.length + " accounts)");
+		accs[index] = acc;
+		names[index] = dictionary.encode(name);
+		cents[index] = CentsAccount.toCents(balance);
+		size = index + 1;
+		return index;
+	}
+
+	/**
+	 * Appends count accounts with zero fields, for a bulk loader to fill
+	 * in with set() before the table is shared with other threads
+	 * @param count Number of accounts
+	 * @return index of the first new account
+	 * @throws IllegalStateException if the table cannot hold them
+	 */
+	synchronized int reserve(int count) {
+		int index = size;
+		if (count > accs.length - index)
+			throw new IllegalStateException("Table is full (" + accs.length + " accounts)");
+		size = index + count;
+		return index;
+	}
+
+	/**
+	 * Fills in an account appended by reserve()
+	 * @param index Index of the account
+	 * @param acc Account number
+	 * @param name Code of the customer name in names()
+	 * @param balance Balance in cents
+	 */
+	void set(int index, int acc, int name, long balance) {
+		accs[index] = acc;
+		names[index] = name;
+		cents[index] = balance;
+	}
+
+	/**
+	 * @param index Index of an account
+	 * @return the account number
+	 */
+	public int getAcc(int index) {
+		return accs[check(index)];
+	}
+
+	/**
+	 * @param index Index of an account
+	 * @return the customer name
+	 */
+	public String getName(int index) {
+		return dictionary.decode(names[check(index)]);
+	}
+
+	/**
+	 * @param index Index of an account
+	 * @param name A string that represents a customer name
+	 */
+	public void setName(int index, String name) {
+		names[check(index)] = dictionary.encode(name);
+	}
+
+	/**
+	 * @param index Index of an account
+	 * @return the balance in cents
+	 */
+	public long getCents(int index) {
+		return (long) CENTS.getVolatile(cents, check(index));
+	}
+
+	/**
+	 * @param index Index of an account
+	 * @return the balance
+	 */
+	public double getBalance(int index) {
+		return (double) getCents(index) / CentsAccount.CENTS_PER_UNIT;
+	}
+
+	/**
+	 * @param index Index of an account
+	 * @param amount A double that represents a deposit amount
+	 */
+	public void deposit(int index, double amount) {
+		CENTS.getAndAdd(cents, check(index), CentsAccount.toCents(amount));
+	}
+
+	/**
+	 * @param index Index of an account
+	 * @param amount A double that represents a withdrawal amount
+	 */
+	public void withdraw(int index, double amount) {
+		CENTS.getAndAdd(cents, check(index), -CentsAccount.toCents(amount));
+	}
+
+	/**
+	 * Adds to a balance atomically
+	 * @param index Index of an account
+	 * @param delta Signed amount in cents
+	 * @return the new balance in cents
+	 */
+	public long addCents(int index, long delta) {
+		return (long) CENTS.getAndAdd(cents, check(index), delta) + delta;
+	}
+
+	/**
+	 * Replaces a balance if it still has the expected value
+	 * @param index Index of an account
+	 * @param expected Balance in cents the caller has read
+	 * @param update New balance in cents
+	 * @return true if the balance was replaced
+	 */
+	public boolean compareAndSetCents(int index, long expected, long update) {
+		return CENTS.compareAndSet(cents, check(index), expected, update);
+	}
+
+	/**
+	 * @param index Index of an account
+	 * @return index
+	 * @throws IndexOutOfBoundsException if no account has that index
+	 */
+	private int check(int index) {
+		if (index < 0 || index >= size)
+			throw new IndexOutOfBoundsException("No account at index " + index);
+		return index;
+	}
+
+	/**
+	 * @return sum of all balances
+	 */
+	public double sum() {
+		return (double) chunks().mapToLong(c -> sumCents(c * CHUNK, end(c))).sum() / CentsAccount.CENTS_PER_UNIT;
+	}
+
+	/**
+	 * @return smallest balance; 0 if the table is empty
+	 */
+	public double min() {
+		if (size == 0)
+			return 0;
+		return (double) chunks().mapToLong(c -> minCents(c * CHUNK, end(c))).min().getAsLong() / CentsAccount.CENTS_PER_UNIT;
+	}
+
+	/**
+	 * @return largest balance; 0 if the table is empty
+	 */
+	public double max() {
+		if (size == 0)
+			return 0;
+		return (double) chunks().mapToLong(c -> maxCents(c * CHUNK, end(c))).max().getAsLong() / CentsAccount.CENTS_PER_UNIT;
+	}
+
+	/**
+	 * Counts balances in equally wide buckets between low and high;
+	 * balances outside the range are counted in the first or last bucket
+	 * @param low Lower bound of the first bucket
+	 * @param high Upper bound of the last bucket
+	 * @param buckets Number of buckets
+	 * @return number of balances in each bucket
+	 */
+	public long[] histogram(double low, double high, int buckets) {
+		long lowCents = CentsAccount.toCents(low);
+		long width = Math.max(1, (CentsAccount.toCents(high) - lowCents + buckets - 1) / buckets);
+		return chunks()
+			.mapToObj(c -> histogramCents(c * CHUNK, end(c), lowCents, width, buckets))
+			.reduce(new long[buckets], (a, b) -> {
+				long[] total = new long[buckets];
+				for (int i = 0; i < buckets; i++)
+					total[i] = a[i] + b[i];
+				return total;
+			});
+	}
+
+	/**
+	 * @return a parallel stream of the chunk numbers
+	 */
+	private IntStream chunks() {
+		return IntStream.range(0, (size + CHUNK - 1) / CHUNK).parallel();
+	}
+
+	/**
+	 * @param chunk Chunk number
+	 * @return end index of the chunk
+	 */
+	private int end(int chunk) {
+		return (int) Math.min(size, (long) (chunk + 1) * CHUNK);
+	}
+
+	/*
+	 * Plain loops over one stretch of the balance column, simple enough
+	 * for the JIT to unroll and vectorize
+	 */
+
+	private long sumCents(int from, int to) {
+		long[] c = cents;
+		long sum = 0;
+		for (int i = from; i < to; i++)
+			sum += c[i];
+		return sum;
+	}
+
+	private long minCents(int from, int to) {
+		long[] c = cents;
+		long min = Long.MAX_VALUE;
+		for (int i = from; i < to; i++)
+			min = Math.min(min, c[i]);
+		return min;
+	}
+
+	private long maxCents(int from, int to) {
+		long[] c = cents;
+		long max = Long.MIN_VALUE;
+		for (int i = from; i < to; i++)
+			max = Math.max(max, c[i]);
+		return max;
+	}
+
+	private long[] histogramCents(int from, int to, long low, long width, int buckets) {
+		long[] c = cents;
+		long[] counts = new long[buckets];
+		for (int i = from; i < to; i++) {
+			long b = (c[i] - low) / width;
+			counts[(int) Math.max(0, Math.min(buckets - 1, b))]++;
+		}
+		return counts;
+	}
+
+	/**
+	 * @return number of accounts
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * @return maximum number of accounts
+	 */
+	public int capacity() {
+		return accs.length;
+	}
+
+	/**
+	 * @return dictionary of the customer names
+	 */
+	public NameDictionary names() {
+		return dictionary;
+	}
+
+	/**
+	 * Compares the aggregates with the same ones over Account objects.
+	 *
+	 * Options: accounts=5_000_000, names=100_000 (distinct customer
+	 * names), repeat=10 (best of this many runs is reported). Each
+	 * aggregate is run sequentially and in parallel over an Account[] and
+	 * over the columns.
+	 */
+	public static void main(String[] args) {
+		Options options = null;
+		try {
+			options = new Options(args);
+		} catch (IllegalArgumentException e) {
+			System.err.println(e.getMessage() + "\nUsage: java task4.ColumnarAccounts [accounts=N] [names=N] [repeat=N]");
+			System.exit(1);
+		}
+		int n = options.getInt("accounts", 5000000);
+		int distinct = options.getInt("names", 100000);
+		int repeat = options.getInt("repeat", 10);
+
+		ColumnarAccounts columns = new ColumnarAccounts(n);
+		Account[] account = new Account[n];
+		ThreadLocalRandom random = ThreadLocalRandom.current();
+		for (int i = 0; i < n; i++) {
+			String name = "Customer" + random.nextInt(distinct);
+			double balance = random.nextInt(1000000) / 100.0;
+			columns.add(1000 + i, name, balance);
+			account[i] = new Account(1000 + i, name, balance);
+		}
+
+		ToDoubleFunction<Account> balance = Account::getBalance;
+		System.out.printf("%-10s%-10s%10s  %s%n", "aggregate", "layout", "millis", "result");
+		report("sum", "objects", repeat, () -> {
+			double sum = 0;
+			for (Account a : account)
+				sum += a.getBalance();
+			return sum;
+		});
+		report("sum", "objects||", repeat, () -> Arrays.stream(account).parallel().mapToDouble(balance).sum());
+		report("sum", "columns", repeat, () -> (double) columns.sumCents(0, n) / CentsAccount.CENTS_PER_UNIT);
+		report("sum", "columns||", repeat, columns::sum);
+		report("min", "objects||", repeat, () -> Arrays.stream(account).parallel().mapToDouble(balance).min().getAsDouble());
+		report("min", "columns", repeat, () -> (double) columns.minCents(0, n) / CentsAccount.CENTS_PER_UNIT);
+		report("min", "columns||", repeat, columns::min);
+		report("max", "objects||", repeat, () -> Arrays.stream(account).parallel().mapToDouble(balance).max().getAsDouble());
+		report("max", "columns", repeat, () -> (double) columns.maxCents(0, n) / CentsAccount.CENTS_PER_UNIT);
+		report("max", "columns||", repeat, columns::max);
+		report("histogram", "columns||", repeat, () -> (double) columns.histogram(0, 10000, 10)[0]);
+		System.out.println("Balances between 0 and 10000: " + Arrays.toString(columns.histogram(0, 10000, 10)));
+	}
+
+	/**
+	 * Aggregate as timed by main()
+	 */
+	private interface Aggregate {
+		double compute();
+	}
+
+	/**
+	 * Runs an aggregate repeatedly and prints its fastest run
+	 * @param name Name of the aggregate
+	 * @param layout Name of the data layout, || if parallel
+	 * @param repeat Number of runs
+	 * @param aggregate Aggregate to run
+	 */
+	private static void report(String name, String layout, int repeat, Aggregate aggregate) {
+		long best = Long.MAX_VALUE;
+		double result = 0;
+		for (int i = 0; i < repeat; i++) {
+			long start = System.nanoTime();
+			result = aggregate.compute();
+			best = Math.min(best, System.nanoTime() - start);
+		}
+		System.out.printf("%-10s%-10s%10.3f  %.2f%n", name, layout, best / 1e6, result);
+	}
+}
@@ -13,12 +13,27 @@ package task4;
 
 public class Depositor extends Thread {
 	private Account account ;
+
+	/**
+	 * Number of deposits this thread performs
+	 */
+	private int iterations;
+
 	public Depositor(Account account){
+		this(account, 10000000);
+	}
+
+	/**
+	 * @param account Account to deposit 10 at a time
+	 * @param iterations Number of deposits to perform
+	 */
+	public Depositor(Account account, int iterations){
 		this.account = account;
+		this.iterations = iterations;
 	}
 	
 	public void run(){
-		for (int i=0;i<10000000;i++)
+		for (int i=0;i<iterations;i++)
 		{
 			account.deposit(10);
 		/*			
@@ -0,0 +1,481 @@
+package task4;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Class EventLog
+ * Implements a compact binary recording of every deposit and withdrawal
+ * made on a set of accounts, for Replay to apply again.
+ *
+ * Unlike the Journal, the log is not meant to survive a crash, so
+ * recording threads do not queue on one lock: each encodes its events
+ * into one of a small fixed set of buffers, chosen by thread id and
+ * guarded by its own monitor, and only takes the file's lock to write a
+ * full buffer out as one block. The buffers are allocated once, so
+ * memory does not grow with the number of threads that ever recorded.
+ * Within a buffer, consecutive events with the same account and amount
+ * are stored once with a repeat count, and every number is a
+ * variable-length integer: a run of identical events takes a few bytes
+ * in all, a lone event about six. Events of different buffers are not
+ * ordered with respect to each other, which does not change the final
+ * balances: amounts are whole cents and their sums do not depend on
+ * order.
+ *
+ * A file starts with MAGIC and continues with blocks: a type byte, an
+ * int payload length and the payload, all little-endian.
+ *
+ *   START   number of accounts, then each account's number, balance in
+ *           cents and UTF-8 name prefixed with its length
+ *   EVENTS  runs of account index, zigzag-encoded cents and repeat count
+ *   FINAL   number of accounts, then each final balance in cents
+ *
+ * Account indexes refer to the order of the START block.
+ */
+public class EventLog implements Closeable {
+
+	/**
+	 * Accounts, balances and events read back from a log
+	 */
+	public static final class Recording {
+		/**
+		 * Account number, name and starting balance in cents, by index
+		 */
+		public final int[] acc;
+		public final String[] name;
+		public final long[] initial;
+
+		/**
+		 * Final balance in cents by index, or null if the log was not closed
+		 */
+		public final long[] expected;
+
+		/**
+		 * Payloads of the EVENTS blocks in file order
+		 */
+		private final List<ByteBuffer> blocks;
+
+		Recording(int[] acc, String[] name, long[] initial, long[] expected, List<ByteBuffer> blocks) {
+			this.acc = acc;
+			this.name = name;
+			this.initial = initial;
+			this.expected = expected;
+			this.blocks = blocks;
+		}
+
+		/**
+		 * Creates the recorded accounts with their starting balances
+		 * @param mode Account implementation, one of AccountManager.MODES
+		 * @return the accounts by index
+		 */
+		public Account[] newAccounts(String mode) {
+			Account[] account = new Account[acc.length];
+			for (int i = 0; i < account.length; i++)
+				account[i] = AccountManager.newAccount(mode, acc[i], name[i], (double) initial[i] / CentsAccount.CENTS_PER_UNIT);
+			return account;
+		}
+
+		/**
+		 * Decodes every run of events in file order. Safe to call from
+		 * several threads at once.
+		 * @param runs Receives the runs
+		 * @throws IllegalStateException if a block is malformed
+		 */
+		public void forEachRun(Runs runs) {
+			for (ByteBuffer block : blocks) {
+				ByteBuffer in = block.duplicate();
+				while (in.hasRemaining()) {
+					long index = getVarint(in);
+					long cents = getVarint(in);
+					long count = getVarint(in);
+					if (index >= acc.length)
+						throw new IllegalStateException("Event for account index " + index + " of " + acc.length);
+					runs.run((int) index, (cents >>> 1) ^ -(cents & 1), count);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Receiver of decoded events
+	 */
+	public interface Runs {
+		/**
+		 * @param index Index of the account
+		 * @param cents Signed amount of each event in cents
+		 * @param count Number of consecutive events with that amount
+		 */
+		void run(int index, long cents, long count);
+	}
+
+	/*
+	 * ------------
+	 * Data members
+	 * ------------
+	 */
+
+	/**
+	 * First eight bytes of an event log, "ACCTEVT1"
+	 */
+	private static final long MAGIC = 0x3154564554434341L;
+
+	/**
+	 * Block types
+	 */
+	private static final byte START = 1;
+	private static final byte EVENTS = 2;
+	private static final byte FINAL = 3;
+
+	/**
+	 * Size of a block header in bytes
+	 */
+	private static final int BLOCK_HEADER = 1 + 4;
+
+	/**
+	 * Capacity of each buffer
+	 */
+	private static final int BUFFER_SIZE = 1 << 16;
+
+	/**
+	 * Longest encoding of a run: three ten-byte varints
+	 */
+	private static final int MAX_RUN = 30;
+
+	/**
+	 * File the log is written to; writes are serialized on the channel
+	 */
+	private final FileChannel channel;
+
+	/**
+	 * Accounts recorded, by index
+	 */
+	private final Account[] accounts;
+
+	/**
+	 * Number of buffers: a power of two, twice the processors and at
+	 * most 64
+	 */
+	private static final int STRIPES = Math.min(64,
+		Integer.highestOneBit(Math.max(1, 2 * Runtime.getRuntime().availableProcessors() - 1)) << 1);
+
+	/**
+	 * Buffers shared by the recording threads, chosen by thread id and
+	 * emptied by close()
+	 */
+	private final Writer[] writers = new Writer[STRIPES];
+
+	/**
+	 * Set by close()
+	 */
+	private volatile boolean closed;
+
+	/*
+	 * ------------
+	 * Constructors
+	 * ------------
+	 */
+
+	/**
+	 * Creates the log, writes the accounts' current state and starts
+	 * recording their deposits and withdrawals. Must be called before the
+	 * accounts are shared with other threads.
+	 * @param file Log file, replaced if it exists
+	 * @param accounts Accounts to record
+	 * @throws IOException if the file cannot be written
+	 */
+	public EventLog(Path file, Account[] accounts) throws IOException {
+		this.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+			StandardOpenOption.TRUNCATE_EXISTING);
+		this.accounts = accounts.clone();
+		for (int i = 0; i < STRIPES; i++)
+			writers[i] = new Writer();
+		ByteBuffer magic = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN).putLong(MAGIC);
+		write(magic.flip());
+
+		int size = 4;
+		byte[][] names = new byte[accounts.length][];
+		for (int i = 0; i < accounts.length; i++) {
+			names[i] = String.valueOf(accounts[i].getName()).getBytes(StandardCharsets.UTF_8);
+			size += 4 + 8 + 2 + names[i].length;
+		}
+		ByteBuffer start = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN).putInt(accounts.length);
+		for (int i = 0; i < accounts.length; i++) {
+			start.putInt(accounts[i].getAcc()).putLong(CentsAccount.toCents(accounts[i].getBalance()));
+			start.putShort((short) names[i].length).put(names[i]);
+		}
+		writeBlock(START, start.flip());
+		for (int i = 0; i < accounts.length; i++)
+			accounts[i].setEventLog(this, i);
+	}
+
+	/*
+	 * -------
+	 * Methods
+	 * -------
+	 */
+
+	/**
+	 * Records a deposit (positive) or withdrawal (negative)
+	 * @param index Index of the account in this log
+	 * @param delta Signed amount, rounded to cents
+	 * @throws IllegalStateException if the log is closed
+	 * @throws UncheckedIOException if a full buffer cannot be written
+	 */
+	void record(int index, double delta) {
+		if (closed)
+			throw new IllegalStateException("Event log is closed");
+		long id = Thread.currentThread().getId();
+		Writer w = writers[(int) (id ^ (id >>> 16)) & (STRIPES - 1)];
+		synchronized (w) {
+			w.record(index, CentsAccount.toCents(delta));
+		}
+	}
+
+	/**
+	 * @return events recorded so far; only exact once recording threads are done
+	 */
+	public long recorded() {
+		long n = 0;
+		for (Writer w : writers)
+			synchronized (w) {
+				n += w.events;
+			}
+		return n;
+	}
+
+	/**
+	 * Writes every buffer, then the accounts' final balances, and
+	 * stops recording. Call it once no thread changes the accounts any
+	 * more.
+	 * @throws IOException if the file cannot be written
+	 */
+	public void close() throws IOException {
+		closed = true;
+		for (Account a : accounts)
+			a.setEventLog(null, 0);
+		try {
+			for (Writer w : writers)
+				synchronized (w) {
+					w.end();
+					w.flush();
+				}
+			ByteBuffer end = ByteBuffer.allocate(4 + 8 * accounts.length).order(ByteOrder.LITTLE_ENDIAN).putInt(accounts.length);
+			for (Account a : accounts)
+				end.putLong(CentsAccount.toCents(a.getBalance()));
+			writeBlock(FINAL, end.flip());
+		} catch (UncheckedIOException e) {
+			throw e.getCause();
+		} finally {
+			channel.close();
+		}
+	}
+
+	/**
+	 * Writes one block
+	 * @param type Block type
+	 * @param payload Payload between position and limit
+	 * @throws IOException if the file cannot be written
+	 */
+	private void writeBlock(byte type, ByteBuffer payload) throws IOException {
+		ByteBuffer header = ByteBuffer.allocate(BLOCK_HEADER).order(ByteOrder.LITTLE_ENDIAN);
+		header.put(type).putInt(payload.remaining()).flip();
+		synchronized (channel) {
+			write(header);
+			write(payload);
+		}
+	}
+
+	/**
+	 * Writes all of a buffer
+	 * @param buffer Bytes between position and limit
+	 * @throws IOException if the file cannot be written
+	 */
+	private void write(ByteBuffer buffer) throws IOException {
+		while (buffer.hasRemaining())
+			channel.write(buffer);
+	}
+
+	/**
+	 * Buffer and current run shared by some of the recording threads;
+	 * used only under its own monitor
+	 */
+	private final class Writer {
+		final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+
+		/**
+		 * Account index, amount and length of the run not yet encoded;
+		 * count is 0 if there is none
+		 */
+		int index;
+		long cents;
+		long count;
+
+		/**
+		 * Events recorded into this buffer
+		 */
+		long events;
+
+		void record(int index, long cents) {
+			events++;
+			if (count > 0 && index == this.index && cents == this.cents) {
+				count++;
+				return;
+			}
+			end();
+			this.index = index;
+			this.cents = cents;
+			count = 1;
+		}
+
+		/**
+		 * Encodes the current run, if any
+		 */
+		void end() {
+			if (count == 0)
+				return;
+			if (buffer.remaining() < MAX_RUN)
+				flush();
+			putVarint(buffer, index);
+			putVarint(buffer, (cents << 1) ^ (cents >> 63));
+			putVarint(buffer, count);
+			count = 0;
+		}
+
+		/**
+		 * Writes the encoded runs out as one block
+		 */
+		void flush() {
+			if (buffer.position() == 0)
+				return;
+			try {
+				writeBlock(EVENTS, buffer.flip());
+			} catch (IOException e) {
+				throw new UncheckedIOException("Event log write failed", e);
+			}
+			buffer.clear();
+		}
+	}
+
+	/**
+	 * Appends an unsigned variable-length integer, seven bits per byte,
+	 * low bits first
+	 * @param out Buffer to append to
+	 * @param value Value, treated as unsigned
+	 */
+	static void putVarint(ByteBuffer out, long value) {
+		while ((value & ~0x7FL) != 0) {
+			out.put((byte) ((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+		out.put((byte) value);
+	}
+
+	/**
+	 * @param in Buffer to read from
+	 * @return the unsigned variable-length integer at the buffer's position
+	 * @throws IllegalStateException if the integer is truncated or too long
+	 */
+	static long getVarint(ByteBuffer in) {
+		long value = 0;
+		for (int shift = 0; shift < 64; shift += 7) {
+			if (!in.hasRemaining())
+				throw new IllegalStateException("Truncated event block");
+			byte b = in.get();
+			value |= (long) (b & 0x7F) << shift;
+			if (b >= 0)
+				return value;
+		}
+		throw new IllegalStateException("Malformed event block");
+	}
+
+	/**
+	 * Reads a log back
+	 * @param file Log file
+	 * @return the recorded accounts and events
+	 * @throws IOException if the file cannot be read or is not an event log
+	 */
+	public static Recording read(Path file) throws IOException {
+		try (FileChannel in = FileChannel.open(file, StandardOpenOption.READ)) {
+			ByteBuffer header = ByteBuffer.allocate(8 + BLOCK_HEADER).order(ByteOrder.LITTLE_ENDIAN);
+			while (header.hasRemaining() && in.read(header) >= 0)
+				;
+			if (header.position() < 8 || header.getLong(0) != MAGIC)
+				throw new IOException(file + " is not an event log");
+			if (header.hasRemaining() || header.get(8) != START)
+				throw new IOException(file + " does not start with its accounts");
+			long at = 8;
+			int[] acc = null;
+			String[] name = null;
+			long[] initial = null;
+			long[] expected = null;
+			List<ByteBuffer> blocks = new ArrayList<ByteBuffer>();
+			long size = in.size();
+			while (at + BLOCK_HEADER <= size) {
+				ByteBuffer h = read(in, at, BLOCK_HEADER);
+				byte type = h.get();
+				int length = h.getInt();
+				if (length < 0 || at + BLOCK_HEADER + length > size)
+					throw new IOException(file + " is truncated at offset " + at);
+				ByteBuffer payload = read(in, at + BLOCK_HEADER, length);
+				at += BLOCK_HEADER + length;
+				try {
+					if (type == START) {
+						int n = payload.getInt();
+						acc = new int[n];
+						name = new String[n];
+						initial = new long[n];
+						for (int i = 0; i < n; i++) {
+							acc[i] = payload.getInt();
+							initial[i] = payload.getLong();
+							byte[] bytes = new byte[payload.getShort() & 0xffff];
+							payload.get(bytes);
+							name[i] = new String(bytes, StandardCharsets.UTF_8);
+						}
+					} else if (type == EVENTS) {
+						blocks.add(payload);
+					} else if (type == FINAL) {
+						int n = payload.getInt();
+						if (n != acc.length)
+							throw new IOException(file + " ends with " + n + " balances for " + acc.length + " accounts");
+						expected = new long[n];
+						for (int i = 0; i < n; i++)
+							expected[i] = payload.getLong();
+					} else {
+						throw new IOException(file + " has a block of unknown type " + type + " at offset " + (at - BLOCK_HEADER - length));
+					}
+				} catch (RuntimeException e) {
+					throw new IOException(file + " has a malformed block at offset " + (at - BLOCK_HEADER - length), e);
+				}
+			}
+			if (at != size)
+				throw new IOException(file + " is truncated at offset " + at);
+			return new Recording(acc, name, initial, expected, blocks);
+		}
+	}
+
+	/**
+	 * Reads a region of a file into memory, so replaying it never waits
+	 * for the disk
+	 * @param in File to read
+	 * @param at Offset of the region
+	 * @param length Length of the region
+	 * @return the region as a little-endian buffer
+	 * @throws IOException if the region cannot be read
+	 */
+	private static ByteBuffer read(FileChannel in, long at, int length) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+		while (buffer.hasRemaining())
+			if (in.read(buffer, at + buffer.position()) < 0)
+				throw new IOException("Unexpected end of file at offset " + (at + buffer.position()));
+		return buffer.flip();
+	}
+}
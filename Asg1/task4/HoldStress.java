@@ -0,0 +1,158 @@
+package task4;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Class HoldStress
+ * Puts CentsAccount holds under heavy concurrent withdrawal pressure and
+ * checks that no account is ever overdrawn and that no cent is lost.
+ *
+ * Many withdrawers compete for the funds of a few accounts that a few
+ * depositors slowly top up, so most withdrawals find too little money.
+ * Each withdrawal takes one of three paths at random:
+ *
+ *   hold     reserve(), then commit() or, one time in four, release()
+ *   try      tryWithdraw()
+ *   wait     withdrawWhenAvailable() with a timeout
+ *
+ * A checker thread samples the balances throughout. At the end every
+ * balance must equal its start plus what was deposited minus what was
+ * committed, and nothing may be left held.
+ */
+public class HoldStress {
+
+	/**
+	 * Runs the stress test.
+	 *
+	 * Options: accounts=4, withdrawers=16, depositors=2, millis=2000,
+	 * amount=10 (largest withdrawal; deposits are up to twice as large),
+	 * pause=100 (microseconds between deposits), timeout=20 (milliseconds
+	 * withdrawWhenAvailable() waits).
+	 */
+	public static void main(String[] args) {
+		Options options = null;
+		try {
+			options = new Options(args);
+		} catch (IllegalArgumentException e) {
+			System.err.println(e.getMessage() + "\nUsage: java task4.HoldStress [accounts=N] [withdrawers=N] [depositors=N]"
+				+ " [millis=N] [amount=N] [pause=MICROS] [timeout=MILLIS]");
+			System.exit(1);
+		}
+		int n = options.getInt("accounts", 4);
+		int withdrawers = options.getInt("withdrawers", 16);
+		int depositors = options.getInt("depositors", 2);
+		long millis = options.getLong("millis", 2000);
+		int amount = options.getInt("amount", 10);
+		long pause = options.getLong("pause", 100);
+		long timeout = options.getLong("timeout", 20);
+
+		CentsAccount[] account = new CentsAccount[n];
+		for (int i = 0; i < n; i++)
+			account[i] = new CentsAccount(i, "Customer" + i, 100);
+
+		// Cents moved per account, and what each withdrawal path achieved
+		AtomicLong[] deposited = new AtomicLong[n];
+		AtomicLong[] withdrawn = new AtomicLong[n];
+		for (int i = 0; i < n; i++) {
+			deposited[i] = new AtomicLong();
+			withdrawn[i] = new AtomicLong();
+		}
+		LongAdder committed = new LongAdder();
+		LongAdder released = new LongAdder();
+		LongAdder refused = new LongAdder();
+		LongAdder timedOut = new LongAdder();
+		AtomicLong lowest = new AtomicLong(Long.MAX_VALUE);
+
+		long end = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(millis);
+		Thread[] thread = new Thread[withdrawers + depositors + 1];
+		for (int w = 0; w < withdrawers; w++)
+			thread[w] = new Thread(() -> {
+				ThreadLocalRandom random = ThreadLocalRandom.current();
+				try {
+					while (System.nanoTime() < end) {
+						int i = random.nextInt(n);
+						CentsAccount a = account[i];
+						long cents = random.nextLong(1, amount * CentsAccount.CENTS_PER_UNIT + 1);
+						double units = (double) cents / CentsAccount.CENTS_PER_UNIT;
+						switch (random.nextInt(3)) {
+							case 0:
+								CentsAccount.Hold hold = a.reserveCents(cents);
+								if (hold == null) {
+									refused.increment();
+								} else if (random.nextInt(4) == 0) {
+									a.release(hold);
+									released.increment();
+								} else {
+									a.commit(hold);
+									withdrawn[i].addAndGet(cents);
+									committed.increment();
+								}
+								break;
+							case 1:
+								if (a.tryWithdraw(units)) {
+									withdrawn[i].addAndGet(cents);
+									committed.increment();
+								} else {
+									refused.increment();
+								}
+								break;
+							default:
+								if (a.withdrawWhenAvailable(units, timeout, TimeUnit.MILLISECONDS)) {
+									withdrawn[i].addAndGet(cents);
+									committed.increment();
+								} else {
+									timedOut.increment();
+								}
+						}
+					}
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			});
+		for (int d = 0; d < depositors; d++)
+			thread[withdrawers + d] = new Thread(() -> {
+				ThreadLocalRandom random = ThreadLocalRandom.current();
+				while (System.nanoTime() < end) {
+					int i = random.nextInt(n);
+					long cents = random.nextLong(1, 2 * amount * CentsAccount.CENTS_PER_UNIT + 1);
+					account[i].depositCents(cents);
+					deposited[i].addAndGet(cents);
+					long wake = System.nanoTime() + TimeUnit.MICROSECONDS.toNanos(pause);
+					while (System.nanoTime() < wake)
+						Thread.onSpinWait();
+				}
+			});
+		thread[withdrawers + depositors] = new Thread(() -> {
+			while (System.nanoTime() < end)
+				for (CentsAccount a : account)
+					lowest.accumulateAndGet(a.getCents(), Math::min);
+		});
+
+		for (Thread t : thread)
+			t.start();
+		try {
+			for (Thread t : thread)
+				t.join();
+		} catch (InterruptedException e) {
+			e.printStackTrace();
+		}
+
+		int wrong = 0;
+		long held = 0;
+		for (int i = 0; i < n; i++) {
+			if (account[i].getCents() != 100 * CentsAccount.CENTS_PER_UNIT + deposited[i].get() - withdrawn[i].get())
+				wrong++;
+			held += account[i].getHeldCents();
+		}
+		System.out.println("Withdrawals committed: " + committed.sum() + ", holds released: " + released.sum()
+			+ ", refused: " + refused.sum() + ", timed out: " + timedOut.sum());
+		System.out.println("Lowest balance seen: " + (double) lowest.get() / CentsAccount.CENTS_PER_UNIT
+			+ ", cents still held: " + held);
+		System.out.println("Accounts with a wrong balance: " + wrong);
+		if (lowest.get() < 0 || held != 0 || wrong > 0)
+			System.exit(1);
+	}
+}
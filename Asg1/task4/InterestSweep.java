@@ -0,0 +1,344 @@
+package task4;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Class InterestSweep
+ * Implements a bulk job that credits interest and charges a flat fee on
+ * every account while deposits and withdrawals go on.
+ *
+ * The accounts are split recursively into ranges that a ForkJoinPool
+ * works through in parallel. No lock covers the table: over
+ * ColumnarAccounts every balance is read and replaced with one
+ * compare-and-set, retried if a concurrent update got in between, so
+ * the interest is always earned on the balance it replaces and no update
+ * is lost. Over Account objects the account reads and replaces its own
+ * balance the same way: with compare-and-set in cents, adaptive (while
+ * cold) and padded mode, under its lock in monitor and lock mode. Only
+ * striped and actor accounts, whose balance cannot be read and written
+ * in one step, compute the change from the balance just read and apply
+ * it like a deposit, so there a concurrent update is never overwritten
+ * but interest can miss one landing in between. Either way the change
+ * goes to the journal, event log and snapshots like any other.
+ */
+public class InterestSweep {
+
+	/*
+	 * ------------
+	 * Data members
+	 * ------------
+	 */
+
+	/**
+	 * Accounts swept by one task without splitting further
+	 */
+	private static final int LEAF = 1 << 14;
+
+	/**
+	 * Interest rate per sweep, e.g. 0.0001 for 1 basis point
+	 */
+	private final double rate;
+
+	/**
+	 * Fee per sweep in cents
+	 */
+	private final long fee;
+
+	/**
+	 * Pool running the sweep tasks
+	 */
+	private final ForkJoinPool pool;
+
+	/**
+	 * Compare-and-sets retried because of a concurrent update
+	 */
+	private final LongAdder retries = new LongAdder();
+
+	/*
+	 * ------------
+	 * Constructors
+	 * ------------
+	 */
+
+	/**
+	 * Runs sweeps on the common pool
+	 * @param rate Interest rate per sweep, negative for negative interest
+	 * @param fee Flat fee per sweep, rounded to cents
+	 */
+	public InterestSweep(double rate, double fee) {
+		this(rate, fee, ForkJoinPool.commonPool());
+	}
+
+	/**
+	 * @param rate Interest rate per sweep, negative for negative interest
+	 * @param fee Flat fee per sweep, rounded to cents
+	 * @param pool Pool running the sweep tasks
+	 */
+	public InterestSweep(double rate, double fee, ForkJoinPool pool) {
+		this.rate = rate;
+		this.fee = CentsAccount.toCents(fee);
+		this.pool = pool;
+	}
+
+	/*
+	 * -------
+	 * Methods
+	 * -------
+	 */
+
+	/**
+	 * @param cents A balance in cents
+	 * @return the balance after interest and fee
+	 */
+	public long charge(long cents) {
+		return cents + Math.round(cents * rate) - fee;
+	}
+
+	/**
+	 * @return compare-and-sets retried so far because of concurrent updates
+	 */
+	public long retries() {
+		return retries.sum();
+	}
+
+	/**
+	 * Sweeps every account of a columnar table
+	 * @param table Accounts to sweep
+	 */
+	public void sweep(ColumnarAccounts table) {
+		pool.invoke(new Range((from, to) -> {
+			long retried = 0;
+			for (int i = from; i < to; i++) {
+				long c = table.getCents(i);
+				while (!table.compareAndSetCents(i, c, charge(c))) {
+					c = table.getCents(i);
+					retried++;
+				}
+			}
+			retries.add(retried);
+		}, 0, table.size()));
+	}
+
+	/**
+	 * Sweeps every account of a table of Account objects
+	 * @param table Accounts to sweep
+	 */
+	public void sweep(AccountTable table) {
+		pool.invoke(new Range((from, to) -> {
+			for (int i = from; i < to; i++)
+				table.get(i).apply(this::charge);
+		}, 0, table.size()));
+	}
+
+	/**
+	 * Sweep of a range of accounts by one task
+	 */
+	private interface Leaf {
+		/**
+		 * @param from Index of the first account
+		 * @param to Index after the last account
+		 */
+		void sweep(int from, int to);
+	}
+
+	/**
+	 * Range of accounts, split in halves until it is small enough to sweep
+	 */
+	private static class Range extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		private final Leaf leaf;
+		private final int from;
+		private final int to;
+
+		Range(Leaf leaf, int from, int to) {
+			this.leaf = leaf;
+			this.from = from;
+			this.to = to;
+		}
+
+		protected void compute() {
+			if (to - from <= LEAF) {
+				leaf.sweep(from, to);
+				return;
+			}
+			int middle = (from + to) >>> 1;
+			invokeAll(new Range(leaf, from, middle), new Range(leaf, middle, to));
+		}
+	}
+
+	/**
+	 * Times sweeps over a columnar table, first while traffic threads
+	 * deposit and withdraw, then on a quiet table, and checks every
+	 * balance afterwards. Then does the same over an AccountTable, with a
+	 * Depositor and a Withdrawer on some of its accounts as traffic.
+	 *
+	 * Options: accounts=10_000_000, traffic=2 (threads that each deposit
+	 * an amount and withdraw it again from random accounts, and pool
+	 * threads running Depositors and Withdrawers), amount=10, rate=0.0001,
+	 * fee=0.5, sweeps=3 (with traffic, and as many without),
+	 * mode=monitor, tableAccounts=100_000 (0 to skip the AccountTable
+	 * run), busy=1000 (accounts with a Depositor and a Withdrawer),
+	 * iterations=1000 (deposits, and as many withdrawals, per account).
+	 */
+	public static void main(String[] args) {
+		Options options = null;
+		try {
+			options = new Options(args);
+			AccountManager.checkMode(options.getString("mode", "monitor"));
+		} catch (IllegalArgumentException e) {
+			System.err.println(e.getMessage() + "\nUsage: java task4.InterestSweep [accounts=N] [traffic=N] [amount=N]"
+				+ " [rate=R] [fee=N] [sweeps=N] [mode=" + AccountManager.MODES + "] [tableAccounts=N] [busy=N] [iterations=N]");
+			System.exit(1);
+		}
+		int n = options.getInt("accounts", 10000000);
+		int traffic = options.getInt("traffic", 2);
+		long amount = CentsAccount.toCents(options.getDouble("amount", 10));
+		int sweeps = options.getInt("sweeps", 3);
+		InterestSweep sweep = new InterestSweep(options.getDouble("rate", 0.0001), options.getDouble("fee", 0.5));
+
+		ColumnarAccounts table = new ColumnarAccounts(n);
+		long[] expected = new long[n];
+		int name = table.names().encode("Customer");
+		int first = table.reserve(n);
+		ThreadLocalRandom random = ThreadLocalRandom.current();
+		for (int i = 0; i < n; i++) {
+			expected[i] = random.nextLong(100000, 10000000);
+			table.set(first + i, 1000 + i, name, expected[i]);
+		}
+
+		// Every deposit is followed by the same withdrawal, so the traffic
+		// leaves each balance where the sweeps put it
+		LongAdder operations = new LongAdder();
+		AtomicBoolean stop = new AtomicBoolean();
+		Thread[] thread = new Thread[traffic];
+		for (int t = 0; t < traffic; t++) {
+			thread[t] = new Thread(() -> {
+				ThreadLocalRandom r = ThreadLocalRandom.current();
+				long ops = 0;
+				while (!stop.get()) {
+					int i = r.nextInt(n);
+					table.addCents(i, amount);
+					table.addCents(i, -amount);
+					ops += 2;
+				}
+				operations.add(ops);
+			});
+			thread[t].start();
+		}
+		for (int s = 1; s <= sweeps; s++) {
+			long start = System.nanoTime();
+			sweep.sweep(table);
+			long millis = (System.nanoTime() - start) / 1000000;
+			System.out.println("Sweep " + s + " of " + n + " accounts with traffic: " + millis + " ms");
+		}
+		stop.set(true);
+		try {
+			for (Thread t : thread)
+				t.join();
+		} catch (InterruptedException e) {
+			e.printStackTrace();
+		}
+		for (int s = 1; s <= sweeps; s++) {
+			long start = System.nanoTime();
+			sweep.sweep(table);
+			long millis = (System.nanoTime() - start) / 1000000;
+			System.out.println("Sweep " + s + " of " + n + " accounts, quiet: " + millis + " ms");
+		}
+
+		// A sweep that lands between a deposit and its withdrawal earns
+		// interest on the deposit too; anything beyond that was lost
+		int wrong = 0;
+		long tolerance = sweeps * (Math.round(amount * Math.abs(sweep.rate)) + 1);
+		for (int i = 0; i < n; i++) {
+			long e = expected[i];
+			for (int s = 0; s < 2 * sweeps; s++)
+				e = sweep.charge(e);
+			if (Math.abs(table.getCents(i) - e) > tolerance)
+				wrong++;
+		}
+		System.out.println("Concurrent operations: " + operations.sum() + ", retried compare-and-sets: " + sweep.retries());
+		System.out.println("Accounts with a wrong balance: " + wrong);
+
+		int m = options.getInt("tableAccounts", 100000);
+		if (m > 0)
+			wrong += sweepTable(sweep, options.getString("mode", "monitor"), m, Math.min(options.getInt("busy", 1000), m),
+				options.getInt("iterations", 1000), traffic, sweeps);
+		if (wrong > 0)
+			System.exit(1);
+	}
+
+	/**
+	 * Times sweeps over an AccountTable, first while pool threads run a
+	 * Depositor and a Withdrawer on some of the accounts, then on a quiet
+	 * table, and checks every balance afterwards
+	 * @param sweep Sweep to run
+	 * @param mode Account implementation, one of AccountManager.MODES
+	 * @param n Number of accounts
+	 * @param busy Accounts with a Depositor and a Withdrawer
+	 * @param iterations Deposits of 10, and as many withdrawals, per busy account
+	 * @param traffic Pool threads running the Depositors and Withdrawers
+	 * @param sweeps Sweeps with traffic, and as many without
+	 * @return number of accounts with a wrong balance
+	 */
+	private static int sweepTable(InterestSweep sweep, String mode, int n, int busy, int iterations, int traffic, int sweeps) {
+		Account[] account = new Account[n];
+		long[] expected = new long[n];
+		ThreadLocalRandom random = ThreadLocalRandom.current();
+		for (int i = 0; i < n; i++) {
+			expected[i] = random.nextLong(100000, 10000000);
+			account[i] = AccountManager.newAccount(mode, 1000 + i, "Customer" + i, (double) expected[i] / CentsAccount.CENTS_PER_UNIT);
+		}
+		AccountTable table = new AccountTable(account);
+
+		// Every Depositor has a Withdrawer taking out as much, but the two
+		// run independently, so a sweep can find an account up to all of
+		// one's operations ahead of the other's
+		ExecutorService pool = AccountManager.newExecutor("pool:" + Math.max(1, traffic));
+		for (int b = 0; b < busy; b++) {
+			Account a = account[(int) ((long) b * n / busy)];
+			pool.execute(new Depositor(a, iterations));
+			pool.execute(new Withdrawer(a, iterations));
+		}
+		pool.shutdown();
+		for (int s = 1; s <= sweeps; s++) {
+			long start = System.nanoTime();
+			sweep.sweep(table);
+			long millis = (System.nanoTime() - start) / 1000000;
+			System.out.println("Sweep " + s + " of " + n + " " + mode + " accounts with traffic: " + millis + " ms");
+		}
+		try {
+			pool.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			e.printStackTrace();
+		}
+		for (int s = 1; s <= sweeps; s++) {
+			long start = System.nanoTime();
+			sweep.sweep(table);
+			long millis = (System.nanoTime() - start) / 1000000;
+			System.out.println("Sweep " + s + " of " + n + " " + mode + " accounts, quiet: " + millis + " ms");
+		}
+
+		// Interest on what the Depositor was ahead, or the Withdrawer was,
+		// when a sweep passed is allowed; a lost deposit or withdrawal of 10
+		// is beyond that as long as iterations * rate stays well below 1
+		int wrong = 0;
+		long ahead = (long) iterations * 10 * CentsAccount.CENTS_PER_UNIT;
+		long tolerance = sweeps * (Math.round(ahead * Math.abs(sweep.rate)) + 1);
+		for (int i = 0; i < n; i++) {
+			long e = expected[i];
+			for (int s = 0; s < 2 * sweeps; s++)
+				e = sweep.charge(e);
+			if (Math.abs(CentsAccount.toCents(account[i].getBalance()) - e) > tolerance)
+				wrong++;
+		}
+		System.out.println("Accounts with a wrong balance: " + wrong);
+		return wrong;
+	}
+}
@@ -0,0 +1,602 @@
+package task4;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32C;
+
+/**
+ * Class Journal
+ * Implements a binary write-ahead log of account creations, deposits
+ * and withdrawals, with group commit.
+ *
+ * Appending threads only copy a small record into an in-memory buffer.
+ * A single flusher thread swaps that buffer for an empty one, writes it
+ * to the file as one frame and, depending on the durability level, forces
+ * it to disk, so a single fsync covers every record appended meanwhile:
+ *
+ *   NONE     frames are written to the OS but never forced
+ *   BATCHED  frames are forced every interval; appenders never wait
+ *   PER_OP   appenders wait until their record has been forced
+ *
+ * A frame is an int payload length, an int CRC32C of the payload and
+ * the payload. Recovery stops at the first incomplete or corrupt frame,
+ * which is what a crash in the middle of a write leaves behind, and a
+ * journal reopened after recovery cuts that tail off before appending,
+ * so later frames are not hidden behind it. Recovery reads one frame at
+ * a time, so a journal of any length can be read back, and checkpoint()
+ * replaces a journal by the creation records of the current balances,
+ * so the log does not grow from run to run.
+ */
+public class Journal implements Closeable {
+
+	/**
+	 * How long appended records may stay in memory
+	 */
+	public enum Durability { NONE, BATCHED, PER_OP }
+
+	/**
+	 * Result of recover()
+	 */
+	public static final class Recovery {
+		/**
+		 * Recovered accounts in creation order
+		 */
+		public final Account[] accounts;
+
+		/**
+		 * Length of the valid frames at the start of the file
+		 */
+		public final long validLength;
+
+		Recovery(Account[] accounts, long validLength) {
+			this.accounts = accounts;
+			this.validLength = validLength;
+		}
+	}
+
+	/*
+	 * ------------
+	 * Data members
+	 * ------------
+	 */
+
+	/**
+	 * Record type of an account creation: acc, cents, name length, name
+	 */
+	private static final byte CREATE = 1;
+
+	/**
+	 * Record type of a deposit or withdrawal: acc, signed cents
+	 */
+	private static final byte UPDATE = 2;
+
+	/**
+	 * Size of an UPDATE record in bytes
+	 */
+	private static final int UPDATE_SIZE = 1 + 4 + 8;
+
+	/**
+	 * Size of a frame header in bytes
+	 */
+	private static final int FRAME_HEADER = 4 + 4;
+
+	/**
+	 * Capacity of each of the two record buffers
+	 */
+	private static final int BUFFER_SIZE = 1 << 20;
+
+	/**
+	 * File the journal appends to
+	 */
+	private final FileChannel channel;
+
+	/**
+	 * Durability level of this journal
+	 */
+	private final Durability durability;
+
+	/**
+	 * Longest time between two flushes for NONE and BATCHED, in nanoseconds
+	 */
+	private final long intervalNanos;
+
+	/**
+	 * Guards the buffers, sequence numbers and closed flag
+	 */
+	private final ReentrantLock lock = new ReentrantLock();
+
+	/**
+	 * Signalled when the flusher has something to do
+	 */
+	private final Condition hasWork = lock.newCondition();
+
+	/**
+	 * Signalled when the flusher has emptied the active buffer
+	 */
+	private final Condition notFull = lock.newCondition();
+
+	/**
+	 * Signalled when durableSeq advances
+	 */
+	private final Condition durable = lock.newCondition();
+
+	/**
+	 * Buffer appenders copy records into, frame header space reserved
+	 */
+	private ByteBuffer active = newBuffer();
+
+	/**
+	 * Buffer being written out by the flusher
+	 */
+	private ByteBuffer spare = newBuffer();
+
+	/**
+	 * Number of records appended so far
+	 */
+	private long appendedSeq;
+
+	/**
+	 * Number of records written (and forced, unless NONE) so far
+	 */
+	private long durableSeq;
+
+	/**
+	 * Number of frames forced to disk, for reporting
+	 */
+	private long syncs;
+
+	/**
+	 * Set by close(); the flusher drains the buffer and exits
+	 */
+	private boolean closed;
+
+	/**
+	 * First I/O error of the flusher, rethrown to appenders
+	 */
+	private IOException failure;
+
+	/**
+	 * Thread writing and forcing the buffers
+	 */
+	private final Thread flusher;
+
+	/*
+	 * ------------
+	 * Constructors
+	 * ------------
+	 */
+
+	/**
+	 * Opens a journal for appending at the end of the file, creating the
+	 * file if needed.
+	 *
+	 * @param file Journal file
+	 * @param durability Durability level
+	 * @param intervalMillis Longest time between flushes for NONE and BATCHED
+	 * @throws IOException if the file cannot be opened
+	 */
+	public Journal(Path file, Durability durability, long intervalMillis) throws IOException {
+		this(file, durability, intervalMillis, -1);
+	}
+
+	/**
+	 * Opens a journal for appending after the frames found by recover(),
+	 * cutting off whatever a crash left behind them.
+	 *
+	 * @param file Journal file
+	 * @param durability Durability level
+	 * @param intervalMillis Longest time between flushes for NONE and BATCHED
+	 * @param validLength Recovery.validLength of the file, or -1 to append
+	 * at the end of the file
+	 * @throws IOException if the file cannot be opened or truncated
+	 */
+	public Journal(Path file, Durability durability, long intervalMillis, long validLength) throws IOException {
+		this.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+		if (validLength >= 0 && channel.size() > validLength) {
+			channel.truncate(validLength);
+			channel.force(true);
+		}
+		channel.position(channel.size());
+		this.durability = durability;
+		this.intervalNanos = TimeUnit.MILLISECONDS.toNanos(intervalMillis);
+		this.flusher = new Thread(this::flushLoop, "journal-flusher");
+		this.flusher.setDaemon(true);
+		this.flusher.start();
+	}
+
+	/*
+	 * -------
+	 * Methods
+	 * -------
+	 */
+
+	/**
+	 * @return an empty record buffer with room for a frame header
+	 */
+	private static ByteBuffer newBuffer() {
+		return ByteBuffer.allocateDirect(BUFFER_SIZE).position(FRAME_HEADER);
+	}
+
+	/**
+	 * Logs the creation of an account with its current balance
+	 * @param account Account to log
+	 */
+	public void create(Account account) {
+		append(createRecord(account));
+	}
+
+	/**
+	 * @param account Account to log
+	 * @return the CREATE record of the account with its current balance
+	 */
+	private static ByteBuffer createRecord(Account account) {
+		byte[] name = String.valueOf(account.getName()).getBytes(StandardCharsets.UTF_8);
+		ByteBuffer record = ByteBuffer.allocate(1 + 4 + 8 + 2 + name.length);
+		record.put(CREATE).putInt(account.getAcc()).putLong(CentsAccount.toCents(account.getBalance()));
+		record.putShort((short) name.length).put(name).flip();
+		return record;
+	}
+
+	/**
+	 * Logs a deposit (positive) or withdrawal (negative)
+	 * @param acc Account number
+	 * @param delta Signed amount, rounded to cents
+	 */
+	public void update(int acc, double delta) {
+		lock.lock();
+		try {
+			reserve(UPDATE_SIZE);
+			active.put(UPDATE).putInt(acc).putLong(CentsAccount.toCents(delta));
+			commit(UPDATE_SIZE);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Appends a prepared record
+	 * @param record Record bytes between position and limit
+	 */
+	private void append(ByteBuffer record) {
+		lock.lock();
+		try {
+			int size = record.remaining();
+			reserve(size);
+			active.put(record);
+			commit(size);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Waits until the active buffer has room for a record. Lock held.
+	 * @param size Record size in bytes
+	 */
+	private void reserve(int size) {
+		checkOpen();
+		while (active.remaining() < size) {
+			hasWork.signal();
+			notFull.awaitUninterruptibly();
+			checkOpen();
+		}
+	}
+
+	/**
+	 * Numbers the record just copied in and waits for it if PER_OP. Lock held.
+	 *
+	 * The first record of a buffer wakes the flusher, which then waits out
+	 * the rest of the interval, so even a single record is written and,
+	 * if BATCHED, forced within one interval.
+	 *
+	 * The wait is uninterruptible because deposit() and withdraw() cannot
+	 * throw InterruptedException; the interrupt status is kept.
+	 * @param size Size of the record in bytes
+	 */
+	private void commit(int size) {
+		long seq = ++appendedSeq;
+		if (durability == Durability.PER_OP || active.position() == FRAME_HEADER + size
+				|| active.position() > BUFFER_SIZE / 2)
+			hasWork.signal();
+		if (durability == Durability.PER_OP) {
+			while (durableSeq < seq) {
+				if (failure != null)
+					throw new UncheckedIOException("Journal write failed", failure);
+				durable.awaitUninterruptibly();
+			}
+		}
+	}
+
+	/**
+	 * Fails if the journal is closed or the flusher hit an I/O error. Lock held.
+	 */
+	private void checkOpen() {
+		if (failure != null)
+			throw new UncheckedIOException("Journal write failed", failure);
+		if (closed)
+			throw new IllegalStateException("Journal is closed");
+	}
+
+	/**
+	 * Body of the flusher thread: swap, write, force, repeat
+	 */
+	private void flushLoop() {
+		long lastFlush = System.nanoTime();
+		while (true) {
+			long seq;
+			boolean last;
+			lock.lock();
+			try {
+				while (!closed && active.position() == FRAME_HEADER)
+					hasWork.awaitUninterruptibly();
+				if (durability != Durability.PER_OP) {
+					long left = lastFlush + intervalNanos - System.nanoTime();
+					while (!closed && left > 0 && active.position() <= BUFFER_SIZE / 2 && !hasWaiters())
+						left = awaitNanos(left);
+				}
+				ByteBuffer full = active;
+				active = spare;
+				spare = full;
+				seq = appendedSeq;
+				last = closed;
+				notFull.signalAll();
+			} finally {
+				lock.unlock();
+			}
+
+			IOException error = null;
+			try {
+				write(spare);
+			} catch (IOException e) {
+				error = e;
+			}
+			lastFlush = System.nanoTime();
+
+			lock.lock();
+			try {
+				if (error != null && failure == null)
+					failure = error;
+				if (error == null)
+					durableSeq = seq;
+				durable.signalAll();
+				notFull.signalAll();
+				if (last || failure != null)
+					return;
+			} finally {
+				lock.unlock();
+			}
+		}
+	}
+
+	/**
+	 * @return true if appenders are blocked on a full buffer. Lock held.
+	 */
+	private boolean hasWaiters() {
+		return lock.hasWaiters(notFull);
+	}
+
+	/**
+	 * Waits for work for at most the given time. Lock held.
+	 * @param nanos Longest wait in nanoseconds
+	 * @return the time left to wait
+	 */
+	private long awaitNanos(long nanos) {
+		try {
+			return hasWork.awaitNanos(nanos);
+		} catch (InterruptedException e) {
+			return 0;
+		}
+	}
+
+	/**
+	 * Writes one buffer as a frame and forces it unless NONE
+	 * @param buffer Buffer with records after the frame header space
+	 * @throws IOException on a write error
+	 */
+	private void write(ByteBuffer buffer) throws IOException {
+		if (writeFrame(channel, buffer) && durability != Durability.NONE) {
+			channel.force(false);
+			syncs++;
+		}
+	}
+
+	/**
+	 * Writes the records of a buffer as one frame, if there are any, and
+	 * empties the buffer
+	 * @param out File to append to
+	 * @param buffer Buffer with records after the frame header space
+	 * @return false if the buffer held no records
+	 * @throws IOException on a write error
+	 */
+	private static boolean writeFrame(FileChannel out, ByteBuffer buffer) throws IOException {
+		int end = buffer.position();
+		if (end > FRAME_HEADER) {
+			CRC32C crc = new CRC32C();
+			crc.update(buffer.duplicate().position(FRAME_HEADER).limit(end));
+			buffer.putInt(0, end - FRAME_HEADER).putInt(4, (int) crc.getValue());
+			buffer.position(0).limit(end);
+			while (buffer.hasRemaining())
+				out.write(buffer);
+		}
+		buffer.clear().position(FRAME_HEADER);
+		return end > FRAME_HEADER;
+	}
+
+	/**
+	 * @return number of records appended so far
+	 */
+	public long appended() {
+		lock.lock();
+		try {
+			return appendedSeq;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return number of fsyncs issued so far; at most one per frame
+	 */
+	public long syncs() {
+		lock.lock();
+		try {
+			return syncs;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Flushes everything appended so far, forces it and closes the file
+	 * @throws IOException if the last write or the close fails
+	 */
+	public void close() throws IOException {
+		lock.lock();
+		try {
+			if (closed)
+				return;
+			closed = true;
+			hasWork.signalAll();
+		} finally {
+			lock.unlock();
+		}
+		try {
+			flusher.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		channel.force(true);
+		channel.close();
+		if (failure != null)
+			throw failure;
+	}
+
+	/**
+	 * Rebuilds the account table from a journal file.
+	 *
+	 * Accounts are created in the order of their CREATE records with the
+	 * balance they were logged with, then every complete UPDATE is applied.
+	 *
+	 * @param file Journal file
+	 * @param mode Account implementation, one of AccountManager.MODES
+	 * @return the recovered accounts, none if the file does not exist, and
+	 * the offset after the last valid frame
+	 * @throws IOException if the file cannot be read
+	 */
+	public static Recovery recover(Path file, String mode) throws IOException {
+		Map<Integer, String> names = new LinkedHashMap<Integer, String>();
+		Map<Integer, Long> cents = new LinkedHashMap<Integer, Long>();
+		long validLength = 0;
+		if (Files.exists(file)) {
+			try (FileChannel in = FileChannel.open(file, StandardOpenOption.READ)) {
+				// No frame is larger than a record buffer, so one buffer holds
+				// any of them
+				ByteBuffer header = ByteBuffer.allocate(FRAME_HEADER);
+				ByteBuffer frame = ByteBuffer.allocate(BUFFER_SIZE - FRAME_HEADER);
+				long size = in.size();
+				while (size - validLength >= FRAME_HEADER) {
+					header.clear();
+					readFully(in, header, validLength);
+					int length = header.getInt(0);
+					int checksum = header.getInt(4);
+					if (length < 0 || length > frame.capacity() || length > size - validLength - FRAME_HEADER)
+						break;
+					frame.clear().limit(length);
+					readFully(in, frame, validLength + FRAME_HEADER);
+					frame.flip();
+					CRC32C crc = new CRC32C();
+					crc.update(frame.duplicate());
+					if ((int) crc.getValue() != checksum)
+						break;
+					replay(frame, names, cents);
+					validLength += FRAME_HEADER + length;
+				}
+			}
+		}
+
+		List<Account> accounts = new ArrayList<Account>();
+		for (Map.Entry<Integer, String> e : names.entrySet())
+			accounts.add(AccountManager.newAccount(mode, e.getKey(), e.getValue(), cents.get(e.getKey()) / 100.0));
+		return new Recovery(accounts.toArray(new Account[0]), validLength);
+	}
+
+	/**
+	 * Fills a buffer from a file
+	 * @param in File to read
+	 * @param buffer Buffer to fill up to its limit
+	 * @param at File offset to read from
+	 * @throws IOException if the file cannot be read or ends first
+	 */
+	private static void readFully(FileChannel in, ByteBuffer buffer, long at) throws IOException {
+		while (buffer.hasRemaining()) {
+			int n = in.read(buffer, at);
+			if (n < 0)
+				throw new IOException("Journal ended in the middle of a frame");
+			at += n;
+		}
+	}
+
+	/**
+	 * Replaces a journal, which must not be open, by the creation records
+	 * of the given accounts with their current balances. The new journal
+	 * is written next to the old one and moved over it once forced, so a
+	 * crash leaves either of the two behind.
+	 *
+	 * @param file Journal file
+	 * @param accounts Accounts to log, e.g. those just recovered
+	 * @throws IOException if the journal cannot be written or replaced
+	 */
+	public static void checkpoint(Path file, Account[] accounts) throws IOException {
+		Path temp = file.resolveSibling(file.getFileName() + ".checkpoint");
+		try (FileChannel out = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING)) {
+			ByteBuffer buffer = newBuffer();
+			for (Account a : accounts) {
+				ByteBuffer record = createRecord(a);
+				if (buffer.remaining() < record.remaining())
+					writeFrame(out, buffer);
+				buffer.put(record);
+			}
+			writeFrame(out, buffer);
+			out.force(true);
+		}
+		Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * Applies the records of one frame
+	 * @param frame Frame payload
+	 * @param names Account names by account number, in creation order
+	 * @param cents Balances in cents by account number
+	 */
+	private static void replay(ByteBuffer frame, Map<Integer, String> names, Map<Integer, Long> cents) {
+		while (frame.hasRemaining()) {
+			byte type = frame.get();
+			int acc = frame.getInt();
+			long amount = frame.getLong();
+			if (type == CREATE) {
+				byte[] name = new byte[frame.getShort() & 0xffff];
+				frame.get(name);
+				names.put(acc, new String(name, StandardCharsets.UTF_8));
+				cents.put(acc, amount);
+			} else if (cents.containsKey(acc)) {
+				cents.put(acc, cents.get(acc) + amount);
+			}
+		}
+	}
+}
@@ -0,0 +1,164 @@
+package task4;
+
+import java.util.Arrays;
+
+/**
+ * Class LatencyHistogram
+ * Implements a log-linear histogram of latencies in nanoseconds.
+ *
+ * Values below 64 are counted exactly; above that every power of two is
+ * split into 32 buckets, so reported percentiles are within about 3% of
+ * the true value. A histogram is not thread-safe: give each thread its
+ * own and add() them together once the threads are done.
+ */
+public class LatencyHistogram {
+
+	/*
+	 * ------------
+	 * Data members
+	 * ------------
+	 */
+
+	/**
+	 * Number of sub-buckets per power of two, as a power of two
+	 */
+	private static final int SUB_BITS = 5;
+
+	/**
+	 * Number of sub-buckets per power of two
+	 */
+	private static final int SUB = 1 << SUB_BITS;
+
+	/**
+	 * Counts of values per bucket
+	 */
+	private final long[] counts = new long[64 * SUB];
+
+	/**
+	 * Total number of recorded values
+	 */
+	private long total;
+
+	/**
+	 * Sum of all recorded values, for the mean
+	 */
+	private long sum;
+
+	/**
+	 * Largest recorded value
+	 */
+	private long max;
+
+	/*
+	 * -------
+	 * Methods
+	 * -------
+	 */
+
+	/**
+	 * Records one value
+	 * @param nanos A latency in nanoseconds; negative values count as 0
+	 */
+	public void record(long nanos) {
+		if (nanos < 0)
+			nanos = 0;
+		counts[index(nanos)]++;
+		total++;
+		sum += nanos;
+		if (nanos > max)
+			max = nanos;
+	}
+
+	/**
+	 * Adds all values recorded by another histogram to this one
+	 * @param other Histogram to merge in
+	 */
+	public void add(LatencyHistogram other) {
+		for (int i = 0; i < counts.length; i++)
+			counts[i] += other.counts[i];
+		total += other.total;
+		sum += other.sum;
+		if (other.max > max)
+			max = other.max;
+	}
+
+	/**
+	 * Forgets all recorded values
+	 */
+	public void reset() {
+		Arrays.fill(counts, 0);
+		total = 0;
+		sum = 0;
+		max = 0;
+	}
+
+	/**
+	 * @return number of recorded values
+	 */
+	public long count() {
+		return total;
+	}
+
+	/**
+	 * @return largest recorded value
+	 */
+	public long max() {
+		return max;
+	}
+
+	/**
+	 * @return mean of the recorded values, 0 if there are none
+	 */
+	public double mean() {
+		return (total == 0) ? 0 : (double) sum / total;
+	}
+
+	/**
+	 * @param percentile A percentile between 0 and 100
+	 * @return the lower bound of the bucket holding that percentile
+	 */
+	public long percentile(double percentile) {
+		if (total == 0)
+			return 0;
+		long rank = (long) Math.ceil(percentile / 100 * total);
+		if (rank < 1)
+			rank = 1;
+		long seen = 0;
+		for (int i = 0; i < counts.length; i++) {
+			seen += counts[i];
+			if (seen >= rank)
+				return Math.min(lowerBound(i), max);
+		}
+		return max;
+	}
+
+	/**
+	 * @return a one-line summary of the usual percentiles in nanoseconds
+	 */
+	public String summary() {
+		return "p50=" + percentile(50) + " p90=" + percentile(90) + " p99=" + percentile(99)
+			+ " p99.9=" + percentile(99.9) + " max=" + max + " (ns)";
+	}
+
+	/**
+	 * @param value A non-negative value
+	 * @return the bucket counting that value
+	 */
+	private static int index(long value) {
+		if (value < 2 * SUB)
+			return (int) value;
+		int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BITS;
+		return (shift + 1) * SUB + (int) ((value >> shift) - SUB);
+	}
+
+	/**
+	 * @param index A bucket index
+	 * @return the smallest value counted by that bucket
+	 */
+	private static long lowerBound(int index) {
+		if (index < 2 * SUB)
+			return index;
+		int shift = index / SUB - 1;
+		return (long) (index % SUB + SUB) << shift;
+	}
+}
@@ -0,0 +1,111 @@
+package task4;
+
+/**
+ * Class LockComparison
+ * Runs the AccountManager workload once per locking strategy and prints
+ * the elapsed times side by side.
+ *
+ * The strategies compared are task3 (synchronized methods) and every
+ * task4 account mode known to AccountManager. Each run uses fresh
+ * accounts and threads, and the final balances are checked against the
+ * initial ones since every deposit has a matching withdrawal.
+ */
+public class LockComparison {
+
+	/**
+	 * Account numbers used by every run, same as in AccountManager
+	 */
+	private static final int[] ACC = {1234, 2345, 3456, 4567, 5678, 6789, 7890, 8901, 9012, 4321};
+
+	/**
+	 * Customer names used by every run, same as in AccountManager
+	 */
+	private static final String[] NAME = {"Mike", "Adam", "Linda", "John", "Rami", "Lee", "Tom", "Lisa", "Sam", "Ted"};
+
+	public static void main(String[] args) {
+		int rounds = 1;
+		try {
+			rounds = new Options(args).getInt("rounds", rounds);
+		} catch (IllegalArgumentException e) {
+			System.err.println(e.getMessage() + "\nUsage: java task4.LockComparison [rounds=N]");
+			System.exit(1);
+		}
+
+		System.out.println("Strategy\t\t\tRound\tElapsed (ms)\tBalances intact");
+		for (int r = 1; r <= rounds; r++) {
+			report("task3 synchronized method", r, runTask3());
+			for (String mode : AccountManager.MODES.split("\\|"))
+				report("task4 " + mode + "\t\t", r, runTask4(mode));
+		}
+	}
+
+	/**
+	 * Prints one line of the comparison table
+	 * @param strategy Name of the strategy
+	 * @param round Round number
+	 * @param result Elapsed milliseconds, negated if balances were corrupted
+	 */
+	private static void report(String strategy, int round, long result) {
+		System.out.println(strategy + "\t" + round + "\t" + Math.abs(result) + "\t\t" + (result >= 0));
+	}
+
+	/**
+	 * Runs the workload against task3 accounts
+	 * @return elapsed milliseconds, negated if any balance changed
+	 */
+	private static long runTask3() {
+		task3.Account[] account = new task3.Account[ACC.length];
+		Thread[] threads = new Thread[2 * ACC.length];
+		for (int i = 0; i < ACC.length; i++) {
+			account[i] = new task3.Account(ACC[i], NAME[i], 1000 * (i + 1));
+			threads[2 * i] = new task3.Depositor(account[i]);
+			threads[2 * i + 1] = new task3.Withdrawer(account[i]);
+		}
+
+		long elapsed = time(threads);
+		for (int i = 0; i < ACC.length; i++)
+			if (account[i].getBalance() != 1000 * (i + 1))
+				return -elapsed;
+		return elapsed;
+	}
+
+	/**
+	 * Runs the workload against task4 accounts
+	 * @param mode Account implementation, one of AccountManager.MODES
+	 * @return elapsed milliseconds, negated if any balance changed
+	 */
+	private static long runTask4(String mode) {
+		Account[] account = new Account[ACC.length];
+		Thread[] threads = new Thread[2 * ACC.length];
+		for (int i = 0; i < ACC.length; i++) {
+			account[i] = AccountManager.newAccount(mode, ACC[i], NAME[i], 1000 * (i + 1));
+			threads[2 * i] = new Depositor(account[i]);
+			threads[2 * i + 1] = new Withdrawer(account[i]);
+		}
+
+		long elapsed = time(threads);
+		for (int i = 0; i < ACC.length; i++)
+			if (account[i].getBalance() != 1000 * (i + 1))
+				return -elapsed;
+		return elapsed;
+	}
+
+	/**
+	 * Starts all threads and waits for them, same as AccountManager
+	 * @param threads Depositor and Withdrawer threads, interleaved
+	 * @return elapsed milliseconds
+	 */
+	static long time(Thread[] threads) {
+		long start = System.currentTimeMillis();
+		for (Thread t : threads)
+			t.start();
+		for (Thread t : threads) {
+			try {
+				t.join();
+			} catch (InterruptedException e) {
+				e.printStackTrace();
+			}
+		}
+		return System.currentTimeMillis() - start;
+	}
+}
@@ -0,0 +1,447 @@
+package task4;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Class MappedAccountStore
+ * Implements an off-heap account table kept in a memory-mapped file.
+ *
+ * Each account is a fixed-width record addressed by its index in the
+ * table; no Java object exists per account, so tens of millions of
+ * accounts put no load on the garbage collector and reopening the file
+ * makes the whole table available again without loading it. The record
+ * file starts with a 64-byte header followed by 32-byte records:
+ *
+ *   0  int   account number
+ *   4  int   name length in bytes
+ *   8  long  balance in cents, updated atomically in place
+ *   16 long  offset of the name in the names file
+ *   24 long  reserved
+ *
+ * Names are variable length and appended in batches to a separate file
+ * named after the record file with a ".names" suffix. The record count in
+ * the header only covers records whose names are already in that file,
+ * so a process killed before writing a batch leaves a shorter but
+ * consistent table behind, not records pointing past the names. The
+ * record file is
+ * mapped in segments of 2^24 records because a single mapping is
+ * limited to 2 GB. Records use the platform byte order, which is kept
+ * in the header and checked on open.
+ */
+public class MappedAccountStore implements Closeable {
+
+	/*
+	 * ------------
+	 * Data members
+	 * ------------
+	 */
+
+	/**
+	 * Identifies a record file
+	 */
+	private static final long MAGIC = 0x4143434f554e5453L;
+
+	/**
+	 * Size of the file header in bytes
+	 */
+	private static final int HEADER = 64;
+
+	/**
+	 * Size of one account record in bytes
+	 */
+	private static final int RECORD = 32;
+
+	/**
+	 * Records per mapped segment, as a power of two
+	 */
+	private static final int SEGMENT_BITS = 24;
+
+	/**
+	 * Header offsets of the capacity and of the number of records in use
+	 */
+	private static final int CAPACITY_AT = 16, COUNT_AT = 24;
+
+	/**
+	 * Record offsets of the fields
+	 */
+	private static final int ACC_AT = 0, NAME_LENGTH_AT = 4, BALANCE_AT = 8, NAME_AT = 16;
+
+	/**
+	 * Atomic long and int access to the mapped buffers
+	 */
+	private static final VarHandle LONGS = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.nativeOrder());
+	private static final VarHandle INTS = MethodHandles.byteBufferViewVarHandle(int[].class, ByteOrder.nativeOrder());
+
+	/**
+	 * Record file
+	 */
+	private final FileChannel records;
+
+	/**
+	 * Names file
+	 */
+	private final FileChannel names;
+
+	/**
+	 * Mapping of the header
+	 */
+	private final MappedByteBuffer header;
+
+	/**
+	 * Mappings of the record segments
+	 */
+	private final MappedByteBuffer[] segments;
+
+	/**
+	 * Maximum number of accounts
+	 */
+	private final long capacity;
+
+	/**
+	 * Number of records in use; the count in the header lags behind until
+	 * their names are written
+	 */
+	private volatile long count;
+
+	/**
+	 * Names appended by add() but not yet written to the names file
+	 */
+	private final ByteBuffer pendingNames = ByteBuffer.allocate(1 << 16);
+
+	/**
+	 * Length of the names file including pending names
+	 */
+	private long namesEnd;
+
+	/**
+	 * Length of the names file without pending names
+	 */
+	private volatile long namesWritten;
+
+	/*
+	 * ------------
+	 * Constructors
+	 * ------------
+	 */
+
+	/**
+	 * Maps the given files
+	 * @param file Record file
+	 * @param capacity Capacity to create the file with, or 0 to open an existing one
+	 * @throws IOException if the files cannot be opened or are not account stores
+	 */
+	private MappedAccountStore(Path file, long capacity) throws IOException {
+		boolean create = capacity > 0;
+		records = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		names = FileChannel.open(Paths.get(file + ".names"), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		header = records.map(FileChannel.MapMode.READ_WRITE, 0, HEADER);
+		header.order(ByteOrder.nativeOrder());
+		if (create) {
+			if (records.size() > HEADER)
+				throw new IOException(file + " already exists");
+			header.putLong(0, MAGIC);
+			header.putInt(8, ByteOrder.nativeOrder() == ByteOrder.LITTLE_ENDIAN ? 0 : 1);
+			header.putInt(12, RECORD);
+			header.putLong(CAPACITY_AT, capacity);
+			header.putLong(COUNT_AT, 0);
+		} else {
+			if (header.getLong(0) != MAGIC)
+				throw new IOException(file + " is not an account store");
+			if (header.getInt(8) != (ByteOrder.nativeOrder() == ByteOrder.LITTLE_ENDIAN ? 0 : 1))
+				throw new IOException(file + " was written with the other byte order");
+			capacity = header.getLong(CAPACITY_AT);
+		}
+		this.capacity = capacity;
+		this.namesEnd = this.namesWritten = names.size();
+		this.count = header.getLong(COUNT_AT);
+
+		long segmentBytes = (long) RECORD << SEGMENT_BITS;
+		int count = (int) ((capacity + (1L << SEGMENT_BITS) - 1) >>> SEGMENT_BITS);
+		segments = new MappedByteBuffer[count];
+		for (int s = 0; s < count; s++) {
+			long size = Math.min(segmentBytes, (capacity - ((long) s << SEGMENT_BITS)) * RECORD);
+			segments[s] = records.map(FileChannel.MapMode.READ_WRITE, HEADER + s * segmentBytes, size);
+		}
+	}
+
+	/**
+	 * Creates a new, empty store
+	 * @param file Record file; must not exist yet
+	 * @param capacity Maximum number of accounts
+	 * @return the store
+	 * @throws IOException if the files cannot be created
+	 */
+	public static MappedAccountStore create(Path file, long capacity) throws IOException {
+		if (capacity < 1)
+			throw new IllegalArgumentException("Capacity must be positive, got " + capacity);
+		return new MappedAccountStore(file, capacity);
+	}
+
+	/**
+	 * Opens an existing store; nothing is read until it is used
+	 * @param file Record file
+	 * @return the store
+	 * @throws IOException if the files cannot be opened or are not account stores
+	 */
+	public static MappedAccountStore open(Path file) throws IOException {
+		return new MappedAccountStore(file, 0);
+	}
+
+	/*
+	 * -------
+	 * Methods
+	 * -------
+	 */
+
+	/**
+	 * @param index Account index
+	 * @return the segment holding the record
+	 */
+	private ByteBuffer segment(long index) {
+		if (index < 0 || index >= size())
+			throw new IndexOutOfBoundsException("No account at index " + index);
+		return segments[(int) (index >>> SEGMENT_BITS)];
+	}
+
+	/**
+	 * @param index Account index
+	 * @param field Field offset within the record
+	 * @return offset of the field within its segment
+	 */
+	private static int offset(long index, int field) {
+		return (int) (index & ((1 << SEGMENT_BITS) - 1)) * RECORD + field;
+	}
+
+	/**
+	 * @return number of accounts in the store
+	 */
+	public long size() {
+		return count;
+	}
+
+	/**
+	 * @return maximum number of accounts
+	 */
+	public long capacity() {
+		return capacity;
+	}
+
+	/**
+	 * Adds an account at the end of the table
+	 * @param acc Account number
+	 * @param name Customer's name
+	 * @param balance Initial balance
+	 * @return index of the new account
+	 * @throws IOException if the name cannot be written
+	 * @throws IllegalStateException if the store is full
+	 */
+	public synchronized long add(int acc, String name, double balance) throws IOException {
+		long index = size();
+		if (index >= capacity)
+			throw new IllegalStateException("Account store is full (" + capacity + " accounts)");
+		byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+		if (pendingNames.remaining() < bytes.length)
+			flushNames();
+		long nameAt = namesEnd;
+		if (bytes.length > pendingNames.capacity())
+			names.write(ByteBuffer.wrap(bytes), nameAt);
+		else
+			pendingNames.put(bytes);
+		namesEnd += bytes.length;
+		if (pendingNames.position() == 0)
+			namesWritten = namesEnd;
+
+		ByteBuffer segment = segments[(int) (index >>> SEGMENT_BITS)];
+		INTS.set(segment, offset(index, ACC_AT), acc);
+		INTS.set(segment, offset(index, NAME_LENGTH_AT), bytes.length);
+		LONGS.set(segment, offset(index, NAME_AT), nameAt);
+		LONGS.set(segment, offset(index, BALANCE_AT), CentsAccount.toCents(balance));
+		// Publish the record only once all its fields are written, and to
+		// the file only once its name is there too
+		count = index + 1;
+		if (pendingNames.position() == 0)
+			LONGS.setRelease(header, COUNT_AT, count);
+		return index;
+	}
+
+	/**
+	 * Writes the names appended since the last flush to the names file
+	 * @throws IOException if the names cannot be written
+	 */
+	private synchronized void flushNames() throws IOException {
+		pendingNames.flip();
+		long at = namesEnd - pendingNames.remaining();
+		while (pendingNames.hasRemaining())
+			at += names.write(pendingNames, at);
+		pendingNames.clear();
+		namesWritten = namesEnd;
+		LONGS.setRelease(header, COUNT_AT, count);
+	}
+
+	/**
+	 * @param index Account index
+	 * @return the account number
+	 */
+	public int getAcc(long index) {
+		return (int) INTS.get(segment(index), offset(index, ACC_AT));
+	}
+
+	/**
+	 * @param index Account index
+	 * @return the customer's name, read from the names file
+	 * @throws IOException if the name cannot be read
+	 */
+	public String getName(long index) throws IOException {
+		ByteBuffer segment = segment(index);
+		ByteBuffer bytes = ByteBuffer.allocate((int) INTS.get(segment, offset(index, NAME_LENGTH_AT)));
+		long at = (long) LONGS.get(segment, offset(index, NAME_AT));
+		if (at + bytes.capacity() > namesWritten)
+			flushNames();
+		while (bytes.hasRemaining())
+			if (names.read(bytes, at + bytes.position()) < 0)
+				throw new IOException("Names file is truncated");
+		return new String(bytes.array(), StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * @param index Account index
+	 * @return the balance in cents
+	 */
+	public long getCents(long index) {
+		return (long) LONGS.getVolatile(segment(index), offset(index, BALANCE_AT));
+	}
+
+	/**
+	 * @param index Account index
+	 * @return the balance
+	 */
+	public double getBalance(long index) {
+		return (double) getCents(index) / CentsAccount.CENTS_PER_UNIT;
+	}
+
+	/**
+	 * Atomically adds to the balance in place
+	 * @param index Account index
+	 * @param cents Signed amount in cents
+	 */
+	public void addCents(long index, long cents) {
+		LONGS.getAndAdd(segment(index), offset(index, BALANCE_AT), cents);
+	}
+
+	/**
+	 * Deposits money into an account
+	 * @param index Account index
+	 * @param amount A double that represents a deposit amount
+	 */
+	public void deposit(long index, double amount) {
+		addCents(index, CentsAccount.toCents(amount));
+	}
+
+	/**
+	 * Withdraws money from an account
+	 * @param index Account index
+	 * @param amount A double that represents a withdrawal amount
+	 */
+	public void withdraw(long index, double amount) {
+		addCents(index, -CentsAccount.toCents(amount));
+	}
+
+	/**
+	 * Writes all changes through to the files
+	 * @throws IOException if the files cannot be forced
+	 */
+	public void force() throws IOException {
+		flushNames();
+		header.force();
+		for (MappedByteBuffer segment : segments)
+			segment.force();
+		names.force(true);
+	}
+
+	/**
+	 * Forces all changes and closes the files. The mappings stay valid
+	 * until they are garbage collected, but must not be used any more.
+	 * @throws IOException if the files cannot be forced or closed
+	 */
+	public void close() throws IOException {
+		force();
+		records.close();
+		names.close();
+	}
+
+	/**
+	 * Creates (or reopens) a store, runs random deposits and withdrawals
+	 * on it and reports timings. Options: file=, accounts=, threads=, ops=
+	 */
+	public static void main(String[] args) throws Exception {
+		Options options = null;
+		try {
+			options = new Options(args);
+		} catch (IllegalArgumentException e) {
+			System.err.println(e.getMessage() + "\nUsage: java task4.MappedAccountStore [file=PATH] [accounts=N] [threads=N] [ops=N]");
+			System.exit(1);
+		}
+		Path file = Paths.get(options.getString("file", "accounts.store"));
+		long accounts = options.getLong("accounts", 10000000L);
+		int threads = options.getInt("threads", 4);
+		long ops = options.getLong("ops", 20000000L);
+
+		long start = System.nanoTime();
+		MappedAccountStore store;
+		if (file.toFile().exists()) {
+			store = open(file);
+			System.out.printf("Opened %,d accounts in %.1f ms%n", store.size(), (System.nanoTime() - start) / 1e6);
+		} else {
+			store = create(file, accounts);
+			for (long i = 0; i < accounts; i++)
+				store.add((int) i, "Customer" + i, 1000);
+			System.out.printf("Created %,d accounts in %.1f ms%n", store.size(), (System.nanoTime() - start) / 1e6);
+		}
+
+		long before = 0;
+		for (long i = 0; i < store.size(); i++)
+			before += store.getCents(i);
+
+		MappedAccountStore table = store;
+		Thread[] workers = new Thread[threads];
+		for (int t = 0; t < threads; t++) {
+			workers[t] = new Thread(() -> {
+				ThreadLocalRandom random = ThreadLocalRandom.current();
+				long n = table.size();
+				for (long i = 0; i < ops / threads; i++) {
+					long index = random.nextLong(n);
+					if ((i & 1) == 0)
+						table.deposit(index, 10);
+					else
+						table.withdraw(index, 10);
+				}
+			});
+		}
+		start = System.nanoTime();
+		for (Thread w : workers)
+			w.start();
+		for (Thread w : workers)
+			w.join();
+		long elapsed = System.nanoTime() - start;
+
+		long after = 0;
+		for (long i = 0; i < store.size(); i++)
+			after += store.getCents(i);
+		System.out.printf("%,d ops by %d threads: %,.0f ops/s, total balance %s%n", ops / threads * threads, threads,
+			ops / threads * threads * 1e9 / elapsed, after == before ? "unchanged" : "CHANGED");
+		System.out.println("First account: " + store.getAcc(0) + " " + store.getName(0) + " " + store.getBalance(0));
+		store.close();
+	}
+}
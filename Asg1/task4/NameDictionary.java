@@ -0,0 +1,100 @@
+package task4;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Class NameDictionary
+ * Implements a dictionary assigning a small integer code to each distinct
+ * customer name, so a table can store a name as one int.
+ *
+ * Codes are dense and handed out in order of first use, starting at 0.
+ * Looking up a name that is already known and decoding a code never
+ * lock; only adding a new name does.
+ */
+public class NameDictionary {
+
+	/*
+	 * ------------
+	 * Data members
+	 * ------------
+	 */
+
+	/**
+	 * Code of every known name
+	 */
+	private final ConcurrentHashMap<String, Integer> codes = new ConcurrentHashMap<String, Integer>();
+
+	/**
+	 * Name of every code; replaced by a larger copy when full
+	 */
+	private volatile String[] names = new String[64];
+
+	/**
+	 * Number of codes handed out
+	 */
+	private volatile int size;
+
+	/*
+	 * -------
+	 * Methods
+	 * -------
+	 */
+
+	/**
+	 * @param name A customer name, not null
+	 * @return the code of the name, assigned now if the name is new
+	 */
+	public int encode(String name) {
+		Integer code = codes.get(name);
+		return (code != null) ? code : add(name);
+	}
+
+	/**
+	 * Assigns the next code to a name unless another thread just did
+	 * @param name A customer name
+	 * @return the code of the name
+	 */
+	private synchronized int add(String name) {
+		Integer code = codes.get(name);
+		if (code != null)
+			return code;
+		int n = size;
+		String[] table = names;
+		if (n == table.length)
+			table = Arrays.copyOf(table, 2 * n);
+		table[n] = name;
+		names = table;
+		// Publish the name before the code can be looked up
+		size = n + 1;
+		codes.put(name, n);
+		return n;
+	}
+
+	/**
+	 * @param code A code returned by encode()
+	 * @return the name of the code
+	 * @throws IndexOutOfBoundsException if the code was never handed out
+	 */
+	public String decode(int code) {
+		if (code < 0 || code >= size)
+			throw new IndexOutOfBoundsException("No name with code " + code);
+		return names[code];
+	}
+
+	/**
+	 * @param name A customer name
+	 * @return the code of the name, or -1 if it is unknown
+	 */
+	public int lookup(String name) {
+		Integer code = codes.get(name);
+		return (code != null) ? code : -1;
+	}
+
+	/**
+	 * @return number of distinct names
+	 */
+	public int size() {
+		return size;
+	}
+}
@@ -0,0 +1,371 @@
+package task4;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Class NameIndex
+ * Implements a concurrent secondary index of accounts by customer name,
+ * answering exact and prefix queries.
+ *
+ * Entries are kept in a ConcurrentSkipListMap ordered by name and then
+ * account number, so all accounts whose names share a prefix are
+ * adjacent and a prefix query is one seek followed by a short scan.
+ * Queries never lock. An account belongs to at most one index, and once
+ * added, Account.setName() and Account.setAcc() change its entry here as
+ * well: the new entry is added before the old one is removed, so a
+ * concurrent query may briefly find the account twice but never miss it.
+ * Changes of the same account, and adding it to or removing it from an
+ * index, are serialized on one of a few striped locks shared by all
+ * indexes and chosen by account number, so a rename racing add() never
+ * leaves the old name behind. Accounts with a null name are not indexed.
+ */
+public class NameIndex {
+
+	/**
+	 * Index entry: a name and the number of the account holding it
+	 */
+	private static final class Key implements Comparable<Key> {
+		final String name;
+		final int acc;
+
+		Key(String name, int acc) {
+			this.name = name;
+			this.acc = acc;
+		}
+
+		public int compareTo(Key other) {
+			int c = name.compareTo(other.name);
+			return (c != 0) ? c : Integer.compare(acc, other.acc);
+		}
+
+		public boolean equals(Object obj) {
+			return obj instanceof Key && compareTo((Key) obj) == 0;
+		}
+
+		public int hashCode() {
+			return name.hashCode() * 31 + acc;
+		}
+	}
+
+	/*
+	 * ------------
+	 * Data members
+	 * ------------
+	 */
+
+	/**
+	 * Number of rename locks, a power of two
+	 */
+	private static final int STRIPES = 64;
+
+	/**
+	 * Accounts by name and account number
+	 */
+	private final ConcurrentSkipListMap<Key, Account> entries;
+
+	/**
+	 * Rename locks, chosen by account number. Shared by all indexes, so a
+	 * rename of an account in no index is serialized with add() too.
+	 */
+	private static final ReentrantLock[] LOCKS = new ReentrantLock[STRIPES];
+
+	static {
+		for (int i = 0; i < STRIPES; i++)
+			LOCKS[i] = new ReentrantLock();
+	}
+
+	/*
+	 * ------------
+	 * Constructors
+	 * ------------
+	 */
+
+	/**
+	 * Creates an empty index
+	 */
+	public NameIndex() {
+		this.entries = new ConcurrentSkipListMap<Key, Account>();
+	}
+
+	/**
+	 * Indexes many accounts at once: the entries are created and sorted on
+	 * all processors and then inserted into the skip list in key order,
+	 * whatever the order of the array. Must be called
+	 * before the accounts are shared with other threads.
+	 * @param accounts Accounts to index, none of them in an index yet
+	 * @return the new index
+	 * @throws IllegalStateException if an account already is in an index
+	 */
+	public static NameIndex build(Account[] accounts) {
+		NameIndex index = new NameIndex();
+		for (int i = 0; i < accounts.length; i++)
+			if (!accounts[i].casNames(null, index) && accounts[i].getNames() != index) {
+				int acc = accounts[i].getAcc();
+				while (--i >= 0)
+					accounts[i].casNames(index, null);
+				throw new IllegalStateException("Account " + acc + " already is in a name index");
+			}
+		@SuppressWarnings("unchecked")
+		Map.Entry<Key, Account>[] sorted = Arrays.stream(accounts).parallel()
+			.filter(a -> a.getName() != null)
+			.map(a -> new AbstractMap.SimpleImmutableEntry<Key, Account>(new Key(a.getName(), a.getAcc()), a))
+			.toArray(Map.Entry[]::new);
+		Arrays.parallelSort(sorted, Map.Entry.comparingByKey());
+		for (Map.Entry<Key, Account> e : sorted)
+			index.entries.put(e.getKey(), e.getValue());
+		return index;
+	}
+
+	/*
+	 * -------
+	 * Methods
+	 * -------
+	 */
+
+	/**
+	 * @param acc Account number
+	 * @return the rename lock of the account
+	 */
+	private static ReentrantLock lockOf(int acc) {
+		return LOCKS[stripe(acc)];
+	}
+
+	/**
+	 * @param acc Account number
+	 * @return index of the rename lock of the account
+	 */
+	private static int stripe(int acc) {
+		return (acc ^ (acc >>> 16)) & (STRIPES - 1);
+	}
+
+	/**
+	 * Takes the rename lock of an account, retrying if the account number
+	 * changed before the lock was held
+	 * @param account Account to lock
+	 * @return the lock held
+	 */
+	private static ReentrantLock lock(Account account) {
+		while (true) {
+			int acc = account.getAcc();
+			ReentrantLock lock = lockOf(acc);
+			lock.lock();
+			if (account.getAcc() == acc)
+				return lock;
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Adds an account; later setName() and setAcc() calls keep the index
+	 * up to date
+	 * @param account Account to index
+	 * @throws IllegalStateException if the account already is in another index
+	 */
+	public void add(Account account) {
+		ReentrantLock lock = lock(account);
+		try {
+			if (!account.casNames(null, this) && account.getNames() != this)
+				throw new IllegalStateException("Account " + account.getAcc() + " already is in a name index");
+			if (account.getName() != null)
+				entries.put(new Key(account.getName(), account.getAcc()), account);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Removes an account from the index
+	 * @param account Account to remove
+	 * @return true if the account was in this index
+	 */
+	public boolean remove(Account account) {
+		ReentrantLock lock = lock(account);
+		try {
+			if (!account.casNames(this, null))
+				return false;
+			if (account.getName() != null)
+				entries.remove(new Key(account.getName(), account.getAcc()));
+			return true;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Changes the name of an account and of its entry in the index it is
+	 * in, if any; called by Account.setName()
+	 * @param account Account to rename
+	 * @param name New name
+	 */
+	static void rename(Account account, String name) {
+		ReentrantLock lock = lock(account);
+		try {
+			NameIndex index = account.getNames();
+			String previous = account.getName();
+			if (index != null && name != null)
+				index.entries.put(new Key(name, account.getAcc()), account);
+			account.assignName(name);
+			if (index != null && previous != null && !previous.equals(name))
+				index.entries.remove(new Key(previous, account.getAcc()));
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Changes the number of an account and its entry in the index it is
+	 * in, if any; called by Account.setAcc(). Holds the rename locks of
+	 * both numbers, taken in stripe order.
+	 * @param account Account to renumber
+	 * @param acc New account number
+	 */
+	static void renumber(Account account, int acc) {
+		while (true) {
+			int previous = account.getAcc();
+			int s = stripe(previous), t = stripe(acc);
+			ReentrantLock first = LOCKS[Math.min(s, t)], second = LOCKS[Math.max(s, t)];
+			first.lock();
+			second.lock();
+			try {
+				if (account.getAcc() != previous)
+					continue;
+				NameIndex index = account.getNames();
+				String name = account.getName();
+				if (index != null && name != null)
+					index.entries.put(new Key(name, acc), account);
+				account.assignAcc(acc);
+				if (index != null && name != null && previous != acc)
+					index.entries.remove(new Key(name, previous));
+				return;
+			} finally {
+				second.unlock();
+				first.unlock();
+			}
+		}
+	}
+
+	/**
+	 * @param name Customer name
+	 * @return accounts with exactly that name, by account number
+	 */
+	public List<Account> get(String name) {
+		List<Account> found = new ArrayList<Account>();
+		for (Account a : entries.subMap(new Key(name, Integer.MIN_VALUE), true, new Key(name, Integer.MAX_VALUE), true).values())
+			found.add(a);
+		return found;
+	}
+
+	/**
+	 * @param prefix Start of the customer name
+	 * @param limit Largest number of accounts to return
+	 * @return accounts whose names start with prefix, by name and number
+	 */
+	public List<Account> prefix(String prefix, int limit) {
+		List<Account> found = new ArrayList<Account>();
+		for (Map.Entry<Key, Account> e : entries.tailMap(new Key(prefix, Integer.MIN_VALUE)).entrySet()) {
+			if (found.size() >= limit || !e.getKey().name.startsWith(prefix))
+				break;
+			found.add(e.getValue());
+		}
+		return found;
+	}
+
+	/**
+	 * @param prefix Start of the customer name
+	 * @return number of accounts whose names start with prefix
+	 */
+	public int countPrefix(String prefix) {
+		int n = 0;
+		for (Key k : entries.tailMap(new Key(prefix, Integer.MIN_VALUE)).keySet()) {
+			if (!k.name.startsWith(prefix))
+				break;
+			n++;
+		}
+		return n;
+	}
+
+	/**
+	 * @return number of indexed accounts; traverses the whole index
+	 */
+	public int size() {
+		return entries.size();
+	}
+
+	/**
+	 * @param random Source of letters
+	 * @return a random capitalized name of 6 to 10 letters
+	 */
+	private static String randomName(ThreadLocalRandom random) {
+		char[] name = new char[6 + random.nextInt(5)];
+		name[0] = (char) ('A' + random.nextInt(26));
+		for (int i = 1; i < name.length; i++)
+			name[i] = (char) ('a' + random.nextInt(26));
+		return new String(name);
+	}
+
+	/**
+	 * Benchmarks building the index and querying it.
+	 *
+	 * Options: accounts=2_000_000, threads=1,2,4, prefix=2 (letters per
+	 * query prefix), limit=20, renames=0,10 (percent of operations
+	 * renaming an account), plus warmups=, iterations= and millis= (see
+	 * Bench). The index is built once sequentially and once in parallel.
+	 */
+	public static void main(String[] args) {
+		Options options = null;
+		try {
+			options = new Options(args);
+		} catch (IllegalArgumentException e) {
+			System.err.println(e.getMessage() + "\nUsage: java task4.NameIndex [accounts=N] [threads=...]"
+				+ " [prefix=LETTERS] [limit=N] [renames=PERCENT,...] [warmups=N] [iterations=N] [millis=N]");
+			System.exit(1);
+		}
+		int n = options.getInt("accounts", 2000000);
+		int[] threads = AccountBenchmark.ints(options.getString("threads", "1,2,4"));
+		int prefixLength = options.getInt("prefix", 2);
+		int limit = options.getInt("limit", 20);
+		int[] renames = AccountBenchmark.ints(options.getString("renames", "0,10"));
+		Bench bench = new Bench(options);
+
+		Account[] account = new Account[n];
+		ThreadLocalRandom random = ThreadLocalRandom.current();
+		for (int i = 0; i < n; i++)
+			account[i] = new Account(1000 + i, randomName(random), 1000);
+
+		long start = System.nanoTime();
+		NameIndex sequential = new NameIndex();
+		for (Account a : account)
+			sequential.add(a);
+		long sequentialMillis = (System.nanoTime() - start) / 1000000;
+		for (Account a : account)
+			sequential.remove(a);
+		sequential = null;
+		start = System.nanoTime();
+		NameIndex index = build(account);
+		long parallelMillis = (System.nanoTime() - start) / 1000000;
+		System.out.println("Built index of " + n + " names: sequential " + sequentialMillis + " ms, parallel "
+			+ parallelMillis + " ms on " + Runtime.getRuntime().availableProcessors() + " processors");
+		String sample = account[0].getName().substring(0, prefixLength);
+		System.out.println("Prefix \"" + sample + "\" matches " + index.countPrefix(sample) + " accounts");
+
+		System.out.println("threads\trenames%\tresult");
+		for (int r : renames)
+			for (int t : threads) {
+				Bench.Task task = thread -> {
+					ThreadLocalRandom rnd = ThreadLocalRandom.current();
+					if (rnd.nextInt(100) < r)
+						account[rnd.nextInt(n)].setName(randomName(rnd));
+					else
+						index.prefix(randomName(rnd).substring(0, prefixLength), limit);
+				};
+				System.out.println(t + "\t" + r + "\t\t" + bench.run(t, task));
+			}
+	}
+}
@@ -0,0 +1,111 @@
+package task4;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Class Options
+ * Parses "key=value" command line arguments for the account drivers.
+ *
+ * Unknown keys are kept as well so every driver only looks up the
+ * settings it cares about and falls back to its own defaults.
+ */
+public class Options {
+
+	/*
+	 * ------------
+	 * Data members
+	 * ------------
+	 */
+
+	/**
+	 * Parsed settings, keyed by option name
+	 */
+	private final Map<String, String> values = new HashMap<String, String>();
+
+	/*
+	 * ------------
+	 * Constructors
+	 * ------------
+	 */
+
+	/**
+	 * Parses every argument of the form key=value.
+	 *
+	 * @param args Command line arguments as passed to main()
+	 * @throws IllegalArgumentException if an argument has no '='
+	 */
+	public Options(String[] args) {
+		for (String arg : args) {
+			int eq = arg.indexOf('=');
+			if (eq <= 0)
+				throw new IllegalArgumentException("\"" + arg + "\" is not of the form key=value");
+			values.put(arg.substring(0, eq), arg.substring(eq + 1));
+		}
+	}
+
+	/*
+	 * ---------
+	 * Accessors
+	 * ---------
+	 */
+
+	/**
+	 * @param key Option name
+	 * @return true if the option was given on the command line
+	 */
+	public boolean has(String key) {
+		return values.containsKey(key);
+	}
+
+	/**
+	 * @param key Option name
+	 * @param def Value to use when the option is absent
+	 * @return the option as a string
+	 */
+	public String getString(String key, String def) {
+		String value = values.get(key);
+		return (value == null) ? def : value;
+	}
+
+	/**
+	 * @param key Option name
+	 * @param def Value to use when the option is absent
+	 * @return the option as an int
+	 */
+	public int getInt(String key, int def) {
+		String value = values.get(key);
+		return (value == null) ? def : Integer.parseInt(value.replace("_", ""));
+	}
+
+	/**
+	 * @param key Option name
+	 * @param def Value to use when the option is absent
+	 * @return the option as a long
+	 */
+	public long getLong(String key, long def) {
+		String value = values.get(key);
+		return (value == null) ? def : Long.parseLong(value.replace("_", ""));
+	}
+
+	/**
+	 * @param key Option name
+	 * @param def Value to use when the option is absent
+	 * @return the option as a double
+	 */
+	public double getDouble(String key, double def) {
+		String value = values.get(key);
+		return (value == null) ? def : Double.parseDouble(value);
+	}
+
+	/**
+	 * @param key Option name
+	 * @param type Enum class the value names a constant of
+	 * @param def Value to use when the option is absent
+	 * @return the option as an enum constant, matched case-insensitively
+	 */
+	public <E extends Enum<E>> E getEnum(String key, Class<E> type, E def) {
+		String value = values.get(key);
+		return (value == null) ? def : Enum.valueOf(type, value.toUpperCase());
+	}
+}
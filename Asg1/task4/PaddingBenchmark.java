@@ -0,0 +1,71 @@
+package task4;
+
+/**
+ * Class PaddingBenchmark
+ * Measures false sharing between neighbouring accounts.
+ *
+ * Benchmark thread t only ever updates account t, so no two threads
+ * share a balance; the accounts are created back to back, so their
+ * balances are neighbours in memory. Any slowdown as threads are added
+ * comes from cache lines bouncing between cores. The variants are:
+ *
+ *   dense    SlotAccounts in one densely packed long[]
+ *   padded   SlotAccounts with a cache line pair per balance
+ *   cents    CentsAccount objects allocated one after another
+ *
+ * plus any other AccountManager mode. Updates skip the fake computations
+ * of deposit() and withdraw(), which would hide the cost of the shared
+ * line.
+ *
+ * Options: variants=dense,padded,cents, threads=1,2,4, plus warmups=,
+ * iterations= and millis= (see Bench).
+ */
+public class PaddingBenchmark {
+
+	public static void main(String[] args) {
+		Options options = null;
+		try {
+			options = new Options(args);
+		} catch (IllegalArgumentException e) {
+			System.err.println(e.getMessage() + "\nUsage: java task4.PaddingBenchmark [variants=dense,padded,cents,...]"
+				+ " [threads=...] [warmups=N] [iterations=N] [millis=N]");
+			System.exit(1);
+		}
+		String[] variants = options.getString("variants", "dense,padded,cents").split(",");
+		int[] threads = AccountBenchmark.ints(options.getString("threads", "1,2,4"));
+		Bench bench = new Bench(options);
+
+		System.out.println("variant\tthreads\tresult");
+		for (int t : threads)
+			for (String variant : variants) {
+				Account[] account = accounts(variant, t);
+				Bench.Result result = bench.run(t, thread -> {
+					Account a = account[thread];
+					a.apply(10);
+					a.apply(-10);
+				});
+				for (Account a : account)
+					if (a.getBalance() != 1000)
+						throw new IllegalStateException("Account " + a.getAcc() + " ended at " + a.getBalance());
+				System.out.println(variant + "\t" + t + "\t" + result);
+			}
+	}
+
+	/**
+	 * Creates neighbouring accounts of one variant
+	 * @param variant dense, padded or an AccountManager mode
+	 * @param n Number of accounts
+	 * @return the accounts, each with a balance of 1000
+	 * @throws IllegalArgumentException if the variant is unknown
+	 */
+	static Account[] accounts(String variant, int n) {
+		AccountSlots slots = null;
+		if (variant.equals("dense") || variant.equals("padded"))
+			slots = new AccountSlots(variant.equals("padded"));
+		Account[] account = new Account[n];
+		for (int i = 0; i < n; i++)
+			account[i] = (slots != null) ? slots.newAccount(i, "Customer" + i, 1000)
+				: AccountManager.newAccount(variant, i, "Customer" + i, 1000);
+		return account;
+	}
+}
@@ -0,0 +1,257 @@
+package task4;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Class PartitionedExecutor
+ * Implements thread-affinity routing: every account is hashed by number
+ * to one of a fixed set of worker threads, and every task for the
+ * account runs on that owner.
+ *
+ * claim() makes the owner the only thread allowed to change the account,
+ * so deposits and withdrawals inside its tasks skip the lock or monitor
+ * and the balance's cache line stays with one core. Other threads can
+ * still read balances, which stay consistent through the account's
+ * sequence number. A worker runs its tasks one at a time in submission
+ * order, so two loops on the same account take turns instead of
+ * interleaving.
+ */
+public class PartitionedExecutor {
+
+	/*
+	 * ------------
+	 * Data members
+	 * ------------
+	 */
+
+	/**
+	 * Task telling a worker to stop
+	 */
+	private static final Runnable STOP = () -> { };
+
+	/**
+	 * Owner threads
+	 */
+	private final Worker[] workers;
+
+	/**
+	 * Accounts claimed so far, handed back by close()
+	 */
+	private final List<Account> claimed = new ArrayList<Account>();
+
+	/**
+	 * Set by close()
+	 */
+	private volatile boolean closed;
+
+	/*
+	 * ------------
+	 * Constructors
+	 * ------------
+	 */
+
+	/**
+	 * Starts the workers as daemon threads
+	 * @param count Number of workers
+	 */
+	public PartitionedExecutor(int count) {
+		workers = new Worker[Math.max(1, count)];
+		for (int i = 0; i < workers.length; i++) {
+			workers[i] = new Worker(i);
+			workers[i].start();
+		}
+	}
+
+	/*
+	 * -------
+	 * Methods
+	 * -------
+	 */
+
+	/**
+	 * @return number of workers
+	 */
+	public int partitions() {
+		return workers.length;
+	}
+
+	/**
+	 * @param acc Account number
+	 * @return index of the worker owning the account
+	 */
+	public int partitionOf(int acc) {
+		int h = acc * 0x9E3779B9;
+		return (int) (((h ^ (h >>> 16)) & 0xFFFFFFFFL) * workers.length >>> 32);
+	}
+
+	/**
+	 * Hands an account to its owner worker. Must be called before any task
+	 * on the account is submitted and while no other thread changes it.
+	 * @param account Account to claim
+	 * @throws IllegalStateException if the account takes snapshots
+	 */
+	public synchronized void claim(Account account) {
+		account.setOwner(workers[partitionOf(account.getAcc())]);
+		claimed.add(account);
+	}
+
+	/**
+	 * Runs a task on the owner of an account
+	 * @param account Account the task operates on
+	 * @param task Task to run
+	 * @throws IllegalStateException if the executor is closed
+	 */
+	public void execute(Account account, Runnable task) {
+		execute(partitionOf(account.getAcc()), task);
+	}
+
+	/**
+	 * Runs a task on one worker, e.g. one that works through all accounts
+	 * of its partition
+	 * @param partition Index of the worker
+	 * @param task Task to run
+	 * @throws IllegalStateException if the executor is closed
+	 */
+	public void execute(int partition, Runnable task) {
+		if (closed)
+			throw new IllegalStateException("Partitioned executor is closed");
+		workers[partition].queue.add(task);
+	}
+
+	/**
+	 * Runs every task submitted so far, stops the workers and lets any
+	 * thread change the claimed accounts again. Call it once no thread
+	 * submits tasks any more.
+	 * @throws InterruptedException if interrupted while waiting for the workers
+	 */
+	public void close() throws InterruptedException {
+		closed = true;
+		for (Worker w : workers)
+			w.queue.add(STOP);
+		for (Worker w : workers)
+			w.join();
+		synchronized (this) {
+			for (Account a : claimed)
+				a.setOwner(null);
+			claimed.clear();
+		}
+	}
+
+	/**
+	 * Owner thread of a share of the accounts
+	 */
+	private static class Worker extends Thread {
+		/**
+		 * Tasks waiting for this worker
+		 */
+		final LinkedBlockingQueue<Runnable> queue = new LinkedBlockingQueue<Runnable>();
+
+		Worker(int index) {
+			super("account-owner-" + index);
+			setDaemon(true);
+		}
+
+		public void run() {
+			while (true) {
+				Runnable task;
+				try {
+					task = queue.take();
+				} catch (InterruptedException e) {
+					return;
+				}
+				if (task == STOP)
+					return;
+				try {
+					task.run();
+				} catch (RuntimeException e) {
+					e.printStackTrace();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Compares shared access, where every account's depositor and
+	 * withdrawer run on any thread of a pool and lock the account, with
+	 * partitioned access, where both run on the account's owner without
+	 * locking.
+	 *
+	 * Options: mode=monitor, accounts=64, workers=#processors (pool
+	 * threads and owner workers), iterations=1000000 (deposits and as many
+	 * withdrawals per account), rounds=3.
+	 */
+	public static void main(String[] args) {
+		Options options = null;
+		try {
+			options = new Options(args);
+		} catch (IllegalArgumentException e) {
+			System.err.println(e.getMessage() + "\nUsage: java task4.PartitionedExecutor [mode=" + AccountManager.MODES + "]"
+				+ " [accounts=N] [workers=N] [iterations=N] [rounds=N]");
+			System.exit(1);
+		}
+		String mode = options.getString("mode", "monitor");
+		int n = options.getInt("accounts", 64);
+		int workers = options.getInt("workers", Runtime.getRuntime().availableProcessors());
+		int iterations = options.getInt("iterations", 1000000);
+		int rounds = options.getInt("rounds", 3);
+
+		System.out.println(mode + " accounts=" + n + " workers=" + workers + " iterations=" + iterations);
+		for (int r = 1; r <= rounds; r++) {
+			Account[] account = new Account[n];
+			for (int i = 0; i < n; i++)
+				account[i] = AccountManager.newAccount(mode, i, "Customer" + i, 1000);
+			long start = System.nanoTime();
+			ExecutorService pool = AccountManager.newExecutor("pool:" + workers);
+			for (Account a : account) {
+				pool.execute(new Depositor(a, iterations));
+				pool.execute(new Withdrawer(a, iterations));
+			}
+			pool.shutdown();
+			try {
+				pool.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+			} catch (InterruptedException e) {
+				e.printStackTrace();
+			}
+			long shared = System.nanoTime() - start;
+			int wrongShared = wrong(account);
+
+			for (int i = 0; i < n; i++)
+				account[i] = AccountManager.newAccount(mode, i, "Customer" + i, 1000);
+			start = System.nanoTime();
+			PartitionedExecutor executor = new PartitionedExecutor(workers);
+			for (Account a : account) {
+				executor.claim(a);
+				executor.execute(a, new Depositor(a, iterations));
+				executor.execute(a, new Withdrawer(a, iterations));
+			}
+			try {
+				executor.close();
+			} catch (InterruptedException e) {
+				e.printStackTrace();
+			}
+			long partitioned = System.nanoTime() - start;
+			int wrongPartitioned = wrong(account);
+
+			double ops = 2.0 * n * iterations;
+			System.out.printf("Round %d: shared %,.0f ops/s, partitioned %,.0f ops/s (%.2fx), wrong balances %d/%d%n", r,
+				ops * 1e9 / shared, ops * 1e9 / partitioned, (double) shared / partitioned, wrongShared, wrongPartitioned);
+		}
+	}
+
+	/**
+	 * @param account Accounts that started at 1000 and saw as many
+	 * deposits as withdrawals
+	 * @return number of accounts whose balance is not 1000
+	 */
+	private static int wrong(Account[] account) {
+		int wrong = 0;
+		for (Account a : account)
+			if (a.getBalance() != 1000)
+				wrong++;
+		return wrong;
+	}
+}
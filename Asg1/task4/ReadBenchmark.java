@@ -0,0 +1,109 @@
+package task4;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Class ReadBenchmark
+ * Measures how fast accounts can be read while they are being written.
+ *
+ * Each benchmark thread picks a random account and either reads its
+ * number, name and balance or, with the given probability, deposits or
+ * withdraws 10. The read variants are:
+ *
+ *   getters  getAcc(), getName() and getBalance() one after another; no
+ *            consistency between the three
+ *   locked   the three getters inside synchronized (account), which is
+ *            consistent in monitor mode only
+ *   seqlock  Account.view(), consistent without locking
+ *
+ * Options: mode=monitor|lock, accounts=16, threads=1,2,4, writes=1,10,50
+ * (percent of operations that write), variants=getters,locked,seqlock,
+ * plus warmups=, iterations= and millis= (see Bench).
+ */
+public class ReadBenchmark {
+
+	public static void main(String[] args) {
+		Options options = null;
+		try {
+			options = new Options(args);
+		} catch (IllegalArgumentException e) {
+			System.err.println(e.getMessage() + "\nUsage: java task4.ReadBenchmark [mode=monitor|lock] [accounts=N]"
+				+ " [threads=...] [writes=PERCENT,...] [variants=getters,locked,seqlock] [warmups=N] [iterations=N] [millis=N]");
+			System.exit(1);
+		}
+		String mode = options.getString("mode", "monitor");
+		int n = options.getInt("accounts", 16);
+		int[] threads = AccountBenchmark.ints(options.getString("threads", "1,2,4"));
+		int[] writes = AccountBenchmark.ints(options.getString("writes", "1,10,50"));
+		String[] variants = options.getString("variants", "getters,locked,seqlock").split(",");
+		Bench bench = new Bench(options);
+
+		Account[] account = new Account[n];
+		for (int i = 0; i < n; i++)
+			account[i] = AccountManager.newAccount(mode, i, "Customer" + i, 1000);
+
+		System.out.println("variant\tthreads\twrites%\tresult");
+		for (int w : writes)
+			for (int t : threads)
+				for (String variant : variants) {
+					Bench.Task read = read(variant, account);
+					Bench.Result result = bench.run(t, thread -> {
+						ThreadLocalRandom random = ThreadLocalRandom.current();
+						if (random.nextInt(100) < w) {
+							Account a = account[random.nextInt(n)];
+							if (random.nextBoolean())
+								a.deposit(10);
+							else
+								a.withdraw(10);
+						} else {
+							read.run(thread);
+						}
+					});
+					System.out.println(variant + "\t" + t + "\t" + w + "\t" + result);
+				}
+	}
+
+	/**
+	 * Sink for read values so the JIT cannot drop the reads
+	 */
+	static volatile Object sink;
+
+	/**
+	 * @param variant getters, locked or seqlock
+	 * @param account Accounts to read
+	 * @return the read operation of the variant
+	 * @throws IllegalArgumentException if the variant is unknown
+	 */
+	static Bench.Task read(String variant, Account[] account) {
+		switch (variant) {
+			case "getters":
+				return thread -> {
+					Account a = account[ThreadLocalRandom.current().nextInt(account.length)];
+					int acc = a.getAcc();
+					String name = a.getName();
+					double balance = a.getBalance();
+					if (acc < 0 && balance < 0)
+						sink = name;
+				};
+			case "locked":
+				return thread -> {
+					Account a = account[ThreadLocalRandom.current().nextInt(account.length)];
+					synchronized (a) {
+						int acc = a.getAcc();
+						String name = a.getName();
+						double balance = a.getBalance();
+						if (acc < 0 && balance < 0)
+							sink = name;
+					}
+				};
+			case "seqlock":
+				return thread -> {
+					Account.View v = account[ThreadLocalRandom.current().nextInt(account.length)].view();
+					if (v.acc < 0 && v.balance < 0)
+						sink = v;
+				};
+			default:
+				throw new IllegalArgumentException("Unknown read variant \"" + variant + "\"");
+		}
+	}
+}
@@ -0,0 +1,133 @@
+package task4;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Class Replay
+ * Applies the events of an EventLog again, as fast as possible, and
+ * checks that the accounts end with the recorded final balances.
+ *
+ * With one thread every event is a deposit or withdrawal on the calling
+ * thread, as the recording made them. With more, the accounts are split
+ * into partitions by a PartitionedExecutor and every worker goes through
+ * the whole log, applying only the events of the accounts it owns,
+ * without locking; as amounts are whole cents, the order in which
+ * partitions get through the log does not change the result. Comparing
+ * the replay time of one log before and after a change to the account
+ * layer shows what the change does to captured traffic.
+ */
+public class Replay {
+
+	/**
+	 * Applies every event of a recording
+	 * @param recording Log read by EventLog.read()
+	 * @param account Accounts by index in the recording
+	 * @param threads Number of threads; 1 replays on the calling thread
+	 * @return number of events applied
+	 * @throws InterruptedException if interrupted while waiting for the workers
+	 */
+	public static long replay(EventLog.Recording recording, Account[] account, int threads) throws InterruptedException {
+		LongAdder applied = new LongAdder();
+		if (threads <= 1) {
+			recording.forEachRun((index, cents, count) -> {
+				Account a = account[index];
+				double delta = (double) cents / CentsAccount.CENTS_PER_UNIT;
+				for (long i = 0; i < count; i++)
+					a.apply(delta);
+				applied.add(count);
+			});
+			return applied.sum();
+		}
+
+		PartitionedExecutor executor = new PartitionedExecutor(threads);
+		int[] partition = new int[account.length];
+		for (int i = 0; i < account.length; i++) {
+			executor.claim(account[i]);
+			partition[i] = executor.partitionOf(account[i].getAcc());
+		}
+		for (int p = 0; p < executor.partitions(); p++) {
+			int mine = p;
+			executor.execute(p, () -> {
+				EventLog.Runs runs = (index, cents, count) -> {
+					if (partition[index] != mine)
+						return;
+					Account a = account[index];
+					double delta = (double) cents / CentsAccount.CENTS_PER_UNIT;
+					for (long i = 0; i < count; i++)
+						a.apply(delta);
+					applied.add(count);
+				};
+				recording.forEachRun(runs);
+			});
+		}
+		executor.close();
+		return applied.sum();
+	}
+
+	/**
+	 * Replays a log once per thread count and reports the throughput and
+	 * the number of accounts whose balance differs from the recording.
+	 *
+	 * Options: file=FILE (written by AccountManager events=FILE),
+	 * mode=monitor (account implementation to replay on), threads=1
+	 * (comma-separated list), rounds=1 (replays per thread count).
+	 */
+	public static void main(String[] args) {
+		Options options = null;
+		String file = null;
+		try {
+			options = new Options(args);
+			file = options.getString("file", null);
+			if (file == null)
+				throw new IllegalArgumentException("Missing file=");
+			AccountManager.checkMode(options.getString("mode", "monitor"));
+		} catch (IllegalArgumentException e) {
+			System.err.println(e.getMessage() + "\nUsage: java task4.Replay file=FILE [mode=" + AccountManager.MODES + "]"
+				+ " [threads=N,...] [rounds=N]");
+			System.exit(1);
+		}
+		String mode = options.getString("mode", "monitor");
+		int[] threads = AccountBenchmark.ints(options.getString("threads", "1"));
+		int rounds = options.getInt("rounds", 1);
+
+		EventLog.Recording recording = null;
+		try {
+			long start = System.nanoTime();
+			recording = EventLog.read(Paths.get(file));
+			System.out.println("Read " + recording.acc.length + " accounts from " + file + " in "
+				+ (System.nanoTime() - start) / 1000000 + " ms");
+		} catch (IOException e) {
+			System.err.println("Cannot read event log " + file + ": " + e);
+			System.exit(1);
+		}
+		if (recording.expected == null)
+			System.out.println("The log has no final balances, so they are not checked");
+
+		boolean failed = false;
+		for (int t : threads)
+			for (int r = 1; r <= rounds; r++) {
+				Account[] account = recording.newAccounts(mode);
+				long start = System.nanoTime();
+				long events = 0;
+				try {
+					events = replay(recording, account, t);
+				} catch (InterruptedException e) {
+					e.printStackTrace();
+					System.exit(1);
+				}
+				long nanos = System.nanoTime() - start;
+				int wrong = 0;
+				if (recording.expected != null)
+					for (int i = 0; i < account.length; i++)
+						if (CentsAccount.toCents(account[i].getBalance()) != recording.expected[i])
+							wrong++;
+				failed |= wrong > 0;
+				System.out.printf("%s threads=%d: %,d events in %d ms (%,.0f events/s), accounts with a wrong balance: %d%n",
+					mode, t, events, nanos / 1000000, events * 1e9 / nanos, wrong);
+			}
+		if (failed)
+			System.exit(1);
+	}
+}
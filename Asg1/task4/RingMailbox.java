@@ -0,0 +1,170 @@
+package task4;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Class RingMailbox
+ * Implements a bounded multi-producer, single-consumer queue of balance
+ * updates in preallocated ring arrays.
+ *
+ * A producer claims a sequence number with one atomic increment, fills
+ * in the slot the number maps to and then publishes the slot by storing
+ * its sequence number. The consumer polls slots in sequence order and
+ * takes a slot once it is published. Nothing is allocated per command
+ * and no lock is taken; a producer that laps the consumer backs off
+ * until its slot is free again, which bounds the memory a burst can use.
+ */
+public class RingMailbox {
+
+	/**
+	 * Receives the commands drained from a mailbox
+	 */
+	public interface Handler {
+		/**
+		 * Applies one command
+		 * @param target Account the command is for
+		 * @param cents Signed amount in cents
+		 * @param enqueued System.nanoTime() at publication, or 0 if not sampled
+		 */
+		void apply(ActorAccount target, long cents, long enqueued);
+	}
+
+	/*
+	 * ------------
+	 * Data members
+	 * ------------
+	 */
+
+	/**
+	 * One command out of this many carries its publication time
+	 */
+	private static final int STAMP_EVERY = 16;
+
+	/**
+	 * Number of slots minus one; the capacity is a power of two
+	 */
+	private final int mask;
+
+	/**
+	 * Command targets, amounts and publication times, by slot
+	 */
+	private final ActorAccount[] targets;
+	private final long[] amounts;
+	private final long[] stamps;
+
+	/**
+	 * Sequence number stored in a slot once its command is published
+	 */
+	private final AtomicLongArray published;
+
+	/**
+	 * Next sequence number to hand out to a producer
+	 */
+	private final AtomicLong tail = new AtomicLong();
+
+	/**
+	 * Next sequence number the consumer will take; every command before
+	 * it has been applied
+	 */
+	private volatile long head;
+
+	/*
+	 * ------------
+	 * Constructors
+	 * ------------
+	 */
+
+	/**
+	 * @param capacity Number of slots, rounded up to a power of two
+	 */
+	public RingMailbox(int capacity) {
+		int n = 1;
+		while (n < capacity)
+			n <<= 1;
+		mask = n - 1;
+		targets = new ActorAccount[n];
+		amounts = new long[n];
+		stamps = new long[n];
+		published = new AtomicLongArray(n);
+		for (int i = 0; i < n; i++)
+			published.set(i, i - n);
+	}
+
+	/*
+	 * -------
+	 * Methods
+	 * -------
+	 */
+
+	/**
+	 * Publishes one command; called by any number of producer threads
+	 * @param target Account the command is for
+	 * @param cents Signed amount in cents
+	 */
+	public void publish(ActorAccount target, long cents) {
+		long seq = tail.getAndIncrement();
+		int slot = (int) seq & mask;
+		// Wait for the consumer to take the command a lap earlier
+		for (int spins = 0; published.get(slot) != seq - (mask + 1) || head <= seq - (mask + 1); spins++)
+			backOff(spins);
+		targets[slot] = target;
+		amounts[slot] = cents;
+		stamps[slot] = (seq % STAMP_EVERY == 0) ? System.nanoTime() : 0;
+		published.lazySet(slot, seq);
+	}
+
+	/**
+	 * Applies every command published so far; called by the consumer only
+	 * @param handler Receives the commands in sequence order
+	 * @return number of commands applied
+	 */
+	public int drain(Handler handler) {
+		long h = head;
+		int n = 0;
+		while (true) {
+			int slot = (int) h & mask;
+			if (published.get(slot) != h)
+				break;
+			handler.apply(targets[slot], amounts[slot], stamps[slot]);
+			targets[slot] = null;
+			h++;
+			n++;
+			if ((n & 63) == 0)
+				head = h;
+		}
+		head = h;
+		return n;
+	}
+
+	/**
+	 * @return sequence number the next command will get
+	 */
+	public long tail() {
+		return tail.get();
+	}
+
+	/**
+	 * Waits until the consumer has applied every command before seq
+	 * @param seq A value returned by tail()
+	 */
+	public void awaitApplied(long seq) {
+		for (int spins = 0; head < seq; spins++)
+			backOff(spins);
+	}
+
+	/**
+	 * Waits a little longer each time the consumer has not caught up,
+	 * giving up the processor so the consumer can run
+	 * @param spins Number of times the caller has waited already
+	 */
+	private static void backOff(int spins) {
+		if (spins < 100)
+			Thread.onSpinWait();
+		else if (spins < 200)
+			Thread.yield();
+		else
+			LockSupport.parkNanos(10000);
+	}
+}
@@ -0,0 +1,127 @@
+package task4;
+
+import java.util.function.LongUnaryOperator;
+
+/**
+ * Class SlotAccount
+ * Implements an account whose balance is a slot of cents in an
+ * AccountSlots array instead of a field, so the storage decides which
+ * balances share a cache line.
+ *
+ * Updates are atomic adds on the slot, as in CentsAccount; the account
+ * object itself is only read on the update path.
+ */
+public class SlotAccount extends Account {
+
+	/*
+	 * ------------
+	 * Data members
+	 * ------------
+	 */
+
+	/**
+	 * Array holding the balance
+	 */
+	private final long[] slots;
+
+	/**
+	 * Index of the balance in slots
+	 */
+	private final int slot;
+
+	/*
+	 * ------------
+	 * Constructors
+	 * ------------
+	 */
+
+	/**
+	 * Assigns account number, name, balance and its slot; created by
+	 * AccountSlots.newAccount().
+	 *
+	 * @param acc A unique integer that represents account number
+	 * @param name A string indicating human-readable customer's name
+	 * @param balance A double indicating account balance, rounded to cents
+	 * @param slots Array holding the balance
+	 * @param slot Index of the balance in slots
+	 */
+	SlotAccount(int acc, String name, double balance, long[] slots, int slot) {
+		super(acc, name, 0);
+		this.slots = slots;
+		this.slot = slot;
+		AccountSlots.SLOT.setVolatile(slots, slot, CentsAccount.toCents(balance));
+	}
+
+	/*
+	 * -------
+	 * Methods
+	 * -------
+	 */
+
+	/**
+	 * Accessor for account balance
+	 * @return an account balance
+	 */
+	@Override
+	public double getBalance() {
+		return (double) getCents() / CentsAccount.CENTS_PER_UNIT;
+	}
+
+	/**
+	 * Mutator for account balance
+	 * @param balance A double that represents an account balance
+	 */
+	@Override
+	public void setBalance(double balance) {
+		checkOwner();
+		AccountSlots.SLOT.setVolatile(slots, slot, CentsAccount.toCents(balance));
+	}
+
+	/**
+	 * Accessor for account balance in cents
+	 * @return an account balance in cents
+	 */
+	public long getCents() {
+		return (long) AccountSlots.SLOT.getVolatile(slots, slot);
+	}
+
+	/**
+	 * Applies a signed change to the slot without locking
+	 * @param delta A double to add to the balance (negative to withdraw)
+	 */
+	@Override
+	protected void update(double delta) {
+		if (AccountStats.ENABLED)
+			getStats().count(false);
+		AccountSlots.SLOT.getAndAdd(slots, slot, CentsAccount.toCents(delta));
+	}
+
+	/**
+	 * Replaces the balance with a function of itself by compare-and-set
+	 * on the slot, retried if a concurrent change got in between
+	 * @param charge New balance in cents from the current one
+	 * @return the change made, in cents
+	 */
+	@Override
+	protected long update(LongUnaryOperator charge) {
+		while (true) {
+			long c = getCents();
+			long n = charge.applyAsLong(c);
+			if (AccountSlots.SLOT.compareAndSet(slots, slot, c, n))
+				return n - c;
+		}
+	}
+
+	/**
+	 * Applies a signed change on the owner thread with a plain read and a
+	 * release write of the slot. Safe as every other change of the slot
+	 * is rejected while the account is owned.
+	 * @param delta A double to add to the balance (negative to withdraw)
+	 */
+	@Override
+	protected void updateOwned(double delta) {
+		if (AccountStats.ENABLED)
+			getStats().count(false);
+		AccountSlots.SLOT.setRelease(slots, slot, (long) AccountSlots.SLOT.get(slots, slot) + CentsAccount.toCents(delta));
+	}
+}
@@ -0,0 +1,92 @@
+package task4;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Class SnapshotStress
+ * Races AccountTable snapshots against plain updates of a few accounts
+ * and checks that every snapshot is a consistent cut.
+ *
+ * The accounts come in pairs, and every updater deposits into the first
+ * account of a pair and then into the second, so in any consistent cut
+ * the first is never behind the second, and never ahead by more than
+ * one deposit per updater. Many updaters share few accounts so that an
+ * update counted in an old epoch often reaches an account after an
+ * update of the new epoch has already saved its snapshot balance; if
+ * that late update took the snapshot balance from the live one, the
+ * snapshot would show deposits made after it started and break the
+ * order within a pair.
+ */
+public class SnapshotStress {
+
+	/**
+	 * Runs the stress test.
+	 *
+	 * Options: mode=monitor, pairs=2, updaters=32, millis=2000.
+	 */
+	public static void main(String[] args) {
+		Options options = null;
+		try {
+			options = new Options(args);
+			AccountManager.checkMode(options.getString("mode", "monitor"));
+		} catch (IllegalArgumentException e) {
+			System.err.println(e.getMessage() + "\nUsage: java task4.SnapshotStress [mode=" + AccountManager.MODES + "]"
+				+ " [pairs=N] [updaters=N] [millis=N]");
+			System.exit(1);
+		}
+		String mode = options.getString("mode", "monitor");
+		int pairs = options.getInt("pairs", 2);
+		int updaters = options.getInt("updaters", 32);
+		long millis = options.getLong("millis", 2000);
+
+		Account[] account = new Account[2 * pairs];
+		for (int i = 0; i < account.length; i++)
+			account[i] = AccountManager.newAccount(mode, i, "Customer" + i, 0);
+		AccountTable table = new AccountTable(account, 4);
+		table.enableSnapshots();
+
+		long end = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(millis);
+		Thread[] thread = new Thread[updaters];
+		for (int u = 0; u < updaters; u++)
+			thread[u] = new Thread(() -> {
+				ThreadLocalRandom random = ThreadLocalRandom.current();
+				while (System.nanoTime() < end) {
+					int p = 2 * random.nextInt(pairs);
+					account[p].apply(1);
+					account[p + 1].apply(1);
+				}
+			});
+		for (Thread t : thread)
+			t.start();
+
+		long taken = 0, inconsistent = 0;
+		while (System.nanoTime() < end) {
+			double[] balance = table.snapshot().balances;
+			taken++;
+			for (int p = 0; p < account.length; p += 2) {
+				double ahead = balance[p] - balance[p + 1];
+				if (ahead < 0 || ahead > updaters) {
+					inconsistent++;
+					break;
+				}
+			}
+		}
+		try {
+			for (Thread t : thread)
+				t.join();
+		} catch (InterruptedException e) {
+			e.printStackTrace();
+		}
+
+		int wrong = 0;
+		for (int p = 0; p < account.length; p += 2)
+			if (account[p].getBalance() != account[p + 1].getBalance())
+				wrong++;
+		System.out.println(mode + " pairs=" + pairs + " updaters=" + updaters);
+		System.out.println("Snapshots: " + taken + " taken, " + inconsistent + " inconsistent");
+		System.out.println("Pairs with different final balances: " + wrong);
+		if (inconsistent > 0 || wrong > 0)
+			System.exit(1);
+	}
+}
@@ -0,0 +1,417 @@
+package task4;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.SubmissionPublisher;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Class TransactionPipeline
+ * Implements a java.util.concurrent.Flow pipeline that ingests deposit
+ * and withdrawal events and applies them to accounts with bounded
+ * memory.
+ *
+ * Accounts are split into partitions by index. Each partition has a
+ * SubmissionPublisher and one applier subscribed to it; producers
+ * route every event to the publisher of its account. An applier only
+ * requests as many events as it has room for in its batch, and a
+ * publisher buffers at most bufferSize events for it, so when the
+ * appliers fall behind, submit() blocks the producer and offer() gives
+ * up after its timeout: a burst can never queue more than
+ * partitions * bufferSize events. An applier nets the events of each
+ * account and applies the sum with one update once its batch is full or
+ * nothing more is buffered for it.
+ */
+public class TransactionPipeline {
+
+	/**
+	 * One deposit or withdrawal
+	 */
+	public static final class Transaction {
+		/**
+		 * Index of the account
+		 */
+		public final int index;
+
+		/**
+		 * Signed amount, negative to withdraw
+		 */
+		public final double amount;
+
+		/**
+		 * @param index Index of the account
+		 * @param amount Signed amount, negative to withdraw
+		 */
+		public Transaction(int index, double amount) {
+			this.index = index;
+			this.amount = amount;
+		}
+	}
+
+	/*
+	 * ------------
+	 * Data members
+	 * ------------
+	 */
+
+	/**
+	 * Accounts the events apply to
+	 */
+	private final Account[] account;
+
+	/**
+	 * Publisher of each partition; account i belongs to partition
+	 * i % partitions
+	 */
+	private final List<SubmissionPublisher<Transaction>> publishers;
+
+	/**
+	 * Number of partitions
+	 */
+	private final int partitions;
+
+	/**
+	 * Events submitted to each partition, so an applier that has received
+	 * all of them knows that nothing more is buffered for it. submit()
+	 * counts before publishing, offer() only once published.
+	 */
+	private final LongAdder[] submitted;
+
+	/**
+	 * Runs the appliers
+	 */
+	private final ExecutorService executor;
+
+	/**
+	 * Counted down by each applier once its publisher is closed and
+	 * everything it delivered is applied
+	 */
+	private final CountDownLatch completed;
+
+	/**
+	 * Events applied, updates they took and events offer() gave up on
+	 */
+	private final LongAdder applied = new LongAdder();
+	private final LongAdder updates = new LongAdder();
+	private final LongAdder dropped = new LongAdder();
+
+	/*
+	 * ------------
+	 * Constructors
+	 * ------------
+	 */
+
+	/**
+	 * Starts one applier thread per partition
+	 * @param account Accounts the events apply to
+	 * @param partitions Number of partitions
+	 * @param bufferSize Events buffered per partition, rounded up to a power of two
+	 * @param batch Most events an applier nets before updating accounts
+	 */
+	public TransactionPipeline(Account[] account, int partitions, int bufferSize, int batch) {
+		this.account = account;
+		partitions = Math.max(1, Math.min(partitions, account.length));
+		this.partitions = partitions;
+		executor = Executors.newFixedThreadPool(partitions, r -> {
+			Thread t = new Thread(r, "transaction-applier");
+			t.setDaemon(true);
+			return t;
+		});
+		completed = new CountDownLatch(partitions);
+		publishers = new ArrayList<SubmissionPublisher<Transaction>>(partitions);
+		submitted = new LongAdder[partitions];
+		for (int p = 0; p < partitions; p++) {
+			submitted[p] = new LongAdder();
+			SubmissionPublisher<Transaction> publisher = new SubmissionPublisher<Transaction>(executor, bufferSize);
+			publishers.add(publisher);
+			publisher.subscribe(new Applier(p, Math.max(1, Math.min(batch, bufferSize))));
+		}
+	}
+
+	/*
+	 * -------
+	 * Methods
+	 * -------
+	 */
+
+	/**
+	 * Publishes an event, waiting while its partition's buffer is full
+	 * @param index Index of the account
+	 * @param amount Signed amount, negative to withdraw
+	 * @throws IllegalStateException if the pipeline is closed
+	 */
+	public void submit(int index, double amount) {
+		SubmissionPublisher<Transaction> publisher = publisherOf(index);
+		submitted[index % partitions].increment();
+		publisher.submit(new Transaction(index, amount));
+	}
+
+	/**
+	 * Publishes an event, waiting at most timeoutMillis for room in its
+	 * partition's buffer
+	 * @param index Index of the account
+	 * @param amount Signed amount, negative to withdraw
+	 * @param timeoutMillis Longest wait for room
+	 * @return false if the event was dropped because the buffer stayed full
+	 * @throws IllegalStateException if the pipeline is closed
+	 */
+	public boolean offer(int index, double amount, long timeoutMillis) {
+		SubmissionPublisher<Transaction> publisher = publisherOf(index);
+		int lag = publisher.offer(new Transaction(index, amount), timeoutMillis, TimeUnit.MILLISECONDS, null);
+		if (lag < 0) {
+			dropped.increment();
+			return false;
+		}
+		// Counted only once published: counting first and taking it back on
+		// a drop could leave an applier that had already caught up waiting
+		// for an event that never comes, with its batch unapplied. Counting
+		// late at worst makes it flush a batch early.
+		submitted[index % partitions].increment();
+		return true;
+	}
+
+	/**
+	 * @param index Index of an account
+	 * @return the publisher of the account's partition
+	 */
+	private SubmissionPublisher<Transaction> publisherOf(int index) {
+		if (index < 0 || index >= account.length)
+			throw new IndexOutOfBoundsException("No account at index " + index);
+		return publishers.get(index % partitions);
+	}
+
+	/**
+	 * @return largest number of events buffered for one partition right now
+	 */
+	public int lag() {
+		int lag = 0;
+		for (SubmissionPublisher<Transaction> p : publishers)
+			lag = Math.max(lag, p.estimateMaximumLag());
+		return lag;
+	}
+
+	/**
+	 * @return events applied so far
+	 */
+	public long applied() {
+		return applied.sum();
+	}
+
+	/**
+	 * @return events dropped by offer() so far
+	 */
+	public long dropped() {
+		return dropped.sum();
+	}
+
+	/**
+	 * @return average number of events per account update so far
+	 */
+	public double batching() {
+		long n = updates.sum();
+		return (n == 0) ? 0 : (double) applied.sum() / n;
+	}
+
+	/**
+	 * Stops accepting events and waits until every published event is
+	 * applied
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	public void close() throws InterruptedException {
+		for (SubmissionPublisher<Transaction> p : publishers)
+			p.close();
+		completed.await();
+		executor.shutdown();
+	}
+
+	/**
+	 * Subscriber netting the events of one partition per account
+	 */
+	private class Applier implements Flow.Subscriber<Transaction> {
+		private final LongAdder submitted;
+		private final int batch;
+		private Flow.Subscription subscription;
+
+		/**
+		 * Net change of each account of the partition, by index / partitions
+		 */
+		private final double[] pending;
+
+		/**
+		 * Accounts with a pending change, by account index
+		 */
+		private final int[] touched;
+
+		/**
+		 * Number of accounts in touched
+		 */
+		private int accounts;
+
+		/**
+		 * Events netted into pending
+		 */
+		private int events;
+
+		/**
+		 * Set for each account of the partition while it is in touched
+		 */
+		private final boolean[] listed;
+
+		/**
+		 * Events received so far
+		 */
+		private long received;
+
+		Applier(int partition, int batch) {
+			this.submitted = TransactionPipeline.this.submitted[partition];
+			this.batch = batch;
+			int size = (account.length - partition + partitions - 1) / partitions;
+			pending = new double[size];
+			listed = new boolean[size];
+			touched = new int[Math.min(batch, size)];
+		}
+
+		public void onSubscribe(Flow.Subscription subscription) {
+			this.subscription = subscription;
+			subscription.request(batch);
+		}
+
+		public void onNext(Transaction t) {
+			int local = t.index / partitions;
+			if (!listed[local]) {
+				listed[local] = true;
+				touched[accounts++] = t.index;
+			}
+			pending[local] += t.amount;
+			events++;
+			received++;
+			// Apply a full batch, or a partial one once nothing more is
+			// buffered. The publisher's own lag estimate is not used: it
+			// takes the lock a blocked submit() holds.
+			if (events == batch || received >= submitted.sum())
+				flush();
+		}
+
+		/**
+		 * Applies the netted changes and asks for as many new events
+		 */
+		private void flush() {
+			for (int i = 0; i < accounts; i++) {
+				int local = touched[i] / partitions;
+				account[touched[i]].apply(pending[local]);
+				pending[local] = 0;
+				listed[local] = false;
+			}
+			applied.add(events);
+			updates.add(accounts);
+			int n = events;
+			accounts = 0;
+			events = 0;
+			subscription.request(n);
+		}
+
+		public void onError(Throwable e) {
+			e.printStackTrace();
+			completed.countDown();
+		}
+
+		public void onComplete() {
+			if (events > 0)
+				flush();
+			completed.countDown();
+		}
+	}
+
+	/**
+	 * Drives the pipeline with bursty producers and checks that every
+	 * event reached its account.
+	 *
+	 * Options: mode=monitor, accounts=1000, producers=4, partitions=2,
+	 * buffer=1024, batch=256, bursts=200, burst=10000 (events per burst),
+	 * pause=5 (milliseconds between bursts), skew=0.99.
+	 */
+	public static void main(String[] args) {
+		Options options = null;
+		try {
+			options = new Options(args);
+		} catch (IllegalArgumentException e) {
+			System.err.println(e.getMessage() + "\nUsage: java task4.TransactionPipeline [mode=" + AccountManager.MODES + "]"
+				+ " [accounts=N] [producers=N] [partitions=N] [buffer=N] [batch=N] [bursts=N] [burst=N] [pause=MILLIS] [skew=0..1)");
+			System.exit(1);
+		}
+		String mode = options.getString("mode", "monitor");
+		int n = options.getInt("accounts", 1000);
+		int producers = options.getInt("producers", 4);
+		int bufferSize = options.getInt("buffer", 1024);
+		int bursts = options.getInt("bursts", 200);
+		int burst = options.getInt("burst", 10000);
+		long pause = options.getLong("pause", 5);
+		ZipfianGenerator zipf = new ZipfianGenerator(n, options.getDouble("skew", 0.99));
+
+		Account[] account = new Account[n];
+		for (int i = 0; i < n; i++)
+			account[i] = AccountManager.newAccount(mode, i, "Customer" + i, 1000);
+		TransactionPipeline pipeline = new TransactionPipeline(account, options.getInt("partitions", 2), bufferSize,
+			options.getInt("batch", 256));
+
+		// Every producer records what it sent so the result can be checked
+		long[][] sent = new long[producers][n];
+		int[] maxLag = new int[producers];
+		Thread[] producer = new Thread[producers];
+		for (int p = 0; p < producers; p++) {
+			long[] mine = sent[p];
+			int self = p;
+			producer[p] = new Thread(() -> {
+				ThreadLocalRandom random = ThreadLocalRandom.current();
+				for (int b = 0; b < bursts; b++) {
+					for (int i = 0; i < burst; i++) {
+						int index = zipf.next(random.nextDouble());
+						int cents = random.nextBoolean() ? 1000 : -1000;
+						pipeline.submit(index, cents / 100.0);
+						mine[index] += cents;
+					}
+					maxLag[self] = Math.max(maxLag[self], pipeline.lag());
+					try {
+						Thread.sleep(pause);
+					} catch (InterruptedException e) {
+						return;
+					}
+				}
+			});
+		}
+		long start = System.nanoTime();
+		for (Thread t : producer)
+			t.start();
+		try {
+			for (Thread t : producer)
+				t.join();
+			pipeline.close();
+		} catch (InterruptedException e) {
+			e.printStackTrace();
+		}
+		long millis = (System.nanoTime() - start) / 1000000;
+
+		int wrong = 0;
+		for (int i = 0; i < n; i++) {
+			long cents = 100000;
+			for (long[] mine : sent)
+				cents += mine[i];
+			if (CentsAccount.toCents(account[i].getBalance()) != cents)
+				wrong++;
+		}
+		int lag = 0;
+		for (int l : maxLag)
+			lag = Math.max(lag, l);
+		System.out.println(pipeline.applied() + " events applied in " + millis + " ms ("
+			+ pipeline.applied() * 1000 / Math.max(1, millis) + " events/s)");
+		System.out.printf("Events per account update: %.1f, largest buffer seen: %d of %d%n",
+			pipeline.batching(), lag, pipeline.publishers.get(0).getMaxBufferCapacity());
+		System.out.println("Accounts with a wrong balance: " + wrong);
+	}
+}
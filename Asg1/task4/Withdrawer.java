@@ -12,14 +12,29 @@ package task4;
 
 public class Withdrawer extends Thread {
 	private Account account ;
+
+	/**
+	 * Number of withdrawals this thread performs
+	 */
+	private int iterations;
+
 	public Withdrawer(Account account){
+		this(account, 10000000);
+	}
+
+	/**
+	 * @param account Account to withdraw from 10 at a time
+	 * @param iterations Number of withdrawals to perform
+	 */
+	public Withdrawer(Account account, int iterations){
 		this.account = account;
+		this.iterations = iterations;
 	}
 	
 	public void run(){
 	
 		// Withdraw 10 CAD into instance variable account
-		for (int i=0;i<10000000;i++)
+		for (int i=0;i<iterations;i++)
 		{
 			account.withdraw(10);
 			/*
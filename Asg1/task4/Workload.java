@@ -0,0 +1,270 @@
+package task4;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Class Workload
+ * Drives a configurable, possibly skewed deposit/withdraw workload
+ * against a table of accounts, in place of AccountManager's fixed
+ * pairing of one Depositor and one Withdrawer per account.
+ *
+ * Options (all key=value):
+ *
+ *   mode=monitor        account implementation, see AccountManager.MODES
+ *   accounts=10         number of accounts, millions are fine
+ *   threads=20          number of client threads
+ *   ops=20000000        operations over all threads
+ *   deposits=0.5        fraction of operations that are deposits
+ *   amount=fixed:10     fixed:A, uniform:MIN:MAX or exp:MEAN
+ *   skew=0              Zipfian skew of account choice, 0 is uniform
+ *   sample=16           time one operation out of this many
+ *
+ * At the end the throughput, latency percentiles and a check that the
+ * sum of all balances moved by exactly the net amount deposited are
+ * printed.
+ */
+public class Workload {
+
+	/**
+	 * How operation amounts are drawn
+	 */
+	static class Amounts {
+		/**
+		 * fixed, uniform or exp
+		 */
+		private final String kind;
+
+		/**
+		 * Amount for fixed, minimum for uniform, mean for exp
+		 */
+		private final double a;
+
+		/**
+		 * Maximum for uniform, unused otherwise
+		 */
+		private final double b;
+
+		/**
+		 * @param spec fixed:A, uniform:MIN:MAX or exp:MEAN
+		 * @throws IllegalArgumentException if the spec is malformed
+		 */
+		Amounts(String spec) {
+			String[] parts = spec.split(":");
+			kind = parts[0];
+			try {
+				switch (kind) {
+					case "fixed":
+					case "exp":
+						if (parts.length != 2)
+							throw new IllegalArgumentException();
+						a = Double.parseDouble(parts[1]);
+						b = a;
+						break;
+					case "uniform":
+						if (parts.length != 3)
+							throw new IllegalArgumentException();
+						a = Double.parseDouble(parts[1]);
+						b = Double.parseDouble(parts[2]);
+						break;
+					default:
+						throw new IllegalArgumentException();
+				}
+			} catch (IllegalArgumentException e) {
+				throw new IllegalArgumentException("Bad amount \"" + spec + "\", use fixed:A, uniform:MIN:MAX or exp:MEAN");
+			}
+		}
+
+		/**
+		 * @param random Generator of the calling thread
+		 * @return the next amount, rounded to cents
+		 */
+		double next(ThreadLocalRandom random) {
+			double amount;
+			switch (kind) {
+				case "uniform":
+					amount = a + random.nextDouble() * (b - a);
+					break;
+				case "exp":
+					amount = -a * Math.log(1 - random.nextDouble());
+					break;
+				default:
+					return a;
+			}
+			return Math.round(amount * 100) / 100.0;
+		}
+	}
+
+	/*
+	 * ------------
+	 * Data members
+	 * ------------
+	 */
+
+	/**
+	 * Account table under load
+	 */
+	private final Account[] account;
+
+	/**
+	 * Chooses the account of each operation
+	 */
+	private final ZipfianGenerator zipf;
+
+	/**
+	 * Draws the amount of each operation
+	 */
+	private final Amounts amounts;
+
+	/**
+	 * Number of client threads
+	 */
+	private final int threads;
+
+	/**
+	 * Operations over all threads
+	 */
+	private final long ops;
+
+	/**
+	 * Fraction of operations that are deposits
+	 */
+	private final double deposits;
+
+	/**
+	 * One operation out of this many is timed
+	 */
+	private final int sample;
+
+	/*
+	 * ------------
+	 * Constructors
+	 * ------------
+	 */
+
+	/**
+	 * Builds the account table and generators described by the options.
+	 *
+	 * @param options Command line options, see the class comment
+	 * @throws IllegalArgumentException on an invalid option
+	 */
+	public Workload(Options options) {
+		String mode = options.getString("mode", "monitor");
+		int n = options.getInt("accounts", 10);
+		this.threads = options.getInt("threads", 20);
+		this.ops = options.getLong("ops", 20000000L);
+		this.deposits = options.getDouble("deposits", 0.5);
+		this.sample = Math.max(1, options.getInt("sample", 16));
+		this.amounts = new Amounts(options.getString("amount", "fixed:10"));
+		this.zipf = new ZipfianGenerator(n, options.getDouble("skew", 0));
+		if (threads < 1 || ops < threads)
+			throw new IllegalArgumentException("Need at least one thread and one operation per thread");
+
+		account = new Account[n];
+		for (int i = 0; i < n; i++)
+			account[i] = AccountManager.newAccount(mode, i, "Customer" + i, 1000);
+	}
+
+	/*
+	 * -------
+	 * Methods
+	 * -------
+	 */
+
+	/**
+	 * @return sum of all balances in cents
+	 */
+	private long totalCents() {
+		long total = 0;
+		for (Account a : account)
+			total += Math.round(a.getBalance() * 100);
+		return total;
+	}
+
+	/**
+	 * Runs the workload to completion and prints the results
+	 */
+	public void run() {
+		long before = totalCents();
+		Client[] client = new Client[threads];
+		for (int t = 0; t < threads; t++)
+			client[t] = new Client(ops / threads + (t < ops % threads ? 1 : 0));
+
+		long start = System.nanoTime();
+		for (Client c : client)
+			c.start();
+		LatencyHistogram latency = new LatencyHistogram();
+		long net = 0;
+		for (Client c : client) {
+			try {
+				c.join();
+			} catch (InterruptedException e) {
+				e.printStackTrace();
+			}
+			latency.add(c.latency);
+			net += c.netCents;
+		}
+		long elapsed = System.nanoTime() - start;
+
+		System.out.printf("%,d ops on %,d accounts by %d threads in %.3f s%n", ops, account.length, threads, elapsed / 1e9);
+		System.out.printf("Throughput: %,.0f ops/s%n", ops * 1e9 / elapsed);
+		System.out.println("Latency: " + latency.summary());
+		long moved = totalCents() - before;
+		System.out.printf("Net deposited %.2f, balances moved %.2f %s%n", net / 100.0, moved / 100.0,
+			moved == net ? "(consistent)" : "(LOST UPDATES)");
+	}
+
+	/**
+	 * Client thread issuing its share of the operations
+	 */
+	private class Client extends Thread {
+		/**
+		 * Number of operations to issue
+		 */
+		private final long count;
+
+		/**
+		 * Sampled operation latencies
+		 */
+		final LatencyHistogram latency = new LatencyHistogram();
+
+		/**
+		 * Net amount deposited by this client, in cents
+		 */
+		long netCents;
+
+		Client(long count) {
+			this.count = count;
+		}
+
+		public void run() {
+			ThreadLocalRandom random = ThreadLocalRandom.current();
+			for (long i = 0; i < count; i++) {
+				Account a = account[zipf.next(random.nextDouble())];
+				double amount = amounts.next(random);
+				boolean deposit = random.nextDouble() < deposits;
+				long t0 = (i % sample == 0) ? System.nanoTime() : 0;
+				if (deposit)
+					a.deposit(amount);
+				else
+					a.withdraw(amount);
+				if (t0 != 0)
+					latency.record(System.nanoTime() - t0);
+				long cents = Math.round(amount * 100);
+				netCents += deposit ? cents : -cents;
+			}
+		}
+	}
+
+	public static void main(String[] args) {
+		Workload workload = null;
+		try {
+			workload = new Workload(new Options(args));
+		} catch (IllegalArgumentException e) {
+			System.err.println(e.getMessage() + "\nUsage: java task4.Workload [mode=" + AccountManager.MODES + "]"
+				+ " [accounts=N] [threads=N] [ops=N] [deposits=FRACTION] [amount=fixed:A|uniform:MIN:MAX|exp:MEAN]"
+				+ " [skew=0..1) [sample=N]");
+			System.exit(1);
+		}
+		workload.run();
+	}
+}
@@ -0,0 +1,109 @@
+package task4;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Class ZipfianGenerator
+ * Picks item ranks 0..n-1 so that low ranks are chosen far more often.
+ *
+ * Uses the constant-time method of Gray et al. ("Quickly Generating
+ * Billion-Record Synthetic Databases"); only the constructor is O(n).
+ * A skew of 0 gives a uniform choice, values close to 1 concentrate most
+ * of the traffic on a handful of hot items. Instances are immutable and
+ * can be shared by all threads.
+ */
+public class ZipfianGenerator {
+
+	/*
+	 * ------------
+	 * Data members
+	 * ------------
+	 */
+
+	/**
+	 * Number of items to choose from
+	 */
+	private final int n;
+
+	/**
+	 * Skew parameter, in [0, 1)
+	 */
+	private final double theta;
+
+	/**
+	 * Precomputed constants of the method
+	 */
+	private final double alpha, zetan, eta;
+
+	/*
+	 * ------------
+	 * Constructors
+	 * ------------
+	 */
+
+	/**
+	 * @param n Number of items, at least 1
+	 * @param theta Skew, 0 for uniform and below 1
+	 * @throws IllegalArgumentException on out-of-range parameters
+	 */
+	public ZipfianGenerator(int n, double theta) {
+		if (n < 1)
+			throw new IllegalArgumentException("Need at least one item, got " + n);
+		if (theta < 0 || theta >= 1)
+			throw new IllegalArgumentException("Skew must be in [0, 1), got " + theta);
+		this.n = n;
+		this.theta = theta;
+		double zeta2 = zeta(2, theta);
+		this.zetan = zeta(n, theta);
+		this.alpha = 1.0 / (1.0 - theta);
+		this.eta = (1 - Math.pow(2.0 / n, 1 - theta)) / (1 - zeta2 / zetan);
+	}
+
+	/*
+	 * -------
+	 * Methods
+	 * -------
+	 */
+
+	/**
+	 * @return a rank in 0..n-1, using the calling thread's random generator
+	 */
+	public int next() {
+		return next(ThreadLocalRandom.current().nextDouble());
+	}
+
+	/**
+	 * @param u A uniform random number in [0, 1)
+	 * @return the rank that number maps to
+	 */
+	public int next(double u) {
+		if (theta == 0 || n == 1)
+			return (int) (u * n);
+		double uz = u * zetan;
+		if (uz < 1)
+			return 0;
+		if (uz < 1 + Math.pow(0.5, theta))
+			return 1;
+		int rank = (int) (n * Math.pow(eta * u - eta + 1, alpha));
+		return Math.min(rank, n - 1);
+	}
+
+	/**
+	 * @return number of items
+	 */
+	public int size() {
+		return n;
+	}
+
+	/**
+	 * @param n Number of terms
+	 * @param theta Exponent
+	 * @return the sum of 1/i^theta for i = 1..n
+	 */
+	private static double zeta(int n, double theta) {
+		double sum = 0;
+		for (int i = 1; i <= n; i++)
+			sum += 1 / Math.pow(i, theta);
+		return sum;
+	}
+}